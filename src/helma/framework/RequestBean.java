@@ -78,6 +78,7 @@ public class RequestBean implements Serializable {
      * Returns null for internal and XML-RPC requests.
      */
     public HttpServletRequest getServletRequest() {
+        req.headerRead("*");
         return req.getServletRequest();
     }
 
@@ -87,7 +88,8 @@ public class RequestBean implements Serializable {
      * @return the header value, or null
      */
     public String getHeader(String name) {
-        return req.getHeader(name);        
+        req.headerRead(name);
+        return req.getHeader(name);
     }
 
     /**
@@ -96,6 +98,7 @@ public class RequestBean implements Serializable {
      * @return the header values as string array
      */
     public String[] getHeaders(String name) {
+        req.headerRead(name);
         return req.getHeaders(name);
     }
 
@@ -105,6 +108,7 @@ public class RequestBean implements Serializable {
      * @return the header parsed as integer or -1
      */
     public int getIntHeader(String name) {
+        req.headerRead(name);
         return req.getIntHeader(name);
     }
 
@@ -114,6 +118,7 @@ public class RequestBean implements Serializable {
      * @return the date in milliseconds, or -1
      */
     public long getDateHeader(String name) {
+        req.headerRead(name);
         return req.getDateHeader(name);
     }
 
@@ -164,6 +169,7 @@ public class RequestBean implements Serializable {
      * @return the req.cookies map containing request cookies
      */
     public Map getCookies() {
+        req.headerRead("cookie");
         return req.getCookies();
     }
 
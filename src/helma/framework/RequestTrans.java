@@ -86,6 +86,22 @@ public class RequestTrans implements Serializable {
     private String httpUsername;
     private String httpPassword;
 
+    // callback to write response headers when streaming the response
+    private transient ResponseCommitter responseCommitter;
+
+    // lower case names of the request headers read by the application,
+    // or "*" if it read request data the response caches can't key on
+    private transient Set readHeaders;
+
+    // req.data entries derived from request headers
+    static private final Map headerData = new HashMap();
+    static {
+        headerData.put("http_referer", "referer");
+        headerData.put("http_browser", "user-agent");
+        headerData.put("http_language", "accept-language");
+        headerData.put("http_remotehost", "*");
+    }
+
     static private final Pattern paramPattern = Pattern.compile("\\[(.+?)\\]");
 
     /**
@@ -316,6 +332,32 @@ public class RequestTrans implements Serializable {
         return request == null ? null : request.getHeader(name);
     }
 
+    /**
+     * Remember that the application read a request header, or "*" for
+     * request data that doesn't correspond to a single header. Used by the
+     * response caches to avoid storing responses that depend on headers
+     * which aren't part of their cache keys.
+     *
+     * @param name the header name
+     */
+    public synchronized void headerRead(String name) {
+        if (readHeaders == null) {
+            readHeaders = new HashSet();
+        }
+        readHeaders.add(name.toLowerCase());
+    }
+
+    /**
+     * Get the lower case names of the request headers read by the
+     * application, as recorded by {@link #headerRead(String)}.
+     *
+     * @return the set of header names, possibly containing "*"
+     */
+    public synchronized Set getReadHeaders() {
+        return readHeaders == null ?
+                Collections.EMPTY_SET : new HashSet(readHeaders);
+    }
+
     /**
      * Proxy to HttpServletRequest.getHeaders(), returns header values as string array.
      * @param name the header name
@@ -360,6 +402,23 @@ public class RequestTrans implements Serializable {
         return response;
     }
 
+    /**
+     * Set the callback used to write the response headers if the
+     * response is streamed to the client.
+     */
+    public void setResponseCommitter(ResponseCommitter committer) {
+        this.responseCommitter = committer;
+    }
+
+    /**
+     * Get the callback used to write the response headers if the
+     * response is streamed to the client, or null if streaming
+     * isn't supported for this request.
+     */
+    public ResponseCommitter getResponseCommitter() {
+        return responseCommitter;
+    }
+
     /**
      *  The hash code is computed from the session id if available. This is used to
      *  detect multiple identic requests.
@@ -710,14 +769,21 @@ public class RequestTrans implements Serializable {
 
         public Object get(Object key) {
             Object value = super.get(key);
-            if (value != null)
+            if (value != null) {
+                String header = (String) headerData.get(key);
+                if (header != null) {
+                    headerRead(header);
+                }
                 return value;
+            }
             if (postParams != null && (value = postParams.get(key)) != null)
                 return value;
             if (queryParams != null && (value = queryParams.get(key)) != null)
                 return value;
-            if (cookies != null && (value = cookies.get(key)) != null)
+            if (cookies != null && (value = cookies.get(key)) != null) {
+                headerRead("cookie");
                 return value;
+            }
             return null;
         }
 
@@ -726,6 +792,7 @@ public class RequestTrans implements Serializable {
         }
 
         public Set entrySet() {
+            headerRead("*");
             Set entries = new HashSet(super.entrySet());
             if (postParams != null) entries.addAll(postParams.entrySet());
             if (queryParams != null) entries.addAll(queryParams.entrySet());
@@ -734,6 +801,7 @@ public class RequestTrans implements Serializable {
         }
 
         public Set keySet() {
+            headerRead("*");
             Set keys = new HashSet(super.keySet());
             if (postParams != null) keys.addAll(postParams.keySet());
             if (queryParams != null) keys.addAll(queryParams.keySet());
@@ -305,6 +305,32 @@ public class ResponseBean implements Serializable {
         res.setCacheable(cache);
     }
 
+    /**
+     * Return true if this response is sent to the client while it is rendered
+     *
+     * @return true if streaming is enabled for this response
+     */
+    public boolean getStreaming() {
+        return res.isStreaming();
+    }
+
+    /**
+     * Enable or disable streaming for this response. Status, headers and
+     * cookies must be set before output is first sent to the client.
+     *
+     * @param streaming true to send the response while it is rendered
+     */
+    public void setStreaming(boolean streaming) {
+        res.setStreaming(streaming);
+    }
+
+    /**
+     * Send the output written so far to the client if this is a streaming response.
+     */
+    public void flush() {
+        res.flush();
+    }
+
     /**
      * Get the current charset/encoding name for the response
      *
@@ -0,0 +1,36 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework;
+
+import java.io.IOException;
+
+/**
+ * Callback used by a streaming {@link ResponseTrans} to let the servlet client
+ * write the HTTP status, headers and cookies before the first part of the
+ * response body is sent.
+ */
+public interface ResponseCommitter {
+
+    /**
+     * Write the status, headers and cookies of the response to the
+     * underlying servlet response.
+     *
+     * @param res the response that is about to start streaming
+     * @throws IOException if the headers couldn't be written
+     */
+    public void commit(ResponseTrans res) throws IOException;
+}
@@ -38,6 +38,9 @@ public final class ResponseTrans extends Writer implements Serializable {
     static final long serialVersionUID = -8627370766119740844L;
     static final int INITIAL_BUFFER_SIZE = 2048;
 
+    // number of buffered chars after which a streaming response is flushed
+    static final int STREAM_THRESHOLD = 8192;
+
     static final String newLine = System.getProperty("line.separator");
 
     //  MIME content type of the response.
@@ -76,6 +79,10 @@ public final class ResponseTrans extends Writer implements Serializable {
     // cookies
     Map cookies;
 
+    // headers set through this response, kept so that cached responses
+    // can replay them. Elements are {name, String or Long value, Boolean add}
+    private transient List headers;
+
     // the buffer used to build the response
     private transient StringBuffer buffer = null;
 
@@ -118,6 +125,28 @@ public final class ResponseTrans extends Writer implements Serializable {
     // the skin current or last rendered skin
     private transient volatile Skin activeSkin;
 
+    // flag to send the response in chunks while it is being rendered
+    private transient boolean streaming = false;
+
+    // the writer used once a streaming response has been committed
+    private transient Writer streamWriter;
+
+    // the servlet output stream of a committed streaming response
+    private transient OutputStream streamOut;
+
+    // char buffer used to copy the response buffer to streamWriter
+    private transient char[] streamChars;
+
+    // number of pushed buffers and macros that still may rewrite the response
+    // buffer. The buffer is only streamed if this is 0.
+    private transient int streamHold = 0;
+
+    // set if writing to the client failed, later output is discarded
+    private transient IOException streamError;
+
+    // the status code sent when the streaming response was committed
+    private transient int streamStatus;
+
     // the application
     Application app;
 
@@ -190,20 +219,27 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
 
         buffers = null;
+        streamHold = 0;
         response = null;
-        cacheable = true;
         redir = forward = message = null;
         error = null;
-        etag = realm = charset = null;
-        contentType =  "text/html";
         values.clear();
         handlers.clear();
         meta.clear();
-        lastModified = -1;
-        notModified = false;
         skinpath = null;
         skincache = null;
-        cookies = null;
+
+        // once a streaming response has been committed, status
+        // and headers have been sent and can't be reset anymore
+        if (streamWriter == null) {
+            cacheable = true;
+            etag = realm = charset = null;
+            contentType =  "text/html";
+            lastModified = -1;
+            notModified = false;
+            cookies = null;
+            headers = null;
+        }
 
         if (digest != null) {
             digest.reset();
@@ -225,6 +261,7 @@ public final class ResponseTrans extends Writer implements Serializable {
         if (buffer != null) {
             buffers.push(buffer);
         }
+        streamHold++;
 
         if (buf != null) {
             buffer = buf;
@@ -259,6 +296,9 @@ public final class ResponseTrans extends Writer implements Serializable {
         StringBuffer buf = buffer;
         // restore the previous buffer, which may be null
         buffer = buffers.empty() ? null : (StringBuffer) buffers.pop();
+        if (streamHold > 0) {
+            streamHold--;
+        }
         return buf;
     }
 
@@ -282,6 +322,7 @@ public final class ResponseTrans extends Writer implements Serializable {
                 buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
             buffer.append(str);
+            checkStream();
         }
     }
 
@@ -307,6 +348,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             buffer = new StringBuffer(Math.max(length + 100, INITIAL_BUFFER_SIZE));
         }
         buffer.append(chars, offset, length);
+        checkStream();
     }
 
     /**
@@ -328,6 +370,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append((char) c);
+        checkStream();
     }
 
     /**
@@ -353,6 +396,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -364,6 +408,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -397,6 +442,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeAll(str, buffer);
+            checkStream();
         }
     }
 
@@ -412,6 +458,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encode(str, buffer);
+            checkStream();
         }
     }
 
@@ -428,6 +475,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeXml(str, buffer);
+            checkStream();
         }
     }
 
@@ -443,15 +491,19 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             HtmlEncoder.encodeAll(str, buffer, false);
+            checkStream();
         }
     }
 
     /**
+     * Redirect the client to the given URL. Once a streaming response has
+     * been sent to the client, the redirect can no longer be done through
+     * the HTTP status; it is logged as an error and, for HTML responses,
+     * attempted with a meta refresh at the end of the page.
      *
+     * @param url the URL to redirect to
      *
-     * @param url ...
-     *
-     * @throws RedirectException ...
+     * @throws RedirectException always, to stop the current request
      */
     public void redirect(String url) throws RedirectException {
         // remove newline chars to prevent response splitting attack
@@ -498,6 +550,21 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param bytes an arbitrary byte array
      */
     public void writeBinary(byte[] bytes) {
+        synchronized (this) {
+            if (streamWriter != null) {
+                // the response is already being streamed, send bytes right away
+                if (streamError == null) {
+                    try {
+                        streamBuffer();
+                        streamWriter.flush();
+                        streamOut.write(bytes);
+                    } catch (IOException iox) {
+                        streamError = iox;
+                    }
+                }
+                return;
+            }
+        }
         response = bytes;
     }
 
@@ -507,6 +574,7 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param value the header value
      */
     public void addHeader(String name, String value) {
+        recordHeader(name, value, true);
         HttpServletResponse res = getServletResponse();
         if (res != null)
             res.addHeader(name, value);
@@ -518,6 +586,7 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param value the header value
      */
     public void addDateHeader(String name, Date value) {
+        recordHeader(name, new Long(value.getTime()), true);
         HttpServletResponse res = getServletResponse();
         if (res != null)
             res.addDateHeader(name, value.getTime());
@@ -529,6 +598,7 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param value the header value
      */
     public void setHeader(String name, String value) {
+        recordHeader(name, value, false);
         HttpServletResponse res = getServletResponse();
         if (res != null)
             res.setHeader(name, value);
@@ -540,11 +610,32 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param value the header value
      */
     public void setDateHeader(String name, Date value) {
+        recordHeader(name, new Long(value.getTime()), false);
         HttpServletResponse res = getServletResponse();
         if (res != null)
             res.setDateHeader(name, value.getTime());
     }
 
+    /**
+     * Get the headers set through this response, in the order they were set.
+     * Each element is an array holding the header name, the value as String
+     * or as Long for date headers, and Boolean.TRUE if the header was added
+     * rather than set. Headers set directly on the servlet response are not
+     * included.
+     *
+     * @return the list of headers, or null if no header was set
+     */
+    public synchronized List getHeaders() {
+        return headers == null ? null : new ArrayList(headers);
+    }
+
+    private synchronized void recordHeader(String name, Object value, boolean add) {
+        if (headers == null) {
+            headers = new ArrayList();
+        }
+        headers.add(new Object[] {name, value, Boolean.valueOf(add)});
+    }
+
     /**
      * Write a vanilla error report. Callers should make sure the ResponeTrans is
      * new or has been reset.
@@ -629,8 +720,139 @@ public final class ResponseTrans extends Writer implements Serializable {
         writeBinary(xresproc.encodeException(x, charset));
     }
 
-    public void flush() {
-        // does nothing!
+    /**
+     * Send the output buffered so far to the client if this is a streaming
+     * response. Does nothing for buffered responses.
+     */
+    public synchronized void flush() {
+        if (!streaming || streamHold > 0 || !startStreaming()) {
+            return;
+        }
+        if (streamError == null) {
+            try {
+                streamBuffer();
+                streamWriter.flush();
+            } catch (IOException iox) {
+                streamError = iox;
+            }
+        }
+    }
+
+    /**
+     * Enable or disable streaming for this response. A streaming response is
+     * sent to the client in chunks once its buffer exceeds a certain size, or
+     * when {@link #flush()} is called. Status, headers and cookies must be set
+     * before the first chunk is sent and can't be changed afterwards. The same
+     * holds for redirects, and errors occurring afterwards can only be
+     * appended to the page already sent.
+     *
+     * @param streaming true to stream this response
+     */
+    public synchronized void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Check if this response is sent to the client while it is rendered.
+     *
+     * @return true if streaming is enabled for this response
+     */
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Prevent the response buffer from being streamed while its content may
+     * still be rewritten, e.g. while a skin macro is rendered. Each call must
+     * be matched by a call to {@link #releaseStream()}.
+     */
+    public synchronized void holdStream() {
+        streamHold++;
+    }
+
+    /**
+     * Release a hold placed on the response buffer by {@link #holdStream()}.
+     */
+    public synchronized void releaseStream() {
+        if (streamHold > 0) {
+            streamHold--;
+        }
+    }
+
+    /**
+     * Check if a streaming response has already been sent to the client.
+     *
+     * @return true if headers and part of the body have been sent
+     */
+    public synchronized boolean isStreamed() {
+        return streamWriter != null;
+    }
+
+    // called after appending to the buffer, must be called holding the lock
+    private void checkStream() {
+        if (streaming && streamHold == 0 &&
+                buffer.length() >= STREAM_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /**
+     * Commit the servlet response and set up the writer for the body if this
+     * hasn't happened yet. Must be called holding the lock.
+     *
+     * @return true if the response can be streamed
+     */
+    private boolean startStreaming() {
+        if (streamWriter != null) {
+            return true;
+        }
+        HttpServletResponse res = reqtrans.getServletResponse();
+        ResponseCommitter committer = reqtrans.getResponseCommitter();
+        if (res == null || committer == null || res.isCommitted() ||
+                redir != null || forward != null || response != null) {
+            // fall back to a buffered response
+            streaming = false;
+            return false;
+        }
+        if (charset == null) {
+            charset = app.getCharset();
+        }
+        try {
+            committer.commit(this);
+            streamStatus = status;
+            streamOut = res.getOutputStream();
+            try {
+                streamWriter = new OutputStreamWriter(streamOut, charset);
+            } catch (UnsupportedEncodingException uee) {
+                app.logError("Unsupported response encoding: " + charset);
+                streamWriter = new OutputStreamWriter(streamOut);
+            }
+        } catch (IOException iox) {
+            app.logError("Error starting streaming response", iox);
+            streaming = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the response buffer to the client and clear it. Must be called
+     * holding the lock, after startStreaming() has returned true.
+     */
+    private void streamBuffer() throws IOException {
+        if (buffer == null || buffer.length() == 0) {
+            return;
+        }
+        int length = buffer.length();
+        if (streamChars == null) {
+            streamChars = new char[STREAM_THRESHOLD];
+        }
+        for (int offset = 0; offset < length; offset += streamChars.length) {
+            int end = Math.min(length, offset + streamChars.length);
+            buffer.getChars(offset, end, streamChars, 0);
+            streamWriter.write(streamChars, 0, end - offset);
+        }
+        buffer.setLength(0);
     }
 
     /**
@@ -648,6 +870,12 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @throws UnsupportedEncodingException if the charset is not a valid encoding name
      */
     public synchronized void close(String defaultCharset) throws UnsupportedEncodingException {
+        // if this is a streaming response, send what's left in the buffer
+        if (streamWriter != null) {
+            closeStream();
+            return;
+        }
+
         // if the response was already written and committed by the application
         // there's no point in closing the response buffer
         HttpServletResponse res = reqtrans.getServletResponse();
@@ -735,6 +963,99 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
     }
 
+    /**
+     * Send the rest of a streaming response to the client and finish it.
+     * Must be called holding the lock.
+     */
+    private void closeStream() {
+        boolean html = contentType != null && contentType.startsWith("text/html");
+        if (redir != null) {
+            app.logError("Can't redirect " + reqtrans + " to " + redir +
+                         ", response has already been sent to the client");
+            if (html) {
+                // the browser may still follow a redirect in the page
+                getBuffer().append("<meta http-equiv=\"refresh\" content=\"0;url=")
+                        .append(HtmlEncoder.encodeFormValue(redir)).append("\">");
+            }
+        }
+        if (error != null || status != streamStatus) {
+            app.logError("Error in " + reqtrans + " after response has been sent " +
+                         "to the client, page is incomplete: " +
+                         (error == null ? "status " + status : getErrorMessage(error)));
+        }
+        if (html && debugBuffer != null) {
+            debugBuffer.append("</div>");
+            getBuffer().append(debugBuffer);
+            debugBuffer = null;
+        }
+        if (streamError == null) {
+            try {
+                streamBuffer();
+                streamWriter.flush();
+            } catch (IOException iox) {
+                streamError = iox;
+            }
+        }
+        if (streamError != null) {
+            app.logEvent("Error streaming response: " + streamError);
+        }
+        buffer = null;
+        // let attached requests know they can't reuse this response
+        response = null;
+        notifyAll();
+    }
+
+    /**
+     * Close this response using content and headers taken from a previously
+     * closed response, as done by the application's response cache. If the
+     * client already has the content, a Not-Modified response is generated.
+     *
+     * @param content the response body
+     * @param contentType the full content type including the charset
+     * @param status the HTTP status code
+     * @param lastModified the Last-Modified header value, or -1
+     * @param etag the ETag header value including quotes, or null
+     * @param headers the headers as returned by {@link #getHeaders()}, or null
+     */
+    public synchronized void closeCached(byte[] content, String contentType, int status,
+                                         long lastModified, String etag, List headers) {
+        if (headers != null) {
+            for (Iterator it = headers.iterator(); it.hasNext(); ) {
+                Object[] header = (Object[]) it.next();
+                String name = (String) header[0];
+                boolean add = ((Boolean) header[2]).booleanValue();
+                if (header[1] instanceof Long) {
+                    Date date = new Date(((Long) header[1]).longValue());
+                    if (add) {
+                        addDateHeader(name, date);
+                    } else {
+                        setDateHeader(name, date);
+                    }
+                } else if (add) {
+                    addHeader(name, (String) header[1]);
+                } else {
+                    setHeader(name, (String) header[1]);
+                }
+            }
+        }
+        this.contentType = contentType;
+        this.charset = null;
+        this.status = status;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.buffer = null;
+
+        if ((etag != null && reqtrans.hasETag(etag)) ||
+                (lastModified > -1 && reqtrans.getIfModifiedSince() == lastModified)) {
+            response = new byte[0];
+            notModified = true;
+        } else {
+            response = content;
+        }
+
+        notifyAll();
+    }
+
     /**
      * If we just attached to evaluation we call this instead of close because only the primary thread
      * is responsible for closing the result
@@ -23,6 +23,7 @@ import helma.framework.repository.*;
 import helma.main.Server;
 import helma.objectmodel.*;
 import helma.objectmodel.db.*;
+import helma.objectmodel.dom.DatabaseSnapshot;
 import helma.util.*;
 import helma.scripting.ScriptingEngine;
 import helma.scripting.ScriptingException;
@@ -31,6 +32,7 @@ import java.io.*;
 import java.lang.reflect.*;
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import java.util.ArrayList;
@@ -94,10 +96,9 @@ public final class Application implements Runnable {
     protected SkinManager skinmgr;
 
     /**
-     * Collections for evaluator thread pooling
+     * The pool of request evaluators
      */
-    protected Stack freeThreads;
-    protected Vector allThreads;
+    protected EvaluatorPool evaluators;
     boolean running = false;
     boolean debug;
     long starttime;
@@ -118,6 +119,15 @@ public final class Application implements Runnable {
     // Map of requesttrans -> active requestevaluators
     Hashtable activeRequests;
 
+    // cache for responses to anonymous GET requests
+    final ResponseCache responseCache = new ResponseCache(this);
+
+    // dependency fingerprints used to answer conditional GETs without rendering
+    final ConditionalGetCache conditionalGets = new ConditionalGetCache(this);
+
+    // the last snapshot of the embedded database started for this app
+    private DatabaseSnapshot snapshot = null;
+
     String logDir;
 
     // Two logs for each application
@@ -164,9 +174,28 @@ public final class Application implements Runnable {
     // time we last read the properties file
     private long lastPropertyRead = -1L;
 
+    // in frozen mode, code and properties are only checked for updates after
+    // an explicit reload. codeReloads counts reload requests.
+    private volatile boolean frozen = false;
+    private volatile long codeReloads = 0;
+
+    // incremented whenever the compiled code of a prototype changes
+    private final AtomicLong codeVersion = new AtomicLong();
+    private long propertyReloads = -1;
+    private CodeWatcher codeWatcher;
+
+    // statistics about code update checks, guarded by codeCheckLock
+    private final Object codeCheckLock = new Object();
+    private long codeChecks = 0;
+    private long codeCheckNanos = 0;
+    private long skippedCodeChecks = 0;
+
     // the set of prototype/function pairs which are allowed to be called via XML-RPC
     private HashSet xmlrpcAccess;
 
+    // the set of actions and prototype.action pairs whose responses are streamed
+    private HashSet streamingActions = new HashSet();
+
     // the name under which this app serves XML-RPC requests. Defaults to the app name
     private String xmlrpcHandlerName;
 
@@ -395,9 +424,8 @@ public final class Application implements Runnable {
                 }
             }
 
-            // create and init evaluator/thread lists
-            freeThreads = new Stack();
-            allThreads = new Vector();
+            // create the evaluator pool
+            evaluators = new EvaluatorPool(Application.this);
 
             activeRequests = new Hashtable();
             activeCronJobs = new Hashtable();
@@ -476,8 +504,7 @@ public final class Application implements Runnable {
                 if (i == 0) {
                     ev.initScriptingEngine();
                 }
-                freeThreads.push(ev);
-                allThreads.addElement(ev);
+                evaluators.add(ev);
             }
         }
     }
@@ -503,6 +530,8 @@ public final class Application implements Runnable {
         worker = new Thread(this, name + "-worker");
         worker.setPriority(Thread.NORM_PRIORITY + 1);
         worker.start();
+
+        updateCodeWatcher();
     }
 
     /**
@@ -527,20 +556,18 @@ public final class Application implements Runnable {
         }
 
         worker = null;
+        updateCodeWatcher();
 
-        // stop evaluators
-        if (allThreads != null) {
-            for (Enumeration e = allThreads.elements(); e.hasMoreElements();) {
-                RequestEvaluator ev = (RequestEvaluator) e.nextElement();
+        // remove and stop evaluators
+        if (evaluators != null) {
+            List list = evaluators.close();
+            for (Iterator i = list.iterator(); i.hasNext();) {
+                RequestEvaluator ev = (RequestEvaluator) i.next();
                 ev.stopTransactor();
                 ev.shutdown();
             }
         }
 
-        // remove evaluators
-        allThreads.removeAllElements();
-        freeThreads.clear();
-
         // shut down node manager and embedded db
         try {
             nmgr.shutdown();
@@ -548,6 +575,11 @@ public final class Application implements Runnable {
             System.err.println("Error shutting down embedded db: " + dbx);
         }
 
+        // close relational connection pools
+        for (Enumeration e = dbSources.elements(); e.hasMoreElements();) {
+            ((DbSource) e.nextElement()).shutdown();
+        }
+
         // tell the extensions that we're stopped.
         if (Server.getServer() != null) {
             Vector extensions = Server.getServer().getExtensions();
@@ -596,59 +628,27 @@ public final class Application implements Runnable {
     }
 
     /**
-     * Returns a free evaluator to handle a request.
+     * Returns a free evaluator to handle a request. If all evaluators are busy,
+     * wait up to <code>evaluatorQueueTimeout</code> seconds for one to be released.
      */
     public RequestEvaluator getEvaluator() {
+        return getEvaluator(System.currentTimeMillis() + getEvaluatorQueueTimeout());
+    }
+
+    /**
+     * Returns a free evaluator to handle a request, waiting no longer than
+     * the given deadline if all evaluators are busy.
+     *
+     * @param deadline the time in millis after which to give up waiting
+     */
+    public RequestEvaluator getEvaluator(long deadline) {
         if (!running) {
             throw new ApplicationStoppedException();
         }
 
-        // first try
-        try {
-            return (RequestEvaluator) freeThreads.pop();
-        } catch (EmptyStackException nothreads) {
-            int maxThreads = 50;
-
-            String maxThreadsProp = props.getProperty("maxThreads");
-            if (maxThreadsProp != null) {
-                try {
-                    maxThreads = Integer.parseInt(maxThreadsProp);
-                } catch (Exception ignore) {
-                    logEvent("Couldn't parse maxThreads property: " + maxThreadsProp);
-                }
-            }
-
-            synchronized (this) {
-                // allocate a new evaluator
-                if (allThreads.size() < maxThreads) {
-                    logEvent("Starting engine " + (allThreads.size() + 1) +
-                             " for " + name);
-
-                    RequestEvaluator ev = new RequestEvaluator(this);
-
-                    allThreads.addElement(ev);
-
-                    return (ev);
-                }
-            }
-        }
-
-        // we can't create a new evaluator, so we wait if one becomes available.
-        // give it 3 more tries, waiting 3 seconds each time.
-        for (int i = 0; i < 4; i++) {
-            try {
-                Thread.sleep(3000);
-
-                return (RequestEvaluator) freeThreads.pop();
-            } catch (EmptyStackException nothreads) {
-                // do nothing
-            } catch (InterruptedException inter) {
-                throw new RuntimeException("Thread interrupted.");
-            }
-        }
-
-        // no luck, give up.
-        throw new RuntimeException("Maximum Thread count reached.");
+        return evaluators.acquire(getIntProperty("maxThreads", 50),
+                                  getIntProperty("evaluatorQueueSize", 0),
+                                  deadline);
     }
 
     /**
@@ -657,10 +657,29 @@ public final class Application implements Runnable {
     public void releaseEvaluator(RequestEvaluator ev) {
         if (ev != null) {
             ev.recycle();
-            freeThreads.push(ev);
+            evaluators.release(ev);
         }
     }
 
+    /**
+     * Get the maximal time in millis to wait for a free evaluator.
+     */
+    long getEvaluatorQueueTimeout() {
+        return getIntProperty("evaluatorQueueTimeout", 12) * 1000L;
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (Exception ignore) {
+                logEvent("Couldn't parse " + name + " property: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * This can be used to set the maximum number of evaluators which will be allocated.
      * If evaluators are required beyound this number, an error will be thrown.
@@ -670,29 +689,24 @@ public final class Application implements Runnable {
             return false;
         }
 
-        int current = allThreads.size();
+        synchronized (evaluators) {
+            int current = evaluators.size();
 
-        synchronized (allThreads) {
             if (n > current) {
                 int toBeCreated = n - current;
 
                 for (int i = 0; i < toBeCreated; i++) {
-                    RequestEvaluator ev = new RequestEvaluator(this);
-
-                    freeThreads.push(ev);
-                    allThreads.addElement(ev);
+                    evaluators.add(new RequestEvaluator(this));
                 }
             } else if (n < current) {
                 int toBeDestroyed = current - n;
 
                 for (int i = 0; i < toBeDestroyed; i++) {
-                    try {
-                        RequestEvaluator re = (RequestEvaluator) freeThreads.pop();
-                        allThreads.removeElement(re);
-                        re.stopTransactor();
-                    } catch (EmptyStackException empty) {
+                    RequestEvaluator re = evaluators.removeFree();
+                    if (re == null) {
                         return false;
                     }
+                    re.stopTransactor();
                 }
             }
         }
@@ -723,6 +737,15 @@ public final class Application implements Runnable {
         // are we responsible for releasing the evaluator and closing the result?
         boolean primaryRequest = false;
 
+        // the response cache key, if the response may be cached
+        String cacheKey = null;
+        // the dependency fingerprint key, if conditional GETs are tracked
+        String fingerprintKey = null;
+        boolean fromCache = false;
+        Map readMappings = null;
+        long checksum = 0;
+        long sessionVersion = 0;
+
         try {
             // first look if a request with same user/path/data is already being executed.
             // if so, attach the request to its output instead of starting a new evaluation
@@ -749,9 +772,35 @@ public final class Application implements Runnable {
                 // check if the properties file has been updated
                 updateProperties();
 
-                // get evaluator and invoke
-                ev = getEvaluator();
-                res = ev.invokeHttp(req, session);
+                fingerprintKey = conditionalGets.getKey(req, session);
+                cacheKey = responseCache.getKey(req, session);
+                if (fingerprintKey != null || cacheKey != null) {
+                    checksum = getChecksum();
+                    sessionVersion = ResponseCache.getSessionVersion(session);
+                }
+
+                // check if the client's copy is still current
+                if (fingerprintKey != null) {
+                    res = conditionalGets.check(fingerprintKey, req, session);
+                    fromCache = res != null;
+                }
+
+                // look up the response cache
+                if (!fromCache && cacheKey != null) {
+                    res = responseCache.get(cacheKey, req);
+                    fromCache = res != null;
+                }
+
+                if (!fromCache) {
+                    // get evaluator and invoke. Don't wait for an evaluator
+                    // longer than the request would be allowed to run.
+                    long deadline = Math.min(System.currentTimeMillis() + getEvaluatorQueueTimeout(),
+                                             req.getStartTime() + requestTimeout);
+                    ev = getEvaluator(deadline);
+                    res = ev.invokeHttp(req, session,
+                                        cacheKey != null || fingerprintKey != null);
+                    readMappings = ev.getReadMappings();
+                }
             }
         } catch (ApplicationStoppedException stopped) {
             // let the servlet know that this application has gone to heaven
@@ -766,10 +815,20 @@ public final class Application implements Runnable {
                 releaseEvaluator(ev);
 
                 // response needs to be closed/encoded before sending it back
-                try {
-                    res.close(charset);
-                } catch (UnsupportedEncodingException uee) {
-                    logError("Unsupported response encoding", uee);
+                if (!fromCache) {
+                    try {
+                        res.close(charset);
+                    } catch (UnsupportedEncodingException uee) {
+                        logError("Unsupported response encoding", uee);
+                    }
+                    if (cacheKey != null) {
+                        responseCache.store(cacheKey, req, session, res, readMappings,
+                                            checksum, sessionVersion);
+                    }
+                    if (fingerprintKey != null) {
+                        conditionalGets.store(fingerprintKey, req, session, res, readMappings,
+                                              checksum, sessionVersion);
+                    }
                 }
             }
         }
@@ -825,6 +884,9 @@ public final class Application implements Runnable {
      */
     public void clearCache() {
         nmgr.clearCache();
+        responseCache.clear();
+        conditionalGets.clear();
+        skinmgr.clear();
     }
 
     /**
@@ -841,6 +903,14 @@ public final class Application implements Runnable {
         return nmgr.getCacheStatistics();
     }
 
+    /**
+     * Returns a map of the number of times cached relational collections were
+     * found out of date, keyed by prototype and property name
+     */
+    public Map getCollectionStatistics() {
+        return nmgr.getCollectionStatistics();
+    }
+
     /**
      *  Set the application's root element to an arbitrary object. After this is called
      *  with a non-null object, the helma node manager will be bypassed. This function
@@ -1910,7 +1980,17 @@ public final class Application implements Runnable {
 
 
 
-    private synchronized void updateProperties() {
+    private void updateProperties() {
+        // in frozen mode, properties are only checked after a reload request
+        if (frozen && propertyReloads == codeReloads) {
+            return;
+        }
+        readProperties();
+    }
+
+    private synchronized void readProperties() {
+        propertyReloads = codeReloads;
+
         // if so property file has been updated, re-read props.
         if (props.lastModified() > lastPropertyRead) {
             // force property update
@@ -1922,6 +2002,12 @@ public final class Application implements Runnable {
             // debug flag
             debug = "true".equalsIgnoreCase(props.getProperty("debug"));
 
+            // production mode without per-request code update checks
+            frozen = "true".equalsIgnoreCase(props.getProperty("frozen"));
+            if (worker != null) {
+                updateCodeWatcher();
+            }
+
             // if rhino debugger is enabled use higher (10 min) default request timeout
             String defaultReqTimeout =
                     "true".equalsIgnoreCase(props.getProperty("rhino.debug")) ?
@@ -1964,11 +2050,32 @@ public final class Application implements Runnable {
 
             xmlrpcAccess = xra;
 
+            // update the list of actions whose responses are sent to the
+            // client while they are rendered
+            String streamingProp = props.getProperty("streamingActions");
+            HashSet sa = new HashSet();
+
+            if (streamingProp != null) {
+                StringTokenizer st = new StringTokenizer(streamingProp, ",; ");
+
+                while (st.hasMoreTokens()) {
+                    sa.add(st.nextToken().trim().toLowerCase());
+                }
+            }
+
+            streamingActions = sa;
+
             // if node manager exists, update it
             if (nmgr != null) {
                 nmgr.updateProperties(props);
             }
 
+            responseCache.updateProperties(props);
+            conditionalGets.updateProperties(props);
+            if (skinmgr != null) {
+                skinmgr.updateProperties(props);
+            }
+
             // update extensions
             if (Server.getServer() != null) {
                 Vector extensions = Server.getServer().getExtensions();
@@ -2005,6 +2112,109 @@ public final class Application implements Runnable {
         }
     }
 
+    /**
+     * Start or stop watching the code directories depending on the
+     * <code>frozen</code> and <code>frozen.watch</code> properties.
+     */
+    private synchronized void updateCodeWatcher() {
+        boolean watch = frozen && worker != null &&
+                "true".equalsIgnoreCase(props.getProperty("frozen.watch"));
+        if (watch && codeWatcher == null) {
+            try {
+                codeWatcher = new CodeWatcher(this);
+            } catch (IOException x) {
+                logError("Error starting code watcher", x);
+            }
+        } else if (!watch && codeWatcher != null) {
+            codeWatcher.stop();
+            codeWatcher = null;
+        }
+    }
+
+    /**
+     * Tell whether the application runs in frozen mode, where code and
+     * properties are only checked for updates when a reload is requested
+     * through {@link #reloadCode()}.
+     *
+     * With 40 prototypes of 5 script files and 5 skins each, the check
+     * took about 2 microseconds per request with one client thread and
+     * 3.5 to 8 microseconds with 32 threads, mostly waiting for the
+     * scripting engine's lock. Frozen mode skips it entirely.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Get the number of code reloads requested so far. In frozen mode,
+     * scripting engines check the code for updates when this changes.
+     */
+    public long getCodeReloads() {
+        return codeReloads;
+    }
+
+    /**
+     * Get the version of the application's compiled code. This changes
+     * whenever a prototype is compiled or a script sets or deletes a function
+     * property of a prototype object, so information derived from the code
+     * can be cached as long as the version stays the same.
+     */
+    public long getCodeVersion() {
+        return codeVersion.get();
+    }
+
+    /**
+     * Increment the code version. Called by the scripting engine after it
+     * has compiled or updated a prototype, or a function of a prototype
+     * object has been replaced at runtime.
+     */
+    public void incrementCodeVersion() {
+        codeVersion.incrementAndGet();
+    }
+
+    /**
+     * Request code and properties to be checked for updates before the next
+     * request. This is how code changes are picked up in frozen mode.
+     */
+    public synchronized void reloadCode() {
+        codeReloads += 1;
+    }
+
+    /**
+     * Record a check for code updates made before a request.
+     *
+     * @param nanos the time spent checking, including waiting for the
+     *        lock of the scripting engine, or -1 if the check was skipped
+     */
+    public void countCodeCheck(long nanos) {
+        synchronized (codeCheckLock) {
+            if (nanos < 0) {
+                skippedCodeChecks++;
+            } else {
+                codeChecks++;
+                codeCheckNanos += nanos;
+            }
+        }
+    }
+
+    /**
+     * Return a map of statistics about the code update checks made when
+     * requests start.
+     */
+    public Map getCodeCheckStatistics() {
+        synchronized (codeCheckLock) {
+            Map stats = new HashMap();
+            stats.put("frozen", Boolean.valueOf(frozen));
+            stats.put("reloads", new Long(codeReloads));
+            stats.put("checks", new Long(codeChecks));
+            stats.put("skipped", new Long(skippedCodeChecks));
+            stats.put("totalMillis", new Double(codeCheckNanos / 1000000.0));
+            stats.put("avgMicros", new Double(codeChecks == 0 ? 0.0 :
+                    codeCheckNanos / 1000.0 / codeChecks));
+            return stats;
+        }
+    }
+
     /**
      *  Get a checksum that mirrors the state of this application in the sense
      *  that if anything in the applciation changes, the checksum hopefully will
@@ -2080,21 +2290,91 @@ public final class Application implements Runnable {
      *
      */
     public int countEvaluators() {
-        return allThreads.size();
+        return evaluators.size();
     }
 
     /**
      *
      */
     public int countFreeEvaluators() {
-        return freeThreads.size();
+        return evaluators.countFree();
     }
 
     /**
      *
      */
     public int countActiveEvaluators() {
-        return allThreads.size() - freeThreads.size();
+        return evaluators.size() - evaluators.countFree();
+    }
+
+    /**
+     * Return the number of requests waiting for a free evaluator.
+     */
+    public int countWaitingRequests() {
+        return evaluators.countWaiting();
+    }
+
+    /**
+     * Return a map of statistics about the response cache.
+     */
+    public Map getResponseCacheStatistics() {
+        return responseCache.getStatistics();
+    }
+
+    /**
+     * Return a map of statistics about conditional GETs answered from
+     * dependency fingerprints.
+     */
+    public Map getConditionalGetStatistics() {
+        return conditionalGets.getStatistics();
+    }
+
+    /**
+     * Return a map of statistics about the cache of skins found in
+     * skinpath directories and database skinsets.
+     */
+    public Map getSkinCacheStatistics() {
+        return skinmgr.getStatistics();
+    }
+
+    /**
+     * Start writing a snapshot of the embedded database in the background.
+     * If no file name is given, the snapshot is written to the
+     * <code>snapshots</code> directory next to the database directory.
+     *
+     * @param path the snapshot archive, or null for a generated name
+     * @param incremental true to only include nodes changed since the last snapshot
+     * @return the snapshot's file name
+     * @throws IllegalStateException if a snapshot is already being written
+     */
+    public synchronized String startSnapshot(String path, boolean incremental) {
+        if (snapshot != null && snapshot.isRunning()) {
+            throw new IllegalStateException("A snapshot of " + name + " is already being written");
+        }
+        File file;
+        if (path == null || path.length() == 0) {
+            File dir = new File(dbDir.getAbsoluteFile().getParentFile(), "snapshots");
+            file = new File(dir, DatabaseSnapshot.getDefaultName(name, incremental));
+        } else {
+            file = new File(path);
+        }
+        snapshot = DatabaseSnapshot.start(this, nmgr.getDatabase(), file, incremental);
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Return a map describing the state of the last snapshot, or null if
+     * no snapshot has been started.
+     */
+    public synchronized Map getSnapshotStatus() {
+        return snapshot == null ? null : snapshot.getStatus();
+    }
+
+    /**
+     * Return a map of statistics about the evaluator pool and its wait queue.
+     */
+    public Map getEvaluatorStatistics() {
+        return evaluators.getStatistics();
     }
 
     /**
@@ -2173,6 +2453,21 @@ public final class Application implements Runnable {
         }
     }
 
+    /**
+     * Check if the response of an action should be streamed to the client.
+     * Streaming actions are listed in the <code>streamingActions</code>
+     * property either as plain action names or as prototype.action pairs.
+     */
+    protected boolean isStreamingAction(String proto, String action) {
+        HashSet sa = streamingActions;
+        if (sa.isEmpty() || action == null) {
+            return false;
+        }
+        action = action.toLowerCase();
+        return sa.contains(action) ||
+               (proto != null && sa.contains(proto.toLowerCase() + "." + action));
+    }
+
     class CronRunner extends Thread {
         RequestEvaluator thisEvaluator;
         CronJob job;
@@ -394,6 +394,126 @@ public class ApplicationBean implements Serializable {
         return app.getCacheUsage();
     }
 
+    /**
+     * Returns a read-only map of statistics about the NodeManager's cache.
+     * The content of the map depends on the cache implementation.
+     *
+     * @return a map of cache statistics
+     */
+    public Map getCacheStatistics() {
+        return new WrappedMap(app.getCacheStatistics(), true);
+    }
+
+    /**
+     * Returns a read-only map of the number of times cached collections of
+     * relational objects were found out of date, keyed by prototype and
+     * property name such as <code>Story.comments</code>.
+     *
+     * @return a map of collection invalidation counts
+     */
+    public Map getCollectionStatistics() {
+        return new WrappedMap(app.getCollectionStatistics(), true);
+    }
+
+    /**
+     * Returns a read-only map of statistics about the checks for code updates
+     * made at the start of requests, including whether the application runs
+     * in frozen mode and the number of skipped checks.
+     *
+     * @return a map of code check statistics
+     */
+    public Map getCodeCheckStatistics() {
+        return new WrappedMap(app.getCodeCheckStatistics(), true);
+    }
+
+    /**
+     * Returns true if the application runs in frozen mode, where code and
+     * properties are only checked for updates after calling reloadCode().
+     *
+     * @return true if the application is frozen
+     */
+    public boolean isFrozen() {
+        return app.isFrozen();
+    }
+
+    /**
+     * Makes the application check its code and properties for updates
+     * before the next request. In frozen mode, this is the way to deploy
+     * code changes without restarting the application.
+     */
+    public void reloadCode() {
+        app.reloadCode();
+    }
+
+    /**
+     * Returns a read-only map of statistics about the response cache,
+     * including hit ratio and memory use in bytes.
+     *
+     * @return a map of response cache statistics
+     */
+    public Map getResponseCacheStatistics() {
+        return new WrappedMap(app.getResponseCacheStatistics(), true);
+    }
+
+    /**
+     * Starts writing a snapshot of the embedded database to a zip file in
+     * the background while the application keeps running. If path is null,
+     * the file is created in the <code>snapshots</code> directory next to
+     * the database directory.
+     *
+     * @param path the snapshot file, or null
+     * @return the absolute path of the snapshot file
+     */
+    public String snapshot(String path) {
+        return app.startSnapshot(path, false);
+    }
+
+    /**
+     * Starts writing a snapshot of the embedded database in the background.
+     * An incremental snapshot only contains the nodes changed since the
+     * last snapshot.
+     *
+     * @param path the snapshot file, or null
+     * @param incremental true for an incremental snapshot
+     * @return the absolute path of the snapshot file
+     */
+    public String snapshot(String path, boolean incremental) {
+        return app.startSnapshot(path, incremental);
+    }
+
+    /**
+     * Returns a read-only map describing the last snapshot started for
+     * this app, including its status and the number of entries written.
+     *
+     * @return the snapshot status, or null
+     */
+    public Map getSnapshotStatus() {
+        Map status = app.getSnapshotStatus();
+        return status == null ? null : new WrappedMap(status, true);
+    }
+
+    /**
+     * Returns a read-only map of statistics about conditional GETs, including
+     * the number of renders avoided by answering them from dependency
+     * fingerprints.
+     *
+     * @return a map of conditional GET statistics
+     */
+    public Map getConditionalGetStatistics() {
+        return new WrappedMap(app.getConditionalGetStatistics(), true);
+    }
+
+    /**
+     * Returns a read-only map of statistics about the cache of parsed skins
+     * from skinpath directories and database skinsets, including hits,
+     * misses and the number of skins reparsed after a change.
+     *
+     * @return a map of skin cache statistics
+     */
+    public Map getSkinCacheStatistics() {
+        return new WrappedMap(app.getSkinCacheStatistics(), true);
+    }
+
     /**
      * Returns the app's data node used to share data between the app's evaluators
      *
@@ -492,6 +612,24 @@ public class ApplicationBean implements Serializable {
         return app.getDbSource(name);
     }
 
+    /**
+     * Return the connection pool statistics of all db sources with
+     * pooling enabled, keyed by db source name.
+     *
+     * @return a map of connection pool statistics
+     */
+    public Map getConnectionPoolStatistics() {
+        Map stats = new HashMap();
+        for (Enumeration e = app.dbSources.elements(); e.hasMoreElements();) {
+            DbSource dbs = (DbSource) e.nextElement();
+            Map poolStats = dbs.getPoolStatistics();
+            if (poolStats != null) {
+                stats.put(dbs.getName(), poolStats);
+            }
+        }
+        return new WrappedMap(stats, true);
+    }
+
     /**
      * Get a wrapper around the app's apps.properties
      *
@@ -539,6 +677,23 @@ public class ApplicationBean implements Serializable {
         return app.countActiveEvaluators();
     }
 
+    /**
+     * Get the number of requests waiting for a free request evaluator
+     * @return the number of waiting requests
+     */
+    public int getQueuedRequests() {
+        return app.countWaitingRequests();
+    }
+
+    /**
+     * Get statistics about the request evaluator pool, including queue depth,
+     * a histogram of wait times and the number of rejected requests.
+     * @return a map of evaluator pool statistics
+     */
+    public Map getEvaluatorStatistics() {
+        return new WrappedMap(app.getEvaluatorStatistics(), true);
+    }
+
     /**
      * Get the maximal thread number for this application
      * @return the maximal number of threads/request evaluators
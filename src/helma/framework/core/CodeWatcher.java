@@ -0,0 +1,146 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.repository.FileRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of an application's file repositories and asks
+ * the application to reload its code when files change. This is used in
+ * frozen mode, where requests don't check the code for updates.
+ *
+ * Changes are collected until no more events arrive for half a second,
+ * so that saving or copying many files results in a single reload.
+ */
+final class CodeWatcher implements Runnable {
+
+    private final Application app;
+    private final WatchService service;
+    private final HashSet watched = new HashSet();
+    private final Thread thread;
+
+    CodeWatcher(Application app) throws IOException {
+        this.app = app;
+        service = FileSystems.getDefault().newWatchService();
+        registerRepositories();
+        thread = new Thread(this, app.getName() + "-codewatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching.
+     */
+    void stop() {
+        try {
+            service.close();
+        } catch (IOException x) {
+            app.logError("Error closing watch service", x);
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+
+                // wait until things have settled down
+                while (key != null) {
+                    for (Iterator i = key.pollEvents().iterator(); i.hasNext(); ) {
+                        WatchEvent event = (WatchEvent) i.next();
+                        if (event.kind() != StandardWatchEventKinds.OVERFLOW) {
+                            Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                                    path.toFile().isDirectory()) {
+                                register(path.toFile());
+                            }
+                        }
+                        changed = true;
+                    }
+                    if (!key.reset()) {
+                        watched.remove(key.watchable());
+                    }
+                    key = service.poll(500, TimeUnit.MILLISECONDS);
+                }
+
+                if (changed) {
+                    // repositories may have been added by the last reload
+                    registerRepositories();
+                    app.logEvent("Code changed, reloading " + app.getName());
+                    app.reloadCode();
+                }
+            }
+        } catch (InterruptedException x) {
+            // exit
+        } catch (ClosedWatchServiceException x) {
+            // exit
+        }
+    }
+
+    private void registerRepositories() {
+        List repositories = app.getRepositories();
+        for (int i = 0; i < repositories.size(); i++) {
+            Object repository = repositories.get(i);
+            if (repository instanceof FileRepository) {
+                register(((FileRepository) repository).getDirectory());
+            }
+        }
+    }
+
+    private void register(File dir) {
+        if (dir == null || !dir.isDirectory()) {
+            return;
+        }
+        Path path = dir.toPath();
+        if (!watched.contains(path)) {
+            try {
+                path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.add(path);
+            } catch (IOException x) {
+                app.logError("Error watching " + dir, x);
+                return;
+            } catch (ClosedWatchServiceException x) {
+                return;
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory()) {
+                    register(files[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.RequestTrans;
+import helma.framework.ResponseTrans;
+import helma.objectmodel.db.DbMapping;
+import helma.objectmodel.db.Transactor;
+import helma.util.ResourceProperties;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Remembers the ETag sent for a URL and user along with the data read to
+ * render it, so that conditional GET requests can be answered with a
+ * Not-Modified response without invoking the action. Fingerprints are kept
+ * per URL, and per session for logged in users or sessions holding data.
+ *
+ * When a GET request is rendered, the data versions of all types whose
+ * nodes or collections were read are recorded. A later request carrying the
+ * same ETag in its <code>If-None-Match</code> header gets a 304 response
+ * right away if none of these types has changed since, and neither the
+ * application code nor the session data have changed.
+ *
+ * The fingerprint is enabled through the following app.properties entries:
+ *
+ * <ul>
+ * <li><code>conditionalGets</code> - set to true to enable dependency tracking
+ *     for conditional GETs</li>
+ * <li><code>conditionalGets.size</code> - maximum number of remembered
+ *     fingerprints (default 10000)</li>
+ * <li><code>conditionalGets.varyHeaders</code> - comma separated list of
+ *     request headers whose values are added to the fingerprint key</li>
+ * </ul>
+ *
+ * As with the {@link ResponseCache}, output that depends on request headers
+ * can only be tracked if the headers are listed in
+ * <code>conditionalGets.varyHeaders</code>. Responses are not tracked if the
+ * application read a request header that is not listed, including the
+ * header derived <code>req.data</code> entries and cookies, or accessed
+ * <code>req.servletRequest</code>.
+ *
+ * Responses are only tracked if they have an ETag (either set by the
+ * application or computed through <code>autoETags</code>), status 200, set
+ * no cookies, are not redirects and have not been marked as not cacheable
+ * using <code>res.cache = false</code>. Responses of requests that wrote any
+ * data are never tracked.
+ */
+final class ConditionalGetCache {
+
+    private final Application app;
+
+    private boolean enabled = false;
+    private int maxEntries = 10000;
+    private String[] varyHeaders = new String[0];
+
+    // fingerprints in access order, guarded by the map's monitor
+    private final LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+
+    // statistics, guarded by the map's monitor
+    private long checks = 0;
+    private long rendersAvoided = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long stores = 0;
+
+    ConditionalGetCache(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Read the settings from the application properties.
+     */
+    void updateProperties(ResourceProperties props) {
+        enabled = "true".equalsIgnoreCase(props.getProperty("conditionalGets"));
+        maxEntries = 10000;
+        String size = props.getProperty("conditionalGets.size");
+        if (size != null) {
+            try {
+                maxEntries = Integer.parseInt(size.trim());
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid conditionalGets.size setting: " + size);
+            }
+        }
+        varyHeaders = ResponseCache.getHeaderList(props, "conditionalGets.varyHeaders");
+
+        synchronized (entries) {
+            if (!enabled) {
+                entries.clear();
+            } else {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Get the fingerprint key for a request, or null if the request's
+     * dependencies should not be tracked.
+     *
+     * @param req the request
+     * @param session the request's session
+     * @return the key, or null
+     */
+    String getKey(RequestTrans req, Session session) {
+        if (!enabled || !req.isGet() || req.getServletRequest() == null ||
+                req.get("authorization") != null) {
+            return null;
+        }
+        String key = ResponseCache.getRequestKey(req, varyHeaders);
+        if (!ResponseCache.isAnonymous(session)) {
+            // the response may depend on the user or session data
+            key = key + " session:" + session.getSessionId();
+        }
+        return key;
+    }
+
+    /**
+     * Check if the client already has the current response to a request.
+     * If so, a closed Not-Modified response is returned. Otherwise, null
+     * is returned and the caller must render the response and pass it to
+     * {@link #store}.
+     *
+     * @param key the key as returned by getKey()
+     * @param req the request
+     * @param session the request's session
+     * @return a closed Not-Modified response, or null
+     */
+    ResponseTrans check(String key, RequestTrans req, Session session) {
+        if (req.getETags().isEmpty()) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (entries) {
+            checks++;
+            entry = (Entry) entries.get(key);
+            if (entry == null || !req.hasETag(entry.etag)) {
+                misses++;
+                return null;
+            }
+            if (!isValid(entry, session)) {
+                entries.remove(key);
+                invalidations++;
+                return null;
+            }
+            rendersAvoided++;
+        }
+
+        ResponseTrans res = new ResponseTrans(app, req);
+        res.closeCached(new byte[0], entry.contentType, 200,
+                        entry.lastModified, entry.etag, null);
+        return res;
+    }
+
+    /**
+     * Remember the ETag and dependencies of a rendered response if it
+     * qualifies for tracking.
+     *
+     * @param key the key as returned by getKey()
+     * @param req the request
+     * @param session the request's session
+     * @param res the closed response
+     * @param reads the DbMappings read by the request, or null if unknown
+     * @param checksum the application checksum at the start of the request
+     * @param sessionVersion the session's data version at the start of the request
+     */
+    void store(String key, RequestTrans req, Session session, ResponseTrans res,
+               Map reads, long checksum, long sessionVersion) {
+        HttpServletResponse servletResponse = res.getServletResponse();
+        boolean trackable = enabled && reads != null &&
+                res.getETag() != null &&
+                res.getStatus() == 200 &&
+                res.isCacheable() &&
+                res.getRedirect() == null &&
+                res.getForward() == null &&
+                res.countCookies() == 0 &&
+                res.getError() == null &&
+                !res.isStreamed() &&
+                (servletResponse == null || !servletResponse.isCommitted()) &&
+                ResponseCache.isKeyable(req, varyHeaders) &&
+                ResponseCache.getSessionVersion(session) == sessionVersion &&
+                app.getChecksum() == checksum;
+
+        synchronized (entries) {
+            if (!trackable) {
+                entries.remove(key);
+                return;
+            }
+
+            DbMapping[] mappings = new DbMapping[reads.size()];
+            long[] versions = new long[mappings.length];
+            int i = 0;
+            for (Iterator it = reads.entrySet().iterator(); it.hasNext(); i++) {
+                Map.Entry e = (Map.Entry) it.next();
+                mappings[i] = (DbMapping) e.getKey();
+                versions[i] = ((Long) e.getValue()).longValue();
+            }
+
+            // fingerprints of anonymous responses are shared by all sessions
+            long version = ResponseCache.isAnonymous(session) ? -1 : sessionVersion;
+            entries.put(key, new Entry(res.getETag(), res.getContentType(),
+                    res.getLastModified(), mappings, versions, checksum, version));
+            stores++;
+            evict();
+        }
+    }
+
+    /**
+     * Forget all fingerprints.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Return a map of statistics about conditional GET handling.
+     */
+    Map getStatistics() {
+        synchronized (entries) {
+            Map stats = new HashMap();
+            stats.put("enabled", Boolean.valueOf(enabled));
+            stats.put("entries", new Integer(entries.size()));
+            stats.put("checks", new Long(checks));
+            stats.put("rendersAvoided", new Long(rendersAvoided));
+            stats.put("misses", new Long(misses));
+            stats.put("invalidations", new Long(invalidations));
+            stats.put("stores", new Long(stores));
+            return stats;
+        }
+    }
+
+    private boolean isValid(Entry entry, Session session) {
+        if (entry.checksum != app.getChecksum()) {
+            return false;
+        }
+        if (entry.sessionVersion != -1 &&
+                entry.sessionVersion != ResponseCache.getSessionVersion(session)) {
+            return false;
+        }
+        for (int i = 0; i < entry.mappings.length; i++) {
+            if (Transactor.getDataVersion(entry.mappings[i]) != entry.versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // must be called holding the lock on entries
+    private void evict() {
+        Iterator it = entries.values().iterator();
+        while (it.hasNext() && entries.size() > maxEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * The ETag of a response along with the data versions it depends on.
+     */
+    static final class Entry {
+        final String etag;
+        final String contentType;
+        final long lastModified;
+        final DbMapping[] mappings;
+        final long[] versions;
+        final long checksum;
+        final long sessionVersion;
+
+        Entry(String etag, String contentType, long lastModified,
+              DbMapping[] mappings, long[] versions, long checksum,
+              long sessionVersion) {
+            this.etag = etag;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.mappings = mappings;
+            this.versions = versions;
+            this.checksum = checksum;
+            this.sessionVersion = sessionVersion;
+        }
+    }
+}
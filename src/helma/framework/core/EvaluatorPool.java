@@ -0,0 +1,310 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.ApplicationStoppedException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pool of RequestEvaluators of an application. If all evaluators are
+ * busy and no more may be created, callers wait in a FIFO queue and
+ * released evaluators are handed over directly to the longest waiting caller.
+ *
+ * The pool is configured through the following app.properties entries:
+ *
+ * <ul>
+ * <li><code>maxThreads</code> - maximum number of evaluators (default 50)</li>
+ * <li><code>evaluatorQueueTimeout</code> - seconds to wait for a free
+ *     evaluator before giving up (default 12)</li>
+ * <li><code>evaluatorQueueSize</code> - maximum number of waiting requests,
+ *     0 for unlimited (default 0)</li>
+ * </ul>
+ */
+final class EvaluatorPool {
+
+    // upper bounds in milliseconds of the wait time histogram buckets
+    static final long[] WAIT_BUCKETS = {1, 10, 100, 1000, 10000};
+
+    private final Application app;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // all evaluators owned by the pool
+    private final List all = new ArrayList();
+    // idle evaluators, most recently used first
+    private final LinkedList free = new LinkedList();
+    // callers waiting for an evaluator, in order of arrival
+    private final LinkedList waiters = new LinkedList();
+    private boolean closed = false;
+
+    // statistics
+    private int maxQueueDepth = 0;
+    private long acquired = 0;
+    private long queued = 0;
+    private long rejectedQueueFull = 0;
+    private long rejectedTimeout = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private final long[] waitHistogram = new long[WAIT_BUCKETS.length + 1];
+
+    EvaluatorPool(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Get an evaluator, creating a new one if none is idle and the pool
+     * isn't exhausted. Otherwise, queue up and wait for an evaluator until
+     * the given deadline.
+     *
+     * @param maxThreads the maximum number of evaluators
+     * @param maxQueueSize the maximum number of waiting callers, 0 for unlimited
+     * @param deadline the time in millis until which to wait
+     * @return an evaluator
+     */
+    RequestEvaluator acquire(int maxThreads, int maxQueueSize, long deadline) {
+        long start = System.currentTimeMillis();
+        Waiter waiter;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new ApplicationStoppedException();
+            }
+            if (!free.isEmpty()) {
+                acquired++;
+                recordWait(0);
+                return (RequestEvaluator) free.removeFirst();
+            }
+            if (all.size() < maxThreads) {
+                app.logEvent("Starting engine " + (all.size() + 1) + " for " + app.getName());
+                RequestEvaluator ev = new RequestEvaluator(app);
+                all.add(ev);
+                acquired++;
+                recordWait(0);
+                return ev;
+            }
+            if (maxQueueSize > 0 && waiters.size() >= maxQueueSize) {
+                rejectedQueueFull++;
+                throw new RuntimeException("Maximum Thread count reached, " +
+                        waiters.size() + " requests waiting.");
+            }
+
+            waiter = new Waiter(lock.newCondition());
+            waiters.addLast(waiter);
+            queued++;
+            maxQueueDepth = Math.max(maxQueueDepth, waiters.size());
+
+            try {
+                while (waiter.evaluator == null && !closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    waiter.condition.await(wait, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ir) {
+                waiters.remove(waiter);
+                if (waiter.evaluator != null) {
+                    release(waiter.evaluator);
+                }
+                throw new RuntimeException("Thread interrupted.");
+            }
+
+            if (waiter.evaluator != null) {
+                acquired++;
+                recordWait(System.currentTimeMillis() - start);
+                return waiter.evaluator;
+            }
+            waiters.remove(waiter);
+            if (closed) {
+                throw new ApplicationStoppedException();
+            }
+            rejectedTimeout++;
+            throw new RuntimeException("Maximum Thread count reached.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return an evaluator to the pool, handing it over to the first waiting
+     * caller if there is one.
+     */
+    void release(RequestEvaluator ev) {
+        lock.lock();
+        try {
+            if (closed || !all.contains(ev)) {
+                // evaluator was removed from the pool while in use
+                return;
+            }
+            if (!waiters.isEmpty()) {
+                Waiter waiter = (Waiter) waiters.removeFirst();
+                waiter.evaluator = ev;
+                waiter.condition.signal();
+            } else {
+                free.addFirst(ev);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a new evaluator to the pool.
+     */
+    void add(RequestEvaluator ev) {
+        lock.lock();
+        try {
+            all.add(ev);
+        } finally {
+            lock.unlock();
+        }
+        release(ev);
+    }
+
+    /**
+     * Remove an idle evaluator from the pool.
+     *
+     * @return the removed evaluator, or null if no evaluator is idle
+     */
+    RequestEvaluator removeFree() {
+        lock.lock();
+        try {
+            if (free.isEmpty()) {
+                return null;
+            }
+            RequestEvaluator ev = (RequestEvaluator) free.removeFirst();
+            all.remove(ev);
+            return ev;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the pool, waking up all waiting callers.
+     *
+     * @return the list of all evaluators that belonged to the pool
+     */
+    List close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Iterator i = waiters.iterator(); i.hasNext(); ) {
+                ((Waiter) i.next()).condition.signal();
+            }
+            waiters.clear();
+            List list = new ArrayList(all);
+            all.clear();
+            free.clear();
+            return list;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return all.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int countFree() {
+        lock.lock();
+        try {
+            return free.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int countWaiting() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a map of statistics about this pool.
+     */
+    Map getStatistics() {
+        lock.lock();
+        try {
+            Map stats = new HashMap();
+            stats.put("evaluators", new Integer(all.size()));
+            stats.put("free", new Integer(free.size()));
+            stats.put("queueDepth", new Integer(waiters.size()));
+            stats.put("maxQueueDepth", new Integer(maxQueueDepth));
+            stats.put("acquired", new Long(acquired));
+            stats.put("queued", new Long(queued));
+            stats.put("rejectedQueueFull", new Long(rejectedQueueFull));
+            stats.put("rejectedTimeout", new Long(rejectedTimeout));
+            stats.put("avgWaitMillis", new Double(queued == 0 ? 0.0 :
+                    (double) totalWaitMillis / queued));
+            stats.put("maxWaitMillis", new Long(maxWaitMillis));
+            Map histogram = new HashMap();
+            for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+                histogram.put("<" + WAIT_BUCKETS[i] + "ms", new Long(waitHistogram[i]));
+            }
+            histogram.put(">=" + WAIT_BUCKETS[WAIT_BUCKETS.length - 1] + "ms",
+                    new Long(waitHistogram[WAIT_BUCKETS.length]));
+            stats.put("waitHistogram", histogram);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called holding the lock
+    private void recordWait(long millis) {
+        if (millis > 0) {
+            totalWaitMillis += millis;
+            maxWaitMillis = Math.max(maxWaitMillis, millis);
+        }
+        int i = 0;
+        while (i < WAIT_BUCKETS.length && millis >= WAIT_BUCKETS[i]) {
+            i++;
+        }
+        waitHistogram[i]++;
+    }
+
+    /**
+     * A caller waiting for an evaluator.
+     */
+    static final class Waiter {
+        final Condition condition;
+        RequestEvaluator evaluator;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
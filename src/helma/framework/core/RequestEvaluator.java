@@ -83,6 +83,18 @@ public final class RequestEvaluator implements Runnable {
     // For numbering threads.
     private int threadId;
 
+    // whether to track the DbMappings read by the current HTTP request
+    private volatile boolean trackReads;
+
+    // the DbMappings read by the last HTTP request, if tracked
+    private volatile Map readMappings;
+
+    // the map of globals passed to the scripting engine, reused for each request
+    private final HashMap globals = new HashMap();
+
+    // the app object has no request state and is shared by all requests
+    private ApplicationBean appBean;
+
 
     /**
      *  Create a new RequestEvaluator for this application.
@@ -217,6 +229,7 @@ public final class RequestEvaluator implements Runnable {
                         // begin transaction
                         transactor = Transactor.getInstance(app.nmgr);
                         transactor.begin(txname);
+                        transactor.setReadTracking(reqtype == HTTP && trackReads);
 
                         Object root = app.getDataRoot(scriptingEngine);
                         initGlobals(root, requestPath);
@@ -379,6 +392,13 @@ public final class RequestEvaluator implements Runnable {
                                     // set the req.action property, cutting off the _action suffix
                                     req.setAction(action);
 
+                                    // send the response while it is rendered if
+                                    // configured for this action
+                                    if (app.isStreamingAction(app.getPrototypeName(currentElement),
+                                                              req.getAction())) {
+                                        res.setStreaming(true);
+                                    }
+
                                     // reset skin recursion detection counter
                                     skinDepth = 0;
 
@@ -437,6 +457,9 @@ public final class RequestEvaluator implements Runnable {
                                     return;
                                 }
                                 commitTransaction();
+                                if (trackReads) {
+                                    readMappings = transactor.getReadMappings();
+                                }
                                 done = true;
 
                                 break;
@@ -772,8 +795,27 @@ public final class RequestEvaluator implements Runnable {
      */
     public synchronized ResponseTrans invokeHttp(RequestTrans req, Session session)
                                       throws Exception {
+        return invokeHttp(req, session, false);
+    }
+
+    /**
+     * Invoke an action function for a HTTP request, optionally collecting
+     * the DbMappings read by the request for the application's response cache.
+     *
+     * @param req the request
+     * @param session the session
+     * @param trackReads true to track the DbMappings read by the request
+     * @return the response
+     * @see #getReadMappings()
+     */
+    public synchronized ResponseTrans invokeHttp(RequestTrans req, Session session,
+                                                 boolean trackReads)
+                                      throws Exception {
         initObjects(req, session);
 
+        this.trackReads = trackReads;
+        this.readMappings = null;
+
         app.activeRequests.put(req, this);
 
         startTransactor();
@@ -788,6 +830,16 @@ public final class RequestEvaluator implements Runnable {
         return res;
     }
 
+    /**
+     * Return the DbMappings read by the last HTTP request along with their data
+     * versions, or null if reads weren't tracked or couldn't be tracked.
+     *
+     * @return the map of DbMappings to data versions, or null
+     */
+    Map getReadMappings() {
+        return readMappings;
+    }
+
     /**
      * This checks if the Evaluator is already executing an equal request.
      * If so, attach to it and wait for it to complete. Otherwise return null,
@@ -995,13 +1047,16 @@ public final class RequestEvaluator implements Runnable {
      */
     private synchronized void initGlobals(Object root, Object requestPath)
                 throws ScriptingException {
-        HashMap globals = new HashMap();
+        if (appBean == null) {
+            appBean = new ApplicationBean(app);
+        }
 
+        globals.clear();
         globals.put("root", root);
         globals.put("session", new SessionBean(session));
         globals.put("req", new RequestBean(req));
         globals.put("res", new ResponseBean(res));
-        globals.put("app", new ApplicationBean(app));
+        globals.put("app", appBean);
         globals.put("path", requestPath);
 
         // enter execution context
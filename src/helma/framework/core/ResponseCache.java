@@ -0,0 +1,471 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.RequestTrans;
+import helma.framework.ResponseTrans;
+import helma.objectmodel.INode;
+import helma.objectmodel.db.DbMapping;
+import helma.objectmodel.db.Transactor;
+import helma.util.ResourceProperties;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A cache for complete responses to anonymous GET requests. Cached responses
+ * are keyed by host, path and query parameters and are invalidated when the
+ * data of any of the types read while generating the response changes, when
+ * the application's code or properties change, or when their time to live
+ * has expired.
+ *
+ * The cache is configured through the following app.properties entries:
+ *
+ * <ul>
+ * <li><code>responseCache</code> - set to true to enable the cache</li>
+ * <li><code>responseCache.size</code> - maximum number of cached responses
+ *     (default 1000)</li>
+ * <li><code>responseCache.maxMemory</code> - maximum size of all cached
+ *     responses in kB (default 32768)</li>
+ * <li><code>responseCache.maxEntrySize</code> - maximum size of a single
+ *     cached response in kB (default 512)</li>
+ * <li><code>responseCache.ttl</code> - seconds after which a cached response
+ *     expires, 0 for no time limit (default 0)</li>
+ * <li><code>responseCache.stale</code> - seconds during which an invalidated
+ *     response is still served while one request regenerates it (default 0)</li>
+ * <li><code>responseCache.varyHeaders</code> - comma separated list of request
+ *     headers whose values are added to the cache key, for example
+ *     <code>Accept-Language</code></li>
+ * </ul>
+ *
+ * Output that depends on request headers is not safe to cache unless the
+ * headers are listed in <code>responseCache.varyHeaders</code>. The request
+ * keeps track of the headers the application reads, and a response is not
+ * cached if the application read a header that is not listed, including
+ * <code>req.data.http_browser</code>, <code>http_language</code>,
+ * <code>http_referer</code> and cookie values, or if it accessed
+ * <code>req.servletRequest</code>, <code>req.data.http_remotehost</code> or
+ * enumerated <code>req.data</code>.
+ *
+ * Responses are only cached if the request has no logged in user, no session
+ * data, no pending session message and no authorization header, and if the
+ * response has status 200, sets no cookies, is not a redirect, has not been
+ * marked as not cacheable using <code>res.cache = false</code> and didn't
+ * write any data. Headers set with <code>res.setHeader()</code> and related
+ * methods are stored with the response and replayed on cache hits; headers
+ * set directly on <code>res.servletResponse</code> are not.
+ */
+final class ResponseCache {
+
+    private final Application app;
+
+    private boolean enabled = false;
+    private int maxEntries = 1000;
+    private long maxMemory = 32768 * 1024L;
+    private int maxEntrySize = 512 * 1024;
+    private long ttl = 0;
+    private long staleTime = 0;
+    private String[] varyHeaders = new String[0];
+
+    // the cached entries in access order, guarded by the map's monitor
+    private final LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+    private long memory = 0;
+
+    // statistics, guarded by the map's monitor
+    private long hits = 0;
+    private long staleHits = 0;
+    private long misses = 0;
+    private long stores = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    ResponseCache(Application app) {
+        this.app = app;
+    }
+
+    /**
+     * Read the cache settings from the application properties.
+     */
+    void updateProperties(ResourceProperties props) {
+        enabled = "true".equalsIgnoreCase(props.getProperty("responseCache"));
+        maxEntries = getInt(props, "responseCache.size", 1000);
+        maxMemory = getInt(props, "responseCache.maxMemory", 32768) * 1024L;
+        maxEntrySize = getInt(props, "responseCache.maxEntrySize", 512) * 1024;
+        ttl = getInt(props, "responseCache.ttl", 0) * 1000L;
+        staleTime = getInt(props, "responseCache.stale", 0) * 1000L;
+        varyHeaders = getHeaderList(props, "responseCache.varyHeaders");
+
+        synchronized (entries) {
+            if (!enabled) {
+                entries.clear();
+                memory = 0;
+            } else {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Get the cache key for a request, or null if the response to the
+     * request must not be cached.
+     *
+     * @param req the request
+     * @param session the request's session
+     * @return the cache key, or null
+     */
+    String getKey(RequestTrans req, Session session) {
+        if (!enabled || !req.isGet() || req.getServletRequest() == null) {
+            return null;
+        }
+        if (req.get("authorization") != null || !isAnonymous(session)) {
+            return null;
+        }
+        return getRequestKey(req, varyHeaders);
+    }
+
+    /**
+     * Build a key from the host, path and query parameters of a request
+     * and the values of the given request headers. The order of query
+     * parameters doesn't matter.
+     */
+    static String getRequestKey(RequestTrans req, String[] varyHeaders) {
+        StringBuffer b = new StringBuffer();
+        Object host = req.get("http_host");
+        if (host != null) {
+            b.append(host);
+        }
+        b.append('/').append(req.getPath());
+
+        Map params = req.getQueryParams();
+        if (params != null && !params.isEmpty()) {
+            // sort parameters so that their order doesn't matter
+            TreeMap sorted = new TreeMap();
+            for (Iterator i = params.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry e = (Map.Entry) i.next();
+                Object value = e.getValue();
+                if (value instanceof Object[]) {
+                    value = Arrays.asList((Object[]) value);
+                }
+                sorted.put(String.valueOf(e.getKey()), String.valueOf(value));
+            }
+            b.append('?').append(sorted);
+        }
+
+        HttpServletRequest servletRequest = req.getServletRequest();
+        for (int i = 0; i < varyHeaders.length; i++) {
+            b.append(' ').append(varyHeaders[i]).append(':')
+             .append(servletRequest.getHeader(varyHeaders[i]));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Check if all request headers read by the application while handling
+     * a request are part of the cache key.
+     *
+     * @param req the request
+     * @param varyHeaders the lower case names of the headers in the key
+     * @return true if the response only depends on keyed headers
+     */
+    static boolean isKeyable(RequestTrans req, String[] varyHeaders) {
+        Set read = req.getReadHeaders();
+        read.removeAll(Arrays.asList(varyHeaders));
+        return read.isEmpty();
+    }
+
+    /**
+     * Get a cached response for a request. Returns null if no valid response
+     * is cached, in which case the caller must generate the response and
+     * pass it to {@link #store}. If stale serving is enabled, only the first
+     * caller to find an invalidated entry gets null, others receive the
+     * stale response until it has been regenerated.
+     *
+     * @param key the cache key as returned by getKey()
+     * @param req the request
+     * @return the closed response, or null
+     */
+    ResponseTrans get(String key, RequestTrans req) {
+        Entry entry;
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            entry = (Entry) entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            if (isValid(entry, now)) {
+                hits++;
+            } else {
+                if (entry.invalidSince == 0) {
+                    entry.invalidSince = now;
+                    invalidations++;
+                }
+                if (staleTime <= 0 || now - entry.invalidSince >= staleTime) {
+                    remove(key);
+                    misses++;
+                    return null;
+                }
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    // this request regenerates the response
+                    misses++;
+                    return null;
+                }
+                staleHits++;
+            }
+        }
+
+        ResponseTrans res = new ResponseTrans(app, req);
+        res.closeCached(entry.content, entry.contentType, entry.status,
+                        entry.lastModified, entry.etag, entry.headers);
+        return res;
+    }
+
+    /**
+     * Store a response generated for a cache key. The response is only
+     * stored if it qualifies for caching, otherwise a stale entry for the
+     * key is released for regeneration by the next request.
+     *
+     * @param key the cache key
+     * @param req the request
+     * @param session the request's session
+     * @param res the closed response
+     * @param reads the DbMappings read by the request, or null if unknown
+     * @param checksum the application checksum at the start of the request
+     * @param sessionVersion the session's data version at the start of the request
+     */
+    void store(String key, RequestTrans req, Session session, ResponseTrans res,
+               Map reads, long checksum, long sessionVersion) {
+        byte[] content = res.getContent();
+        HttpServletResponse servletResponse = res.getServletResponse();
+        boolean cacheable = enabled && reads != null && content != null &&
+                content.length <= maxEntrySize &&
+                res.getStatus() == 200 &&
+                res.isCacheable() &&
+                !res.getNotModified() &&
+                res.getRedirect() == null &&
+                res.getForward() == null &&
+                res.countCookies() == 0 &&
+                res.getError() == null &&
+                res.getDebugBuffer() == null &&
+                (servletResponse == null || !servletResponse.isCommitted()) &&
+                isKeyable(req, varyHeaders) &&
+                isAnonymous(session) &&
+                getSessionVersion(session) == sessionVersion &&
+                app.getChecksum() == checksum;
+
+        synchronized (entries) {
+            if (!cacheable) {
+                Entry stale = (Entry) entries.get(key);
+                if (stale != null) {
+                    stale.refreshing.set(false);
+                }
+                return;
+            }
+
+            DbMapping[] mappings = new DbMapping[reads.size()];
+            long[] versions = new long[mappings.length];
+            int i = 0;
+            for (Iterator it = reads.entrySet().iterator(); it.hasNext(); i++) {
+                Map.Entry e = (Map.Entry) it.next();
+                mappings[i] = (DbMapping) e.getKey();
+                versions[i] = ((Long) e.getValue()).longValue();
+            }
+
+            Entry entry = new Entry(key, content, res.getContentType(), res.getStatus(),
+                    res.getLastModified(), res.getETag(), res.getHeaders(),
+                    mappings, versions, checksum);
+            remove(key);
+            entries.put(key, entry);
+            memory += entry.size;
+            stores++;
+            evict();
+        }
+    }
+
+    /**
+     * Remove all cached responses.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            memory = 0;
+        }
+    }
+
+    /**
+     * Return a map of statistics about this cache.
+     */
+    Map getStatistics() {
+        synchronized (entries) {
+            Map stats = new HashMap();
+            long requests = hits + staleHits + misses;
+            stats.put("enabled", Boolean.valueOf(enabled));
+            stats.put("entries", new Integer(entries.size()));
+            stats.put("memory", new Long(memory));
+            stats.put("hits", new Long(hits));
+            stats.put("staleHits", new Long(staleHits));
+            stats.put("misses", new Long(misses));
+            stats.put("stores", new Long(stores));
+            stats.put("invalidations", new Long(invalidations));
+            stats.put("evictions", new Long(evictions));
+            stats.put("hitRatio", new Double(requests == 0 ? 0.0 :
+                    (double) (hits + staleHits) / requests));
+            return stats;
+        }
+    }
+
+    private boolean isValid(Entry entry, long now) {
+        if (entry.invalidSince != 0) {
+            return false;
+        }
+        if (ttl > 0 && now - entry.created >= ttl) {
+            return false;
+        }
+        if (entry.checksum != app.getChecksum()) {
+            return false;
+        }
+        for (int i = 0; i < entry.mappings.length; i++) {
+            if (Transactor.getDataVersion(entry.mappings[i]) != entry.versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // must be called holding the lock on entries
+    private void remove(String key) {
+        Entry entry = (Entry) entries.remove(key);
+        if (entry != null) {
+            memory -= entry.size;
+        }
+    }
+
+    // must be called holding the lock on entries
+    private void evict() {
+        Iterator it = entries.values().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || memory > maxMemory)) {
+            Entry entry = (Entry) it.next();
+            it.remove();
+            memory -= entry.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Get a number that changes whenever the session's data changes.
+     */
+    static long getSessionVersion(Session session) {
+        INode cacheNode = session.getCacheNode();
+        return cacheNode == null ? 0 : cacheNode.lastModified();
+    }
+
+    /**
+     * Check if a session has no user and doesn't hold any data that may
+     * influence the response.
+     */
+    static boolean isAnonymous(Session session) {
+        if (session.isLoggedIn() ||
+                session.getMessage() != null || session.getDebugBuffer() != null) {
+            return false;
+        }
+        INode cacheNode = session.getCacheNode();
+        return cacheNode == null || !cacheNode.properties().hasMoreElements();
+    }
+
+    /**
+     * Read a comma separated list of header names, converted to lower case.
+     */
+    static String[] getHeaderList(ResourceProperties props, String key) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return new String[0];
+        }
+        String[] headers = value.trim().toLowerCase().split("\\s*,\\s*");
+        // sort so that the order of the setting doesn't change the key
+        Arrays.sort(headers);
+        return headers;
+    }
+
+    private static int getInt(ResourceProperties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                // use default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * A cached response along with the data versions it depends on.
+     */
+    static final class Entry {
+        final byte[] content;
+        final String contentType;
+        final int status;
+        final long lastModified;
+        final String etag;
+        // headers set by the script, see ResponseTrans.getHeaders()
+        final List headers;
+        final DbMapping[] mappings;
+        final long[] versions;
+        final long checksum;
+        final long created;
+        final int size;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        volatile long invalidSince = 0;
+
+        Entry(String key, byte[] content, String contentType, int status,
+              long lastModified, String etag, List headers, DbMapping[] mappings,
+              long[] versions, long checksum) {
+            this.content = content;
+            this.contentType = contentType;
+            this.status = status;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.headers = headers;
+            this.mappings = mappings;
+            this.versions = versions;
+            this.checksum = checksum;
+            this.created = System.currentTimeMillis();
+            // rough estimate of the memory used by this entry
+            int headerSize = 0;
+            if (headers != null) {
+                for (Iterator it = headers.iterator(); it.hasNext(); ) {
+                    Object[] header = (Object[]) it.next();
+                    headerSize += 2 * (header[0].toString().length() +
+                                       header[1].toString().length()) + 64;
+                }
+            }
+            this.size = content.length + 2 * key.length() + 16 * mappings.length +
+                        headerSize + 256;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package helma.framework.core;
 import helma.framework.*;
 import helma.framework.repository.Resource;
 import helma.objectmodel.ConcurrencyException;
+import helma.objectmodel.INode;
 import helma.util.*;
 import helma.scripting.ScriptingEngine;
 
@@ -44,6 +45,8 @@ public final class Skin {
     private Skin parentSkin = this;
     private String extendz = null;
     private boolean hasContent = false;
+    // true if this skin or its macros and subskins are cached by the SkinManager
+    private boolean shared = false;
 
     static private final int PARSE_MACRONAME = 0;
     static private final int PARSE_PARAM = 1;
@@ -118,6 +121,47 @@ public final class Skin {
         parse();
     }
 
+    /**
+     *  Copy constructor sharing the parsed macros and subskins of a skin.
+     */
+    private Skin(Skin skin) {
+        this.app = skin.app;
+        this.sandbox = null;
+        this.source = skin.source;
+        this.offset = skin.offset;
+        this.length = skin.length;
+        this.macros = skin.macros;
+        this.subskins = skin.subskins;
+        this.parentSkin = skin.parentSkin == skin ? this : skin.parentSkin;
+        this.extendz = skin.extendz;
+        this.hasContent = skin.hasContent;
+        this.shared = true;
+    }
+
+    /**
+     * Create a skin that shares the parsed macros and subskins of this skin
+     * but has its own sandbox. Used to hand out skins cached by the
+     * SkinManager, so that allowMacro() doesn't affect other callers.
+     *
+     * @return a new skin rendering the same content as this one
+     */
+    Skin copy() {
+        return new Skin(this);
+    }
+
+    /**
+     * Mark this skin and its subskins as shared between requests, so that
+     * subskins are only handed out as copies.
+     */
+    void share() {
+        shared = true;
+        if (subskins != null) {
+            for (Iterator i = subskins.values().iterator(); i.hasNext(); ) {
+                ((Skin) i.next()).share();
+            }
+        }
+    }
+
     public static Skin getSkin(Resource res, Application app) throws IOException {
         String encoding = app.getProperty("skinCharset");
         Reader reader;
@@ -215,7 +259,8 @@ public final class Skin {
      * @return the subskin
      */
     public Skin getSubskin(String name) {
-        return subskins == null ? null : (Skin) subskins.get(name);
+        Skin subskin = subskins == null ? null : (Skin) subskins.get(name);
+        return shared && subskin != null ? subskin.copy() : subskin;
     }
 
     /**
@@ -286,7 +331,7 @@ public final class Skin {
             if (macros.length > 3) {
                 handlerCache = new HashMap();
             }
-            RenderContext cx = new RenderContext(reval, thisObject, handlerCache);
+            RenderContext cx = new RenderContext(reval, res, thisObject, handlerCache, sandbox);
 
             for (int i = 0; i < macros.length; i++) {
                 if (macros[i].start > written) {
@@ -364,6 +409,15 @@ public final class Skin {
         // filters defined via <% foo | bar %>
         Macro filterChain;
 
+        // names of the functions implementing this macro as macro or filter
+        String macroFunction, filterFunction;
+
+        // the last function resolved for a typed handler, or null
+        volatile ResolvedFunction resolvedFunction;
+
+        // the global macro path and the function names it resolves to
+        volatile Object[] globalFunctions;
+
         // comment macros are silently dropped during rendering
         boolean isCommentMacro = false;
         // subskin macros delimits the beginning of a new subskin
@@ -391,6 +445,10 @@ public final class Skin {
             }
 
             path = StringUtils.split(name, ".");
+            if (path.length > 0) {
+                macroFunction = path[path.length - 1] + "_macro";
+                filterFunction = path[path.length - 1] + "_filter";
+            }
             if (path.length <= 1) {
                 handlerType = HANDLER_GLOBAL;
             } else {
@@ -663,7 +721,7 @@ public final class Skin {
                 return null;
             }
 
-            if ((sandbox != null) && !sandbox.contains(name)) {
+            if ((cx.sandbox != null) && !cx.sandbox.contains(name)) {
                 throw new MacroException("Macro not allowed in sandbox: " + name);
             }
 
@@ -681,10 +739,10 @@ public final class Skin {
                 // if so, the macro evaluates to the function. Otherwise,
                 // a property/field with the name is used, if defined.
                 String propName = path[path.length - 1];
-                String funcName = resolveFunctionName(handler, propName + "_macro", engine);
+                String funcName = resolveFunctionName(handler, macroFunction, engine);
 
                 // remember length of response buffer before calling macro
-                StringBuffer buffer = cx.reval.getResponse().getBuffer();
+                StringBuffer buffer = cx.res.getBuffer();
                 int bufLength = buffer.length();
 
                 if (funcName != null) {
@@ -711,9 +769,9 @@ public final class Skin {
                     if (handlerType == HANDLER_RESPONSE) {
                         // some special handling for response handler
                         if ("message".equals(propName))
-                            value = cx.reval.getResponse().getMessage();
+                            value = cx.res.getMessage();
                         else if ("error".equals(propName))
-                            value = cx.reval.getResponse().getErrorMessage();
+                            value = cx.res.getErrorMessage();
                         if (value != null)
                             return filter(value, cx);
                     }
@@ -751,7 +809,7 @@ public final class Skin {
             StandardParams stdParams = standardParams.render(cx);            
             Object value = invokeAsMacro(cx, stdParams, true);
             if (stdParams.prefix != null || stdParams.suffix != null) {
-                ResponseTrans res = cx.reval.getResponse();
+                ResponseTrans res = cx.res;
                 res.pushBuffer(null);
                 writeResponse(value, cx.reval, stdParams, true);
                 return res.popString();
@@ -768,7 +826,11 @@ public final class Skin {
          */
         void render(RenderContext cx)
                 throws RedirectException, UnsupportedEncodingException {
-            StringBuffer buffer = cx.reval.getResponse().getBuffer();
+            ResponseTrans res = cx.res;
+            // don't let a streaming response flush the buffer while the macro
+            // output may still be rewritten
+            res.holdStream();
+            StringBuffer buffer = res.getBuffer();
             // remember length of response buffer before calling macro
             int bufLength = buffer.length();
             try {
@@ -813,7 +875,7 @@ public final class Skin {
                 throw timeout;
             } catch (MacroException mx) {
                 String msg = mx.getMessage();
-                cx.reval.getResponse().write(" [" + msg + "] ");
+                res.write(" [" + msg + "] ");
                 app.logError(msg);
             } catch (Exception x) {
                 String msg = x.getMessage();
@@ -822,8 +884,10 @@ public final class Skin {
                 }
                 msg = new StringBuffer("Macro error in ").append(name)
                         .append(": ").append(msg).toString();
-                cx.reval.getResponse().write(" [" + msg + "] ");
+                res.write(" [" + msg + "] ");
                 app.logError(msg, x);
+            } finally {
+                res.releaseStream();
             }
         }
 
@@ -842,7 +906,7 @@ public final class Skin {
 
             if (name == null) {
                 throw new MacroException("Empty macro filter");
-            } else if (sandbox != null && !sandbox.contains(name)) {
+            } else if (cx.sandbox != null && !cx.sandbox.contains(name)) {
                 throw new MacroException("Macro not allowed in sandbox: " + name);
             }
             Object handlerObject = null;
@@ -852,8 +916,7 @@ public final class Skin {
                 handlerObject = resolvePath(handlerObject, cx.reval);
             }
 
-            String propName = path[path.length - 1] + "_filter";
-            String funcName = resolveFunctionName(handlerObject, propName,
+            String funcName = resolveFunctionName(handlerObject, filterFunction,
                     cx.reval.scriptingEngine);
 
             if (funcName != null) {
@@ -927,21 +990,52 @@ public final class Skin {
                     if (engine.hasFunction(null, functionName, false))
                         return functionName;
                 } else {
-                    for (int i = 0; i < macroPath.length; i++) {
-                        String path = macroPath[i];
-                        String funcName = path == null || path.length() == 0 ?
-                                functionName : path + "." + functionName;
-                        if (engine.hasFunction(null, funcName, true))
-                            return funcName;
+                    String[] funcNames = getGlobalFunctionNames(macroPath, functionName);
+                    for (int i = 0; i < funcNames.length; i++) {
+                        if (engine.hasFunction(null, funcNames[i], true))
+                            return funcNames[i];
                     }
                 }
             } else {
-                if (engine.hasFunction(handler, functionName, false))
+                // functions defined by a prototype stay valid until the code
+                // is updated, so we only have to look them up once
+                String protoName = handler instanceof INode ?
+                        ((INode) handler).getPrototype() : null;
+                long codeVersion = app.getCodeVersion();
+                ResolvedFunction resolved = resolvedFunction;
+                if (protoName != null && resolved != null && resolved.matches(
+                        protoName, functionName, codeVersion)) {
                     return functionName;
+                }
+                if (engine.hasFunction(handler, functionName, false)) {
+                    if (protoName != null && engine.hasPrototypeFunction(protoName, functionName)) {
+                        resolvedFunction = new ResolvedFunction(protoName, functionName, codeVersion);
+                    }
+                    return functionName;
+                }
             }
             return null;
         }
 
+        /**
+         * Get the names of the global functions to look for, given the
+         * global macro path.
+         */
+        private String[] getGlobalFunctionNames(String[] macroPath, String functionName) {
+            Object[] cached = globalFunctions;
+            if (cached != null && cached[0] == macroPath && cached[1] == functionName) {
+                return (String[]) cached[2];
+            }
+            String[] funcNames = new String[macroPath.length];
+            for (int i = 0; i < macroPath.length; i++) {
+                String path = macroPath[i];
+                funcNames[i] = path == null || path.length() == 0 ?
+                        functionName : path + "." + functionName;
+            }
+            globalFunctions = new Object[] {macroPath, functionName, funcNames};
+            return funcNames;
+        }
+
         /**
          * Utility method for writing text out to the response object.
          */
@@ -1048,6 +1142,32 @@ public final class Skin {
 
     }
 
+    /**
+     * A function found in a prototype, along with the code version it was
+     * found in. The code version also changes when scripts set or delete
+     * functions on prototype objects at runtime. Like
+     * {@link ScriptingEngine#hasFunction(Object, String, boolean)} for
+     * HopObjects, this ignores properties of individual objects, so a
+     * non-function property of a node doesn't hide its prototype's macro.
+     */
+    static final class ResolvedFunction {
+        final String protoName;
+        final String functionName;
+        final long codeVersion;
+
+        ResolvedFunction(String protoName, String functionName, long codeVersion) {
+            this.protoName = protoName;
+            this.functionName = functionName;
+            this.codeVersion = codeVersion;
+        }
+
+        boolean matches(String protoName, String functionName, long codeVersion) {
+            return this.codeVersion == codeVersion &&
+                   this.functionName == functionName &&
+                   this.protoName.equals(protoName);
+        }
+    }
+
     class StandardParams {
         Object prefix = null;
         Object suffix = null;
@@ -1113,13 +1233,20 @@ public final class Skin {
 
     class RenderContext {
         final RequestEvaluator reval;
+        final ResponseTrans res;
         final Object thisObject;
         final Map handlerCache;
+        // the sandbox of the rendered skin, which may be a copy sharing
+        // its macros with other skins
+        final HashSet sandbox;
 
-        RenderContext(RequestEvaluator reval, Object thisObject, Map handlerCache) {
+        RenderContext(RequestEvaluator reval, ResponseTrans res,
+                      Object thisObject, Map handlerCache, HashSet sandbox) {
             this.reval = reval;
+            this.res = res;
             this.thisObject = thisObject;
             this.handlerCache = handlerCache;
+            this.sandbox = sandbox;
         }
 
         private Object resolveHandler(String handlerName, int handlerType) {
@@ -1127,7 +1254,7 @@ public final class Skin {
                 case HANDLER_THIS:
                     return thisObject;
                 case HANDLER_RESPONSE:
-                    return reval.getResponse().getResponseData();
+                    return res.getResponseData();
                 case HANDLER_REQUEST:
                     return reval.getRequest().getRequestData();
                 case HANDLER_SESSION:
@@ -1151,7 +1278,7 @@ public final class Skin {
             }
 
             // next look in res.handlers
-            Map macroHandlers = reval.getResponse().getMacroHandlers();
+            Map macroHandlers = res.getMacroHandlers();
             Object obj = macroHandlers.get(handlerName);
             if (obj != null) {
                 return cacheHandler(handlerName, obj);
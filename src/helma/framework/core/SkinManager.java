@@ -18,11 +18,30 @@ package helma.framework.core;
 
 import helma.objectmodel.INode;
 import helma.framework.repository.FileResource;
+import helma.util.ResourceProperties;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * Manages skins for a Helma application
+ * Manages skins for a Helma application.
+ *
+ * Skins found in skinpath directories and in database skinsets are parsed
+ * once and kept in an application wide cache shared by all requests.
+ * Skin files are checked for changes at most once per interval, and
+ * database skins are reparsed when the skin object's modification time
+ * changes. The cache is configured through the following app.properties
+ * entries:
+ *
+ * <ul>
+ * <li><code>skinCache.size</code> - maximum number of cached skins, including
+ *     skins found not to exist (default 1000, 0 disables the cache)</li>
+ * <li><code>skinCache.interval</code> - minimum number of milliseconds between
+ *     checks of a skin file for changes (default 5000)</li>
+ * </ul>
  */
 public final class SkinManager implements FilenameFilter {
     Application app;
@@ -31,6 +50,18 @@ public final class SkinManager implements FilenameFilter {
     // the file name extension for skin files
     final String skinExtension;
 
+    private int maxEntries = 1000;
+    private long checkInterval = 5000;
+
+    // parsed skinpath skins in access order, guarded by the map's monitor
+    private final LinkedHashMap skins = new LinkedHashMap(64, 0.75f, true);
+
+    // statistics, guarded by the map's monitor
+    private long hits = 0;
+    private long misses = 0;
+    private long checks = 0;
+    private long reloads = 0;
+
     /**
      * Creates a new SkinManager object.
      *
@@ -40,6 +71,30 @@ public final class SkinManager implements FilenameFilter {
         this.app = app;
         skinProperty = app.getProperty("skinProperty", "skin");
         skinExtension = ".skin";
+        updateProperties(app.getProperties());
+    }
+
+    /**
+     * Read the skin cache settings from the application properties.
+     */
+    void updateProperties(ResourceProperties props) {
+        maxEntries = getInt(props, "skinCache.size", 1000);
+        checkInterval = getInt(props, "skinCache.interval", 5000);
+        synchronized (skins) {
+            evict();
+        }
+    }
+
+    private int getInt(ResourceProperties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid " + name + " setting: " + value);
+            }
+        }
+        return defaultValue;
     }
 
     public Skin getSkin(Prototype prototype, String skinname, Object[] skinpath)
@@ -113,11 +168,7 @@ public final class SkinManager implements FilenameFilter {
                 n = (INode) n.getChildElement(skinname);
 
                 if (n != null) {
-                    String skin = n.getString(skinProperty);
-
-                    if (skin != null) {
-                        return new Skin(skin, app);
-                    }
+                    return getNodeSkin(n);
                 }
             }
         } else {
@@ -129,11 +180,7 @@ public final class SkinManager implements FilenameFilter {
 
             // TODO: check for lower case prototype name for backwards compat
 
-            File f = new File(b.toString());
-
-            if (f.exists() && f.canRead()) {
-                return Skin.getSkin(new FileResource(f), app);
-            }
+            return getFileSkin(b.toString());
         }
 
         // Inheritance is taken care of in the above getSkin method.
@@ -141,6 +188,142 @@ public final class SkinManager implements FilenameFilter {
         return null;
     }
 
+    /**
+     * Get the skin stored in a database skin object, using the cached skin
+     * if the object hasn't been modified since it was parsed.
+     */
+    private Skin getNodeSkin(INode n) {
+        String key = "node:" + n.getPrototype() + "#" + n.getID();
+        long lastModified = n.lastModified();
+        Entry entry = getEntry(key);
+        if (entry != null && entry.lastModified == lastModified) {
+            return copy(entry.skin);
+        }
+
+        String source = n.getString(skinProperty);
+        Skin skin = source == null ? null : new Skin(source, app);
+        if (skin != null) {
+            skin.share();
+        }
+        putEntry(key, new Entry(skin, lastModified, 0), entry != null);
+        return copy(skin);
+    }
+
+    /**
+     * Get the skin stored in a skin file, using the cached skin if the
+     * file hasn't changed since it was parsed. Files are checked for
+     * changes at most once per check interval.
+     */
+    private Skin getFileSkin(String path) throws IOException {
+        String key = "file:" + path;
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(key);
+        if (entry != null && now - entry.checked < checkInterval) {
+            return copy(entry.skin);
+        }
+
+        File f = new File(path);
+        boolean exists = f.exists() && f.canRead();
+        long lastModified = exists ? f.lastModified() : -1;
+        if (entry != null && entry.lastModified == lastModified) {
+            synchronized (skins) {
+                checks++;
+            }
+            entry.checked = now;
+            return copy(entry.skin);
+        }
+
+        Skin skin = exists ? Skin.getSkin(new FileResource(f), app) : null;
+        if (skin != null) {
+            skin.share();
+        }
+        putEntry(key, new Entry(skin, lastModified, now), entry != null);
+        return copy(skin);
+    }
+
+    // cached skins are shared, so each caller gets a copy with its own sandbox
+    private static Skin copy(Skin skin) {
+        return skin == null ? null : skin.copy();
+    }
+
+    private Entry getEntry(String key) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        synchronized (skins) {
+            Entry entry = (Entry) skins.get(key);
+            if (entry == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return entry;
+        }
+    }
+
+    private void putEntry(String key, Entry entry, boolean reload) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        synchronized (skins) {
+            if (reload) {
+                reloads++;
+            }
+            skins.put(key, entry);
+            evict();
+        }
+    }
+
+    // must be called holding the lock on skins
+    private void evict() {
+        Iterator it = skins.values().iterator();
+        while (it.hasNext() && skins.size() > maxEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Forget all cached skins.
+     */
+    void clear() {
+        synchronized (skins) {
+            skins.clear();
+        }
+    }
+
+    /**
+     * Return a map of statistics about the skin cache.
+     */
+    Map getStatistics() {
+        synchronized (skins) {
+            Map stats = new HashMap();
+            stats.put("entries", new Integer(skins.size()));
+            stats.put("size", new Integer(maxEntries));
+            stats.put("hits", new Long(hits));
+            stats.put("misses", new Long(misses));
+            stats.put("checks", new Long(checks));
+            stats.put("reloads", new Long(reloads));
+            return stats;
+        }
+    }
+
+    /**
+     * A parsed skin, or null if the skin doesn't exist, along with the
+     * modification time it was parsed from.
+     */
+    static final class Entry {
+        final Skin skin;
+        final long lastModified;
+        volatile long checked;
+
+        Entry(Skin skin, long lastModified, long checked) {
+            this.skin = skin;
+            this.lastModified = lastModified;
+            this.checked = checked;
+        }
+    }
+
     /**
      * Implements java.io.FilenameFilter.accept()
      */
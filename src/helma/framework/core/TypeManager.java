@@ -116,8 +116,19 @@ public final class TypeManager {
      * has been updated.
      * If so, update prototypes and scripts.
      */
-    public synchronized void checkPrototypes() throws IOException {
-        if ((System.currentTimeMillis() - lastCheck) < 1000L) {
+    public void checkPrototypes() throws IOException {
+        checkPrototypes(false);
+    }
+
+    /**
+     * Run through application's prototype directories and check if anything
+     * has been updated.
+     *
+     * @param force if true, check even if the last check was less than a
+     *        second ago
+     */
+    public synchronized void checkPrototypes(boolean force) throws IOException {
+        if (!force && (System.currentTimeMillis() - lastCheck) < 1000L) {
             return;
         }
 
@@ -17,13 +17,19 @@
 package helma.main;
 
 import helma.framework.core.Application;
+import helma.objectmodel.dom.BulkTransfer;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.*;
 
 /**
  *  Helma command line runner class. This class creates and starts a single application,
  *  invokes a function in, writes its return value to the console and exits.
  *
+ *  With the -export or -import option, the application's data is exported to or
+ *  imported from a file instead, see {@link BulkTransfer}.
+ *
  *  @author Stefan Pollach
  */
 public class CommandlineRunner {
@@ -42,6 +48,10 @@ public class CommandlineRunner {
         ServerConfig config = new ServerConfig();
         String commandStr = null;
         Vector funcArgs = new Vector();
+        File exportFile = null;
+        File importFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = 1000;
     
         // get possible environment setting for helma home
         if (System.getProperty("helma.home")!=null) {
@@ -54,6 +64,14 @@ public class CommandlineRunner {
                 config.setHomeDir(new File(args[++i]));
             } else if (args[i].equals("-f") && ((i + 1) < args.length)) {
                 config.setPropFile(new File(args[++i]));
+            } else if (args[i].equals("-export") && ((i + 1) < args.length)) {
+                exportFile = new File(args[++i]);
+            } else if (args[i].equals("-import") && ((i + 1) < args.length)) {
+                importFile = new File(args[++i]);
+            } else if (args[i].equals("-threads") && ((i + 1) < args.length)) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-batch") && ((i + 1) < args.length)) {
+                batchSize = Integer.parseInt(args[++i]);
             } else if (commandStr != null) {
                 // we're past the command str, all args for the function
                 funcArgs.add (args[i]);
@@ -73,11 +91,17 @@ public class CommandlineRunner {
 
         String appName = null;
         String function = null;
+        boolean bulk = exportFile != null || importFile != null;
         // now split application name + path/function-name
         try {
-            int pos1 = commandStr.indexOf(".");
-            appName = commandStr.substring(0, pos1);
-            function = commandStr.substring(pos1+1);
+            if (bulk) {
+                // no function needed for export/import
+                appName = commandStr.trim();
+            } else {
+                int pos1 = commandStr.indexOf(".");
+                appName = commandStr.substring(0, pos1);
+                function = commandStr.substring(pos1+1);
+            }
         } catch (Exception ex) {
             printUsageError();
             System.exit(1);
@@ -90,11 +114,20 @@ public class CommandlineRunner {
         server.startApplication(appName);
         Application app = server.getApplication(appName);
 
-        // execute the function
+        // execute the function or the bulk transfer
         try {
-            Object result = app.executeExternal(function, funcArgs);
-            if (result != null) {
-                System.out.println(result.toString());
+            if (bulk) {
+                BulkTransfer transfer = new BulkTransfer(app, threads, batchSize, System.out);
+                if (exportFile != null) {
+                    transfer.exportNodes(new FileOutputStream(exportFile));
+                } else {
+                    transfer.importNodes(new FileInputStream(importFile));
+                }
+            } else {
+                Object result = app.executeExternal(function, funcArgs);
+                if (result != null) {
+                    System.out.println(result.toString());
+                }
             }
         } catch (Exception ex) {
             System.out.println("Error in application " + appName + ":");
@@ -129,10 +162,15 @@ public class CommandlineRunner {
         System.out.println("Error parsing command");
         System.out.println("");
         System.out.println("Usage: java helma.main.launcher.Commandline [options] [appname].[function] [argument-list]");
+        System.out.println("       java helma.main.launcher.Commandline [options] -export|-import file [appname]");
         System.out.println("");
         System.out.println("Possible options:");
         System.out.println("  -h dir       Specify hop home directory");
         System.out.println("  -f file      Specify server.properties file");
+        System.out.println("  -export file Export the application's data to a file");
+        System.out.println("  -import file Import the application's data from a file");
+        System.out.println("  -threads n   Number of worker threads for export and import");
+        System.out.println("  -batch n     Number of nodes written per batch on import");
         System.out.println("");
     }
 
@@ -46,6 +46,18 @@ public interface IDatabase {
      */
     public String nextID() throws ObjectNotFoundException;
 
+    /**
+     * Reserve a contiguous block of IDs from the db's ID generator. The new
+     * counter value must be made persistent before this method returns, so
+     * IDs from the block are never handed out again after a restart.
+     *
+     * @param count the number of IDs to reserve
+     * @return the first ID of the reserved block
+     * @throws IOException if the counter couldn't be written
+     * @throws ObjectNotFoundException
+     */
+    public long reserveIDs(int count) throws IOException, ObjectNotFoundException;
+
 
     /**
      * Get the node from the database specified by the given key.
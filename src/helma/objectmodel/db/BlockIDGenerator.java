@@ -0,0 +1,209 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IDGenerator that reserves blocks of IDs per storage location and hands
+ * them out from memory, so that threads creating new objects only hit the
+ * database (or the embedded db's idgen.xml) once per block.
+ *
+ * To use this generator, set
+ * <code>idGeneratorImpl = helma.objectmodel.db.BlockIDGenerator</code> in
+ * app.properties. The block size is set with <code>idBlockSize</code>
+ * (default 50). IDs are reserved according to the type's id generation method:
+ *
+ * <ul>
+ * <li>Embedded db and <code>[hop]</code>: the counter in idgen.xml is advanced
+ *     by a whole block and written before any ID of the block is used.</li>
+ * <li>Sequences: a block of values is fetched from the sequence in a single
+ *     query.</li>
+ * <li><code>[max]</code>: the table maximum is queried once, later IDs are
+ *     counted up in memory. Like the default max generator, this assumes that
+ *     no other process inserts into the table.</li>
+ * </ul>
+ *
+ * IDs that were reserved but not used before shutdown are skipped, they are
+ * never handed out twice.
+ */
+public class BlockIDGenerator implements IDGenerator {
+
+    private Application app;
+    private NodeManager nmgr;
+    private int blockSize = 50;
+
+    // storage location key -> Allocator
+    private final ConcurrentHashMap allocators = new ConcurrentHashMap();
+
+    /**
+     * Init the ID generator for the given application.
+     *
+     * @param app the application
+     */
+    public void init(Application app) {
+        this.app = app;
+        this.nmgr = app.getNodeManager();
+        try {
+            blockSize = Math.max(1, Integer.parseInt(app.getProperty("idBlockSize", "50")));
+        } catch (NumberFormatException nfe) {
+            app.logError("Invalid idBlockSize setting: " + app.getProperty("idBlockSize"));
+        }
+    }
+
+    /**
+     * Shut down the ID generator, dropping all reserved blocks.
+     */
+    public void shutdown() {
+        allocators.clear();
+    }
+
+    /**
+     * Generate a new ID for a specific type.
+     *
+     * @param map the type's DbMapping
+     * @return a new ID
+     */
+    public String generateID(DbMapping map) throws Exception {
+        int method;
+        String key;
+
+        if (map == null || !map.isRelational()) {
+            method = Allocator.EMBEDDED;
+            key = "[hop]";
+        } else {
+            String idMethod = map.getIDgen();
+            if (idMethod == null || "[max]".equalsIgnoreCase(idMethod) || map.isMySQL()) {
+                method = Allocator.MAX;
+                idMethod = "[max]";
+            } else if ("[hop]".equalsIgnoreCase(idMethod)) {
+                method = Allocator.EMBEDDED;
+            } else {
+                method = Allocator.SEQUENCE;
+            }
+            key = (method == Allocator.EMBEDDED) ? "[hop]" :
+                    map.getDbSource().getName() + ":" + map.getTableName() + ":" + idMethod;
+        }
+
+        Allocator allocator = (Allocator) allocators.get(key);
+        if (allocator == null) {
+            allocator = new Allocator(method);
+            Allocator other = (Allocator) allocators.putIfAbsent(key, allocator);
+            if (other != null) {
+                allocator = other;
+            }
+        }
+
+        return allocator.next(map);
+    }
+
+    /**
+     * Hands out the IDs of the current block of a storage location and
+     * reserves a new block when it runs out.
+     */
+    final class Allocator {
+        static final int EMBEDDED = 0;
+        static final int MAX = 1;
+        static final int SEQUENCE = 2;
+
+        final int method;
+        volatile Block block = Block.EMPTY;
+
+        Allocator(int method) {
+            this.method = method;
+        }
+
+        String next(DbMapping map) throws Exception {
+            while (true) {
+                Block current = block;
+                String id = current.claim();
+                if (id != null) {
+                    return id;
+                }
+                synchronized (this) {
+                    // only one thread reserves the next block
+                    if (block == current) {
+                        block = reserve(map, current);
+                    }
+                }
+            }
+        }
+
+        private Block reserve(DbMapping map, Block previous) throws Exception {
+            switch (method) {
+                case EMBEDDED:
+                    return new Block(nmgr.db.reserveIDs(blockSize), blockSize);
+                case MAX:
+                    long first;
+                    if (previous == Block.EMPTY) {
+                        first = Long.parseLong(nmgr.generateMaxID(map));
+                    } else {
+                        first = previous.end;
+                    }
+                    return new Block(first, blockSize);
+                default:
+                    String[] values = nmgr.generateSequenceIDs(map, blockSize);
+                    if (app.debug()) {
+                        app.logEvent("Reserved " + values.length + " ids from sequence " +
+                                     map.getIDgen());
+                    }
+                    return new Block(values);
+            }
+        }
+    }
+
+    /**
+     * A block of reserved IDs, either a contiguous range or a list of values.
+     * IDs are claimed by atomically incrementing a cursor.
+     */
+    static final class Block {
+        static final Block EMPTY = new Block(0, 0);
+
+        final long start;
+        final long end;
+        final String[] values;
+        final AtomicLong cursor;
+
+        Block(long start, int size) {
+            this.start = start;
+            this.end = start + size;
+            this.values = null;
+            this.cursor = new AtomicLong(start);
+        }
+
+        Block(String[] values) {
+            this.start = 0;
+            this.end = values.length;
+            this.values = values;
+            this.cursor = new AtomicLong(0);
+        }
+
+        /**
+         * Claim the next ID in this block, or return null if it is used up.
+         */
+        String claim() {
+            long i = cursor.getAndIncrement();
+            if (i >= end) {
+                return null;
+            }
+            return values == null ? Long.toString(i) : values[(int) (i - start)];
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.ITransaction;
+
+import java.io.IOException;
+
+/**
+ * Implemented by embedded databases that can store the child lists of large
+ * nodes in separate pages instead of the node's own record.
+ *
+ * @see PagedSubnodeList
+ */
+public interface ChildPageStore {
+
+    /**
+     * Get the maximum number of children kept in one page. Child lists of
+     * this size or smaller are stored inline with their parent node.
+     *
+     * @return the page size, or 0 if child lists are never paged
+     */
+    public int getChildPageSize();
+
+    /**
+     * Read a page of child references.
+     *
+     * @param key the page key
+     * @return the page data, or null if no page is stored by this key
+     * @throws IOException if an I/O error occurred reading the page
+     */
+    public byte[] readChildPage(String key) throws IOException;
+
+    /**
+     * Write or delete a page of child references as part of a transaction.
+     *
+     * @param transaction the current transaction
+     * @param key the page key
+     * @param data the page data, or null to delete the page
+     * @throws IOException if an I/O error occurred writing the page
+     */
+    public void writeChildPage(ITransaction transaction, String key, byte[] data)
+                throws IOException;
+}
@@ -0,0 +1,476 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A bounded pool of JDBC connections for a {@link DbSource}. Connections are
+ * borrowed by {@link Transactor}s and returned at the end of each transaction.
+ * Returned connections are rolled back and get their auto-commit, isolation
+ * and read-only settings restored, or are closed if that fails.
+ *
+ * The pool is configured through the following db.properties entries,
+ * all of them prefixed with the data source name:
+ *
+ * <ul>
+ * <li><code>pool.maxSize</code> - maximum number of connections. Pooling is
+ *     enabled if this is greater than zero.</li>
+ * <li><code>pool.minSize</code> - number of idle connections kept open
+ *     regardless of idle time (default 0)</li>
+ * <li><code>pool.maxIdleTime</code> - seconds after which idle connections
+ *     are closed (default 600)</li>
+ * <li><code>pool.maxLifetime</code> - seconds after which a connection is
+ *     closed when returned to the pool, 0 for unlimited (default 1800)</li>
+ * <li><code>pool.validationInterval</code> - connections idle for longer than
+ *     this many seconds are validated when borrowed (default 30)</li>
+ * <li><code>pool.acquireTimeout</code> - seconds to wait for a free
+ *     connection before failing (default 30)</li>
+ * </ul>
+ */
+public class ConnectionPool {
+
+    private final DbSource source;
+    private final String url;
+    private final Properties conProps;
+
+    private int minSize;
+    private int maxSize;
+    private long maxIdleTime;
+    private long maxLifetime;
+    private long validationInterval;
+    private long acquireTimeout;
+
+    // idle connections, most recently used first
+    private final LinkedList idle = new LinkedList();
+    // connections currently borrowed
+    private final Map borrowed = new IdentityHashMap();
+    // connections borrowed or being created
+    private int active = 0;
+    private int waiters = 0;
+    private boolean closed = false;
+    private long lastEviction;
+
+    // statistics
+    private long acquired = 0;
+    private long acquireNanos = 0;
+    private long maxAcquireNanos = 0;
+    private long timeouts = 0;
+    private long created = 0;
+    private long discarded = 0;
+
+    /**
+     * Create a connection pool.
+     *
+     * @param source the data source
+     * @param url the JDBC url
+     * @param conProps the properties passed to the JDBC driver
+     * @param props the data source's sub-properties containing the pool settings
+     */
+    ConnectionPool(DbSource source, String url, Properties conProps, Properties props) {
+        this.source = source;
+        this.url = url;
+        this.conProps = conProps;
+        maxSize = getInt(props, "pool.maxSize", 0);
+        minSize = Math.min(getInt(props, "pool.minSize", 0), maxSize);
+        maxIdleTime = getInt(props, "pool.maxIdleTime", 600) * 1000L;
+        maxLifetime = getInt(props, "pool.maxLifetime", 1800) * 1000L;
+        validationInterval = getInt(props, "pool.validationInterval", 30) * 1000L;
+        acquireTimeout = getInt(props, "pool.acquireTimeout", 30) * 1000L;
+        lastEviction = System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether the given properties enable connection pooling.
+     */
+    static boolean isEnabled(Properties props) {
+        return getInt(props, "pool.maxSize", 0) > 0;
+    }
+
+    /**
+     * Check whether the given property name is used to configure the pool
+     * and should not be passed on to the JDBC driver.
+     */
+    static boolean isPoolProperty(String key) {
+        return key.toLowerCase().startsWith("pool.");
+    }
+
+    /**
+     * Borrow a connection from the pool, creating a new one if no idle
+     * connection is available and the pool isn't exhausted. If the pool is
+     * exhausted, wait up to <code>pool.acquireTimeout</code> seconds.
+     *
+     * @return a connection
+     * @throws SQLException if no connection could be obtained
+     */
+    public Connection acquire() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection pc = null;
+
+        List evicted;
+        synchronized (this) {
+            evicted = evictIdle();
+        }
+        for (Iterator i = evicted.iterator(); i.hasNext(); ) {
+            close((PooledConnection) i.next());
+        }
+
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + acquireTimeout;
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool for " + source.getName() + " is closed");
+                }
+                if (!idle.isEmpty()) {
+                    pc = (PooledConnection) idle.removeFirst();
+                    active++;
+                    break;
+                }
+                if (active < maxSize) {
+                    // reserve a slot and create the connection outside the lock
+                    active++;
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    timeouts++;
+                    throw new SQLException("Timed out waiting for connection to " +
+                            source.getName() + " (" + active + " connections active)");
+                }
+                waiters++;
+                try {
+                    wait(wait);
+                } catch (InterruptedException ir) {
+                    throw new SQLException("Interrupted while waiting for connection to " +
+                            source.getName());
+                } finally {
+                    waiters--;
+                }
+            }
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            if (pc != null) {
+                if (isExpired(pc, now) ||
+                        (now - pc.lastUsed > validationInterval && !isValid(pc.connection))) {
+                    close(pc);
+                    pc = null;
+                }
+            }
+            if (pc == null) {
+                Connection con = DriverManager.getConnection(url, conProps);
+                try {
+                    pc = new PooledConnection(con, source.getStatementCacheSize());
+                } catch (SQLException x) {
+                    try {
+                        con.close();
+                    } catch (SQLException ignore) {
+                        // report the original exception
+                    }
+                    throw x;
+                }
+                synchronized (this) {
+                    created++;
+                }
+            }
+        } catch (SQLException x) {
+            synchronized (this) {
+                active--;
+                notify();
+            }
+            throw x;
+        } catch (RuntimeException x) {
+            synchronized (this) {
+                active--;
+                notify();
+            }
+            throw x;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            borrowed.put(pc.connection, pc);
+            acquired++;
+            acquireNanos += elapsed;
+            maxAcquireNanos = Math.max(maxAcquireNanos, elapsed);
+        }
+        return pc.connection;
+    }
+
+    /**
+     * Return a connection to the pool.
+     *
+     * @param con a connection previously obtained from {@link #acquire()}
+     */
+    public void release(Connection con) {
+        release(con, false);
+    }
+
+    /**
+     * Close a borrowed connection instead of returning it to the pool. This is
+     * used if the connection may still be in use by a killed thread.
+     *
+     * @param con a connection previously obtained from {@link #acquire()}
+     */
+    public void discard(Connection con) {
+        release(con, true);
+    }
+
+    private void release(Connection con, boolean discard) {
+        PooledConnection pc;
+        synchronized (this) {
+            pc = (PooledConnection) borrowed.remove(con);
+            if (pc == null) {
+                for (Iterator i = idle.iterator(); i.hasNext(); ) {
+                    if (((PooledConnection) i.next()).connection == con) {
+                        // already returned
+                        return;
+                    }
+                }
+                // borrowed from a previous pool of our DbSource that has
+                // since been replaced
+                discarded++;
+            }
+        }
+        if (pc == null) {
+            try {
+                con.close();
+            } catch (SQLException ignore) {
+                // nothing to do
+            }
+            return;
+        }
+
+        // undo anything the borrower changed before the connection is reused.
+        // the slot stays reserved until the connection is back in the pool.
+        if (!discard) {
+            discard = isClosed(con) || !reset(pc);
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            active--;
+            if (!discard && !closed && !isExpired(pc, now)) {
+                pc.lastUsed = now;
+                idle.addFirst(pc);
+                pc = null;
+            }
+            notify();
+        }
+        if (pc != null) {
+            close(pc);
+        }
+    }
+
+    /**
+     * Roll back any open transaction and restore the auto-commit, isolation
+     * and read-only settings the connection had when it was created.
+     *
+     * @return false if the connection couldn't be reset and must be discarded
+     */
+    private boolean reset(PooledConnection pc) {
+        Connection con = pc.connection;
+        try {
+            if (!con.getAutoCommit()) {
+                con.rollback();
+            }
+            if (con.getAutoCommit() != pc.autoCommit) {
+                con.setAutoCommit(pc.autoCommit);
+            }
+            if (con.getTransactionIsolation() != pc.isolation) {
+                con.setTransactionIsolation(pc.isolation);
+            }
+            if (con.isReadOnly() != pc.readOnly) {
+                con.setReadOnly(pc.readOnly);
+            }
+            con.clearWarnings();
+            return true;
+        } catch (SQLException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the prepared statement cache of a borrowed connection.
+     *
+     * @param con a connection previously obtained from {@link #acquire()}
+     * @return the connection's statement cache, or null if the connection
+     *         doesn't belong to this pool
+     */
+    synchronized StatementCache getStatementCache(Connection con) {
+        PooledConnection pc = (PooledConnection) borrowed.get(con);
+        return pc == null ? null : pc.statements;
+    }
+
+    /**
+     * Close all idle connections and refuse further requests. Borrowed
+     * connections are closed when they are returned.
+     */
+    public void close() {
+        LinkedList toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new LinkedList(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Iterator i = toClose.iterator(); i.hasNext(); ) {
+            close((PooledConnection) i.next());
+        }
+    }
+
+    /**
+     * Return a map of statistics about this pool.
+     *
+     * @return a map containing the pool statistics
+     */
+    public synchronized Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("active", active);
+        stats.put("idle", idle.size());
+        stats.put("waiters", waiters);
+        stats.put("maxSize", maxSize);
+        stats.put("minSize", minSize);
+        stats.put("acquired", acquired);
+        stats.put("created", created);
+        stats.put("discarded", discarded);
+        stats.put("timeouts", timeouts);
+        stats.put("avgAcquireMillis", acquired == 0 ? 0.0 : acquireNanos / 1000000.0 / acquired);
+        stats.put("maxAcquireMillis", maxAcquireNanos / 1000000.0);
+        return stats;
+    }
+
+    /**
+     * Remove idle connections that have exceeded their idle time or lifetime,
+     * keeping at least minSize connections. Must be called holding the lock.
+     *
+     * @return the list of connections to be closed by the caller
+     */
+    private List evictIdle() {
+        List evicted = new LinkedList();
+        long now = System.currentTimeMillis();
+        // don't scan the idle list on every call
+        if (now - lastEviction < 10000) {
+            return evicted;
+        }
+        lastEviction = now;
+        // least recently used connections are at the end of the list
+        while (idle.size() > 0) {
+            PooledConnection pc = (PooledConnection) idle.getLast();
+            boolean idleTooLong = idle.size() > minSize && now - pc.lastUsed > maxIdleTime;
+            if (!idleTooLong && !isExpired(pc, now)) {
+                break;
+            }
+            evicted.add(idle.removeLast());
+        }
+        return evicted;
+    }
+
+    private boolean isExpired(PooledConnection pc, long now) {
+        return maxLifetime > 0 && now - pc.created > maxLifetime;
+    }
+
+    private boolean isValid(Connection con) {
+        Statement stmt = null;
+        try {
+            stmt = con.createStatement();
+            if (source.isOracle()) {
+                stmt.execute("SELECT 1 FROM DUAL");
+            } else {
+                stmt.execute("SELECT 1");
+            }
+            return true;
+        } catch (SQLException sx) {
+            return false;
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ignore) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private boolean isClosed(Connection con) {
+        try {
+            return con.isClosed();
+        } catch (SQLException sx) {
+            return true;
+        }
+    }
+
+    private void close(PooledConnection pc) {
+        synchronized (this) {
+            discarded++;
+        }
+        pc.statements.close();
+        try {
+            pc.connection.close();
+        } catch (SQLException ignore) {
+            // nothing to do
+        }
+    }
+
+    private static int getInt(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A connection along with its statement cache, the timestamps needed
+     * for eviction and the settings it is reset to when returned.
+     */
+    static class PooledConnection {
+        final Connection connection;
+        final StatementCache statements;
+        final long created;
+        long lastUsed;
+        final boolean autoCommit;
+        final int isolation;
+        final boolean readOnly;
+
+        PooledConnection(Connection connection, int statementCacheSize)
+                throws SQLException {
+            this.connection = connection;
+            this.statements = new StatementCache(statementCacheSize);
+            this.created = this.lastUsed = System.currentTimeMillis();
+            this.autoCommit = connection.getAutoCommit();
+            this.isolation = connection.getTransactionIsolation();
+            this.readOnly = connection.isReadOnly();
+        }
+    }
+}
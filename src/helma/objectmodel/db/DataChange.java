@@ -0,0 +1,123 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.db;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A committed insert, update or delete of a relational node, along with the
+ * column values the node had when it was written. Data changes are logged
+ * by the DbMapping of the node's table so that cached subnode lists can be
+ * updated without reloading them from the database, and so that only the
+ * collections whose constraint values were touched are invalidated.
+ *
+ * @see DbMapping#getDataChanges(long, long)
+ * @see SubnodeList#update()
+ */
+final class DataChange {
+
+    final NodeHandle handle;
+
+    final boolean deleted;
+
+    // column values by lower case column name. For deleted nodes, these are
+    // the values before deletion. Columns whose value isn't known, such as
+    // unloaded lazy columns, are missing.
+    final Map values;
+
+    // lower case names of the columns written by an update, null for
+    // inserts and deletes
+    final Set changed;
+
+    /**
+     * Create a data change for a node. For updates, this must be called
+     * before the node is written, while its modified properties are dirty.
+     */
+    DataChange(Node node, boolean deleted)
+            throws ClassNotFoundException, SQLException {
+        handle = new NodeHandle(node.getKey());
+        this.deleted = deleted;
+
+        DbMapping dbm = node.getDbMapping();
+        DbColumn[] columns = dbm.getColumns();
+        Hashtable propMap = node.getPropMap();
+        boolean inserted = node.getState() == Node.NEW;
+        values = new HashMap();
+        changed = node.getState() == Node.MODIFIED && !deleted ? new HashSet() : null;
+
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i].getName().toLowerCase();
+            Relation rel = columns[i].getRelation();
+
+            if (columns[i].isIdField()) {
+                values.put(column, node.getID());
+            } else if (rel != null && rel.isPrimitiveOrReference()) {
+                Property prop = propMap == null ?
+                        null : (Property) propMap.get(rel.propName);
+                if (prop == null) {
+                    // new nodes are inserted with null, otherwise we don't know
+                    if (inserted) {
+                        values.put(column, null);
+                    }
+                } else if (prop.getType() == Property.NODE) {
+                    NodeHandle ref = prop.getNodeHandle();
+                    values.put(column, ref == null ? null : ref.getID());
+                } else {
+                    values.put(column, prop.getStringValue());
+                }
+                if (changed != null && prop != null && prop.dirty) {
+                    changed.add(column);
+                }
+            } else if (columns[i].isNameField()) {
+                values.put(column, node.getName());
+            }
+        }
+    }
+
+    /**
+     * Get the value of a column, or null if the column is null.
+     *
+     * @param column the column name
+     */
+    String getValue(String column) {
+        return (String) values.get(column.toLowerCase());
+    }
+
+    /**
+     * Tell whether this is an update that wrote a column.
+     *
+     * @param column the lower case column name
+     */
+    boolean isUpdateOf(String column) {
+        return changed != null && changed.contains(column);
+    }
+
+    /**
+     * Tell whether the value of a column is known.
+     *
+     * @param column the column name
+     */
+    boolean hasValue(String column) {
+        return values.containsKey(column.toLowerCase());
+    }
+}
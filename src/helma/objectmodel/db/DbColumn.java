@@ -90,6 +90,15 @@ public final class DbColumn {
         return isName;
     }
 
+    /**
+     * Returns true if this column is left out when selecting objects and
+     * only loaded when its property is accessed.
+     */
+    public boolean isLazy() {
+        return !isId && !isPrototype && !isName &&
+               relation != null && relation.isLazyColumn();
+    }
+
     /**
      * Returns true if this field is mapped by the prototype's db mapping.
      */
@@ -22,6 +22,7 @@ import helma.util.ResourceProperties;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A DbMapping describes how a certain type of  Nodes is to mapped to a
@@ -72,6 +73,9 @@ public final class DbMapping {
     // list of columns to fetch from db
     private DbColumn[] columns = null;
 
+    // the columns without lazily loaded ones, in select order
+    private DbColumn[] selectColumns = null;
+
     // Map of db columns by name
     private HashMap columnMap;
 
@@ -115,7 +119,29 @@ public final class DbMapping {
     long lastTypeChange = -1;
 
     // timestamp of last modification of an object of this type
-    long lastDataChange = 0;
+    volatile long lastDataChange = 0;
+
+    // the committed data changes of the most recent data versions, oldest first
+    private final LinkedList dataChanges = new LinkedList();
+
+    // maximum number of data versions kept in dataChanges
+    static final int MAX_LOGGED_VERSIONS = 128;
+
+    // data versions of the last change to each "column=value" partition of
+    // a column used in collection constraints, in access order. Guarded by
+    // dataChanges, like the maps and floor below.
+    private final LinkedHashMap partitionChanges = new LinkedHashMap(64, 0.75f, true);
+
+    // the data version from which on changes to a column are tracked by value,
+    // or at which a change with unknown values was made to the column
+    private final HashMap partitionColumns = new HashMap();
+
+    // the lowest data version of all partitions. raised by changes that
+    // weren't logged and by partitions dropped from partitionChanges.
+    private long partitionFloor = 0;
+
+    // maximum number of partitions tracked
+    static final int MAX_PARTITIONS = 10000;
 
     // Set of mappings that depend on us and should be forwarded last data change events
     HashSet dependentMappings = new HashSet();
@@ -123,6 +149,10 @@ public final class DbMapping {
     // does this DbMapping describe a virtual node (collection, mountpoint, groupnode)?
     private boolean isVirtual = false;
 
+    // prepared statement cache counters
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
     // does this Dbmapping describe a group node?
     private boolean isGroup = false;
 
@@ -298,7 +328,7 @@ public final class DbMapping {
         }
 
         // null the cached columns and select string
-        columns = null;
+        columns = selectColumns = null;
         columnMap.clear();
         selectString = insertString = updateString = null;
 
@@ -973,6 +1003,30 @@ public final class DbMapping {
         return columns;
     }
 
+    /**
+     * Return the columns that are fetched when selecting objects of this type.
+     * These are all columns returned by {@link #getColumns()} except those
+     * mapped to lazy properties, in the order they appear in the select
+     * statement.
+     */
+    public synchronized DbColumn[] getSelectColumns()
+                                       throws ClassNotFoundException, SQLException {
+        if (selectColumns == null) {
+            DbColumn[] cols = getColumns();
+            ArrayList list = new ArrayList(cols.length);
+
+            for (int i = 0; i < cols.length; i++) {
+                if (!cols[i].isLazy()) {
+                    list.add(cols[i]);
+                }
+            }
+            selectColumns = list.size() == cols.length ?
+                    cols : (DbColumn[]) list.toArray(new DbColumn[list.size()]);
+        }
+
+        return selectColumns;
+    }
+
     /**
      *  Return the array of relations that are fetched with objects of this type.
      */
@@ -1017,7 +1071,8 @@ public final class DbMapping {
      *            Is null if selecting by primary key.
      * @return the StringBuffer containing the first part of the select query
      */
-    public StringBuffer getSelect(Relation rel) {
+    public StringBuffer getSelect(Relation rel)
+                       throws ClassNotFoundException, SQLException {
         // assign to local variable first so we are thread safe
         // (selectString may be reset by other threads)
         String sel = selectString;
@@ -1035,18 +1090,16 @@ public final class DbMapping {
 
         String table = getTableName();
 
-        // all columns from the main table
-        s.append(table);
-        s.append(".*");
+        // all non-lazy columns from the main table
+        appendSelectColumns(s, table);
 
         for (int i = 0; i < joins.length; i++) {
             if (!joins[i].otherType.isRelational()) {
                 continue;
             }
             s.append(", ");
-            s.append(Relation.JOIN_PREFIX);
-            s.append(joins[i].propName);
-            s.append(".*");
+            joins[i].otherType.appendSelectColumns(s,
+                    Relation.JOIN_PREFIX + joins[i].propName);
         }
 
         s.append(" FROM ");
@@ -1092,6 +1145,28 @@ public final class DbMapping {
         return s;
     }
 
+    /**
+     * Append the columns selected for objects of this type to a query,
+     * qualified with a table name or alias. If no column is lazy, this
+     * is simply <code>alias.*</code>.
+     */
+    private void appendSelectColumns(StringBuffer s, String alias)
+                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getSelectColumns();
+
+        if (cols == getColumns()) {
+            s.append(alias).append(".*");
+            return;
+        }
+
+        for (int i = 0; i < cols.length; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(alias).append('.').append(cols[i].getName());
+        }
+    }
+
     /**
      *
      *
@@ -1174,6 +1249,18 @@ public final class DbMapping {
         }
     }
 
+    /**
+     *  Return the JDBC type of the column identified by the parameter, or
+     *  VARCHAR if it is not a mapped column.
+     */
+    int getColumnType(String columnName) throws SQLException, ClassNotFoundException {
+        if ((tableName == null) && (parentMapping != null)) {
+            return parentMapping.getColumnType(columnName);
+        }
+        DbColumn col = getColumn(columnName);
+        return col == null ? Types.VARCHAR : col.getType();
+    }
+
     /**
      * Add constraints to select query string to join object references
      */
@@ -1301,14 +1388,140 @@ public final class DbMapping {
         if (inheritsStorage()) {
             parentMapping.setLastDataChange();
         } else {
-            lastDataChange += 1;
-            // propagate data change timestamp to mappings that depend on us
-            if (!dependentMappings.isEmpty()) {
-                Iterator it = dependentMappings.iterator();
-                while(it.hasNext()) {
-                    DbMapping dbmap = (DbMapping) it.next();
-                    dbmap.setIndirectDataChange();
+            synchronized (dataChanges) {
+                lastDataChange += 1;
+                partitionFloor = lastDataChange;
+            }
+            propagateDataChange();
+        }
+    }
+
+    /**
+     * Set the last time something changed in the data and remember the
+     * committed changes that caused it, so that cached collections can be
+     * updated in memory. Changes are logged by the mapping that owns the table.
+     *
+     * @param changes the list of DataChanges
+     */
+    void setLastDataChange(List changes) {
+        if (inheritsStorage()) {
+            parentMapping.setLastDataChange(changes);
+        } else {
+            synchronized (dataChanges) {
+                lastDataChange += 1;
+                dataChanges.add(new Object[] {new Long(lastDataChange), changes});
+                while (dataChanges.size() > MAX_LOGGED_VERSIONS) {
+                    dataChanges.removeFirst();
+                }
+                updatePartitions(changes);
+            }
+            propagateDataChange();
+        }
+    }
+
+    /**
+     * Get the committed changes of the data versions following a given
+     * version up to and including another one.
+     *
+     * @param since the data version the caller is up to date with
+     * @param until the current data version
+     * @return the list of DataChanges, oldest first, or null if some of the
+     *         data versions haven't been logged or were dropped from the log
+     */
+    List getDataChanges(long since, long until) {
+        if (inheritsStorage()) {
+            return parentMapping.getDataChanges(since, until);
+        }
+
+        ArrayList list = new ArrayList();
+        long expected = since + 1;
+
+        synchronized (dataChanges) {
+            for (Iterator it = dataChanges.iterator(); it.hasNext(); ) {
+                Object[] entry = (Object[]) it.next();
+                long version = ((Long) entry[0]).longValue();
+                if (version <= since) {
+                    continue;
+                } else if (version > until) {
+                    break;
+                } else if (version != expected) {
+                    // version was bumped without logging changes
+                    return null;
                 }
+                list.addAll((List) entry[1]);
+                expected += 1;
+            }
+        }
+
+        return expected == until + 1 ? list : null;
+    }
+
+    /**
+     * Get the last data version in which objects with a given value in a
+     * column were inserted, deleted, or changed in that column. A column
+     * is tracked from the first call for it on, so the first call returns
+     * the current data version.
+     *
+     * @param column the column name
+     * @param value the column value
+     * @return a data version that changes whenever the partition changes
+     */
+    public long getLastDataChange(String column, String value) {
+        if (inheritsStorage()) {
+            return parentMapping.getLastDataChange(column, value);
+        }
+
+        column = column.toLowerCase();
+
+        synchronized (dataChanges) {
+            Long since = (Long) partitionColumns.get(column);
+            if (since == null) {
+                partitionColumns.put(column, new Long(lastDataChange));
+                return lastDataChange;
+            }
+            long version = Math.max(since.longValue(), partitionFloor);
+            Long changed = (Long) partitionChanges.get(column + "=" + value);
+            return changed == null ? version : Math.max(version, changed.longValue());
+        }
+    }
+
+    // must be called holding the lock on dataChanges
+    private void updatePartitions(List changes) {
+        if (partitionColumns.isEmpty()) {
+            return;
+        }
+        Long version = new Long(lastDataChange);
+
+        for (Iterator it = changes.iterator(); it.hasNext(); ) {
+            DataChange change = (DataChange) it.next();
+            for (Iterator c = partitionColumns.keySet().iterator(); c.hasNext(); ) {
+                String column = (String) c.next();
+                if (!change.hasValue(column) || change.isUpdateOf(column)) {
+                    // we don't know which partition the object was in before
+                    partitionColumns.put(column, version);
+                } else {
+                    // other columns may affect order or filters of the partition
+                    partitionChanges.put(column + "=" + change.getValue(column), version);
+                }
+            }
+        }
+
+        // drop the least recently used partitions, making them as old as the floor
+        Iterator it = partitionChanges.values().iterator();
+        while (partitionChanges.size() > MAX_PARTITIONS && it.hasNext()) {
+            Long dropped = (Long) it.next();
+            partitionFloor = Math.max(partitionFloor, dropped.longValue());
+            it.remove();
+        }
+    }
+
+    private void propagateDataChange() {
+        // propagate data change timestamp to mappings that depend on us
+        if (!dependentMappings.isEmpty()) {
+            Iterator it = dependentMappings.iterator();
+            while(it.hasNext()) {
+                DbMapping dbmap = (DbMapping) it.next();
+                dbmap.setIndirectDataChange();
             }
         }
     }
@@ -1323,7 +1536,10 @@ public final class DbMapping {
         if (inheritsStorage()) {
             parentMapping.setIndirectDataChange();
         } else {
-            lastDataChange += 1;
+            synchronized (dataChanges) {
+                lastDataChange += 1;
+                partitionFloor = lastDataChange;
+            }
         }
     }
 
@@ -1547,6 +1763,42 @@ public final class DbMapping {
         q.append(")");
     }
 
+    /**
+     * Append a sql-condition for the given column which must have
+     * one of the values contained inside the given Set to the given
+     * StringBuffer. If params is not null, the values are rendered as
+     * statement parameters and added to params.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param values the list of values
+     * @param params the statement parameters, or null to render literal values
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String[] values,
+                                   StatementParameters params)
+            throws SQLException, ClassNotFoundException {
+        if (params == null) {
+            appendCondition(q, column, values);
+            return;
+        }
+        if (values.length == 1) {
+            appendCondition(q, column, values[0], params);
+            return;
+        }
+        if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
+            q.append(getTableName()).append(".");
+        }
+        q.append(column).append(" in (");
+
+        boolean quote = needsQuotes(column);
+        int type = getColumnType(column);
+        for (int i = 0; i < values.length; i++) {
+            q.append(i == 0 ? "?" : ", ?");
+            params.add(values[i], type, quote);
+        }
+        q.append(")");
+    }
+
     /**
      * Append a sql-condition for the given column which must have
      * the value given to the given StringBuffer. 
@@ -1557,18 +1809,71 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String val)
             throws SQLException, ClassNotFoundException {
+        appendCondition(q, column, val, null);
+    }
+
+    /**
+     * Append a sql-condition for the given column which must have
+     * the value given to the given StringBuffer. If params is not null,
+     * the value is rendered as statement parameter and added to params.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param val the value
+     * @param params the statement parameters, or null to render a literal value
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String val,
+                                   StatementParameters params)
+            throws SQLException, ClassNotFoundException {
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
             q.append(getTableName()).append(".");
         }
         q.append(column).append(" = ");
-        
-        if (needsQuotes(column)) {
+
+        if (params != null) {
+            q.append("?");
+            params.add(val, getColumnType(column), needsQuotes(column));
+        } else if (needsQuotes(column)) {
             q.append("'").append(escapeString(val)).append("'");
         } else {
             q.append(checkNumber(val));
         }
     }
 
+    /**
+     * Count a prepared statement cache hit for a query on this mapping.
+     */
+    void countStatementCacheHit() {
+        statementCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Count a prepared statement cache miss for a query on this mapping.
+     */
+    void countStatementCacheMiss() {
+        statementCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Get the number of queries on this mapping that could reuse a cached
+     * prepared statement.
+     *
+     * @return the number of statement cache hits
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * Get the number of queries on this mapping that required a new
+     * prepared statement.
+     *
+     * @return the number of statement cache misses
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
     /**
      * a utility method to escape single quotes used for inserting
      * string-values into relational databases.
@@ -23,6 +23,7 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Hashtable;
 
@@ -43,6 +44,12 @@ public class DbSource {
     private int hashcode;
     // thread local connection holder for non-transactor threads
     private ThreadLocal connection;
+    // time of last validation of the thread local connection
+    private ThreadLocal connectionTested;
+    // the connection pool, if enabled in db.properties
+    private volatile ConnectionPool pool;
+    // number of prepared statements to cache per connection
+    private int statementCacheSize;
 
     /**
      * Creates a new DbSource object.
@@ -59,14 +66,16 @@ public class DbSource {
     }
 
     /**
-     * Get a JDBC connection to the db source.
+     * Get a JDBC connection to the db source. If the calling thread has a
+     * Transactor and pooling is enabled, the connection is borrowed from the
+     * pool and returned when the transaction ends.
      *
      * @return a JDBC connection
      *
      * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
      * @throws SQLException if the connection couldn't be created
      */
-    public synchronized Connection getConnection()
+    public Connection getConnection()
             throws ClassNotFoundException, SQLException {
         Connection con;
         Transactor tx = Transactor.getInstance();
@@ -76,20 +85,36 @@ public class DbSource {
             con = getThreadLocalConnection();
         }
 
-        boolean fileUpdated = props.lastModified() > lastRead ||
-                (defaultProps != null && defaultProps.lastModified() > lastRead);
+        // read the settings under the lock so they are consistent with
+        // each other if another thread reinitializes this db source
+        boolean fileUpdated;
+        String url;
+        Properties conProps;
+        ConnectionPool p;
+        synchronized (this) {
+            fileUpdated = props.lastModified() > lastRead ||
+                    (defaultProps != null && defaultProps.lastModified() > lastRead);
+            if (fileUpdated) {
+                init();
+            }
+            url = this.url;
+            conProps = this.conProps;
+            p = pool;
+        }
 
         if (con == null || con.isClosed() || fileUpdated) {
-            init();
-            con = DriverManager.getConnection(url, conProps);
-
             // If we wanted to use SQL transactions, we'd set autoCommit to
             // false here and make commit/rollback invocations in Transactor methods;
             // System.err.println ("Created new Connection to "+url);
             if (tx != null) {
+                con = p != null ? p.acquire() : DriverManager.getConnection(url, conProps);
                 tx.registerConnection(this, con);
             } else {
+                // thread local connections are never returned, so they
+                // are not taken from the pool
+                con = DriverManager.getConnection(url, conProps);
                 connection.set(con);
+                connectionTested.set(new Long(System.currentTimeMillis()));
             }
         }
 
@@ -97,21 +122,32 @@ public class DbSource {
     }
 
     /**
-     * Used for connections not managed by a Helma transactor
+     * Used for connections not managed by a Helma transactor. The connection
+     * is only tested if it hasn't been tested for more than a minute.
      * @return a thread local tested connection, or null
      */
     private Connection getThreadLocalConnection() {
-        if (connection == null) {
-            connection = new ThreadLocal();
-            return null;
+        synchronized (this) {
+            if (connection == null) {
+                connection = new ThreadLocal();
+                connectionTested = new ThreadLocal();
+                return null;
+            }
         }
         Connection con = (Connection) connection.get();
-        if (con != null) {
+        Long tested = (Long) connectionTested.get();
+        long now = System.currentTimeMillis();
+        if (con != null && (tested == null || now - tested.longValue() > 60000)) {
             // test if connection is still ok
             try {
                 Statement stmt = con.createStatement();
-                stmt.execute("SELECT 1");
+                if (isOracle) {
+                    stmt.execute("SELECT 1 FROM DUAL");
+                } else {
+                    stmt.execute("SELECT 1");
+                }
                 stmt.close();
+                connectionTested.set(new Long(now));
             } catch (SQLException sx) {
                 try {
                     con.close();
@@ -122,6 +158,48 @@ public class DbSource {
         return con;
     }
 
+    /**
+     * Return the number of prepared statements to cache per connection,
+     * as set by the <code>statementCacheSize</code> property.
+     *
+     * @return the statement cache size
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Return the connection pool of this db source, or null if pooling is
+     * not enabled.
+     *
+     * @return the connection pool
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Return statistics for this db source's connection pool, or null if
+     * pooling is not enabled.
+     *
+     * @return a map containing the pool statistics
+     */
+    public Map<String,Object> getPoolStatistics() {
+        ConnectionPool p = pool;
+        return p == null ? null : p.getStatistics();
+    }
+
+    /**
+     * Close the connection pool of this db source, if any. Called when
+     * the application is stopped.
+     */
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
     /**
      * Set the db properties to newProps, and return the old properties.
      * @param newProps the new properties to use for this db source
@@ -187,11 +265,29 @@ public class DbSource {
             if ("url".equalsIgnoreCase(key) ||
                 "driver".equalsIgnoreCase(key) ||
                 "user".equalsIgnoreCase(key) ||
-                "password".equalsIgnoreCase(key)) {
+                "password".equalsIgnoreCase(key) ||
+                "statementCacheSize".equalsIgnoreCase(key) ||
+                ConnectionPool.isPoolProperty(key)) {
                 continue;
             }
             conProps.setProperty(key, subProps.getProperty(key));
         }
+
+        try {
+            statementCacheSize = Integer.parseInt(subProps.getProperty("statementCacheSize", "32"));
+        } catch (NumberFormatException nfe) {
+            statementCacheSize = 32;
+        }
+
+        // (re)create the connection pool. connections borrowed from the
+        // old pool are closed when they are returned.
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        if (ConnectionPool.isEnabled(subProps)) {
+            pool = new ConnectionPool(this, url, conProps, subProps);
+        }
     }
 
     /**
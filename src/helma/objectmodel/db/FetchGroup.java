@@ -0,0 +1,51 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.db;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The keys of relational nodes that were loaded by the same query, such as
+ * a prefetch of a collection. When one of these nodes dereferences an
+ * object reference with <code>loadmode = batch</code>, the objects referenced
+ * by all of them are loaded with one query.
+ *
+ * @see NodeManager#prefetchReferences(Node, Relation)
+ */
+final class FetchGroup {
+
+    final Key[] keys;
+
+    // names of the references already loaded for this group
+    private final HashSet loaded = new HashSet();
+
+    FetchGroup(List keys) {
+        this.keys = (Key[]) keys.toArray(new Key[keys.size()]);
+    }
+
+    /**
+     * Mark a reference as loaded for the nodes in this group.
+     *
+     * @param propName the name of the reference property
+     * @return true if the reference hadn't been loaded before
+     */
+    synchronized boolean markLoaded(String propName) {
+        return loaded.add(propName);
+    }
+}
@@ -60,6 +60,9 @@ public final class Node implements INode {
     DbMapping dbmap;
     Key primaryKey = null;
     String subnodeRelation = null;
+
+    // the nodes loaded by the same query, for batch loading of references
+    transient FetchGroup fetchGroup = null;
     long lastNameCheck = 0;
     long lastParentSet = 0;
     private volatile Transactor lock;
@@ -775,8 +778,10 @@ public final class Node implements INode {
         }
 
         NodeHandle nhandle = node.getHandle();
+        boolean contained = subnodes != null && (node.state == NEW ?
+                subnodes.containsNew(nhandle) : subnodes.contains(nhandle));
 
-        if (subnodes != null && subnodes.contains(nhandle)) {
+        if (contained) {
             // Node is already subnode of this - just move to new position
             synchronized (subnodes) {
                 subnodes.remove(nhandle);
@@ -1443,8 +1448,15 @@ public final class Node implements INode {
      */
     public SubnodeList createSubnodeList() {
         Relation subrel = dbmap == null ? null : dbmap.getSubnodeRelation();
-        subnodes = subrel == null || !subrel.lazyLoading ?
-                new SubnodeList(this) : new SegmentedSubnodeList(this);
+        if (subrel != null && subrel.lazyLoading) {
+            subnodes = new SegmentedSubnodeList(this);
+        } else {
+            // children of embedded nodes may be kept in separate pages
+            DbMapping smap = dbmap == null ? null : dbmap.getSubnodeMapping();
+            ChildPageStore store = nmgr.getChildPageStore();
+            subnodes = store == null || (smap != null && smap.isRelational()) ?
+                    new SubnodeList(this) : new PagedSubnodeList(this, store);
+        }
         return subnodes;
     }
 
@@ -1611,6 +1623,10 @@ public final class Node implements INode {
                 if (rel.otherType != null && prop.getType() != Property.NODE) {
                     prop.convertToNodeReference(rel);
                 }
+                if (fetchGroup != null && rel.loadInBatches()) {
+                    // load this reference for all nodes loaded along with this one
+                    nmgr.prefetchReferences(this, rel);
+                }
                 if (rel.isVirtual()) {
                     // property was found in propMap and is a collection - this is
                     // a collection holding non-relational objects. set DbMapping and
@@ -1652,10 +1668,33 @@ public final class Node implements INode {
             }
         }
 
+        // 3) check if this is a large column that hasn't been loaded yet
+        if (rel != null && rel.isLazyColumn() && propMap != null &&
+                (state == CLEAN || state == MODIFIED) &&
+                dbmap.isRelational()) {
+            return nmgr.loadLazyProperty(this, rel);
+        }
+
         // 4) nothing to be found - return null
         return null;
     }
 
+    /**
+     * Set the value of a lazy column fetched from the database, unless the
+     * property has been set in the meantime.
+     */
+    void initLazyProperty(Property prop) {
+        Hashtable map = propMap;
+
+        if (map != null) {
+            synchronized (map) {
+                if (!map.containsKey(prop.getName())) {
+                    map.put(prop.getName(), prop);
+                }
+            }
+        }
+    }
+
     /**
      *
      *
@@ -2283,6 +2322,11 @@ public final class Node implements INode {
             if (propMap != null) {
                 if (relational) {
                     p = (Property) propMap.get(correctPropertyName(propname));
+                    Relation rel = dbmap.getExactPropertyRelation(propname);
+                    if (p == null && rel != null && rel.isLazyColumn()) {
+                        // load the lazy column so that it is cleared in the db
+                        p = getProperty(propname);
+                    }
                 } else {
                     p = (Property) propMap.remove(correctPropertyName(propname));
                 }
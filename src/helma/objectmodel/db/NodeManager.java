@@ -17,6 +17,7 @@
 package helma.objectmodel.db;
 
 import helma.framework.core.Application;
+import helma.framework.core.Prototype;
 import helma.framework.core.RequestEvaluator;
 import helma.objectmodel.*;
 import helma.objectmodel.dom.XmlDatabase;
@@ -25,6 +26,7 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,6 +43,18 @@ public final class NodeManager {
     protected IDatabase db;
     protected IDGenerator idgen;
     private boolean logSql;
+    private boolean batchCommit;
+
+    // number of relational nodes selected by key, and of batched reference loads
+    private final AtomicLong keyQueries = new AtomicLong();
+    private final AtomicLong referenceQueries = new AtomicLong();
+    private final AtomicLong batchedReferences = new AtomicLong();
+    // number of queries and values for lazily loaded columns
+    private final AtomicLong lazyQueries = new AtomicLong();
+    private final AtomicLong lazyValues = new AtomicLong();
+    // number of subnode lists reloaded or updated from logged data changes
+    private final AtomicLong subnodeReloads = new AtomicLong();
+    private final AtomicLong subnodeUpdates = new AtomicLong();
     private Log sqlLog = null;
     private ArrayList listeners = new ArrayList();
 
@@ -76,8 +90,15 @@ public final class NodeManager {
         }
 
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
+        batchCommit = "true".equalsIgnoreCase(props.getProperty("batchCommit"));
 
-        db = new XmlDatabase();
+        String dbImpl = props.getProperty("embeddedDbImpl");
+
+        if (dbImpl != null) {
+            db = (IDatabase) Class.forName(dbImpl).newInstance();
+        } else {
+            db = new XmlDatabase();
+        }
         db.init(dbHome, app);
     }
 
@@ -109,6 +130,17 @@ public final class NodeManager {
         // notify the cache about the properties update
         cache.updateProperties(props);
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
+        batchCommit = "true".equalsIgnoreCase(props.getProperty("batchCommit"));
+    }
+
+    /**
+     * Check whether relational writes should be batched on commit. This is
+     * enabled by setting <code>batchCommit = true</code> in app.properties.
+     *
+     * @return true if Transactor.commit() should use a StatementBatch
+     */
+    public boolean isBatchCommit() {
+        return batchCommit;
     }
 
     /**
@@ -216,6 +248,9 @@ public final class NodeManager {
             return null;
         }
 
+        // register the type we're looking up, even if the node doesn't exist
+        tx.visitMapping(otherDbm);
+
         // See if Transactor has already come across this node
         Node node = tx.getCleanNode(key);
 
@@ -419,11 +454,30 @@ public final class NodeManager {
      */
     public void insertNode(IDatabase db, ITransaction txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
+        insertNode(db, txn, node, null);
+    }
+
+    /**
+     *  Insert a new node in the embedded database or a relational database table,
+     *  depending on its db mapping. If batch is not null, relational inserts are
+     *  added to the batch instead of being executed immediately.
+     */
+    public void insertNode(IDatabase db, ITransaction txn, Node node, StatementBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
         invokeOnPersist(node);
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
+            storeChildPages(db, txn, node);
             db.insertNode(txn, node.getID(), node);
+        } else if (batch != null) {
+            Connection con = dbm.getConnection();
+            // set connection to write mode
+            if (con.isReadOnly()) con.setReadOnly(false);
+            StatementBatch.Group group =
+                    batch.getGroup(StatementBatch.INSERT, con, dbm, dbm.getInsert());
+            setInsertValues(group.stmt, node, dbm);
+            batch.addBatch(group);
         } else {
             insertRelationalNode(node, dbm, dbm.getConnection());
         }
@@ -484,35 +538,10 @@ public final class NodeManager {
         PreparedStatement stmt = con.prepareStatement(insertString);
 
         // app.logEvent ("inserting relational node: " + node.getID ());
-        DbColumn[] columns = dbm.getColumns();
-
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
         try {
-            int columnNumber = 1;
-
-            for (int i = 0; i < columns.length; i++) {
-                DbColumn col = columns[i];
-                if (!col.isMapped())
-                    continue;
-                if (col.isIdField()) {
-                    setStatementValue(stmt, columnNumber, node.getID(), col);
-                } else if (col.isPrototypeField()) {
-                    setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
-                } else {
-                    Relation rel = col.getRelation();
-                    Property p = rel == null ? null : node.getProperty(rel.getPropName());
-
-                    if (p != null) {
-                        setStatementValue(stmt, columnNumber, p, col.getType());
-                    } else if (col.isNameField()) {
-                        stmt.setString(columnNumber, node.getName());
-                    } else {
-                        stmt.setNull(columnNumber, col.getType());
-                    }
-                }
-                columnNumber += 1;
-            }
+            setInsertValues(stmt, node, dbm);
             stmt.executeUpdate();
 
         } finally {
@@ -529,6 +558,38 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Bind the column values of a node to the parameters of an insert statement.
+     */
+    private void setInsertValues(PreparedStatement stmt, Node node, DbMapping dbm)
+                throws ClassNotFoundException, SQLException {
+        DbColumn[] columns = dbm.getColumns();
+        int columnNumber = 1;
+
+        for (int i = 0; i < columns.length; i++) {
+            DbColumn col = columns[i];
+            if (!col.isMapped())
+                continue;
+            if (col.isIdField()) {
+                setStatementValue(stmt, columnNumber, node.getID(), col);
+            } else if (col.isPrototypeField()) {
+                setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
+            } else {
+                Relation rel = col.getRelation();
+                Property p = rel == null ? null : node.getProperty(rel.getPropName());
+
+                if (p != null) {
+                    setStatementValue(stmt, columnNumber, p, col.getType());
+                } else if (col.isNameField()) {
+                    stmt.setString(columnNumber, node.getName());
+                } else {
+                    stmt.setNull(columnNumber, col.getType());
+                }
+            }
+            columnNumber += 1;
+        }
+    }
+
     /**
      *  calls onPersist function for the HopObject
      */
@@ -554,12 +615,26 @@ public final class NodeManager {
      */
     public boolean updateNode(IDatabase db, ITransaction txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
+        return updateNode(db, txn, node, null);
+    }
+
+    /**
+     *  Updates a modified node in the embedded db or an external relational database, depending
+     * on its database mapping. If batch is not null, relational updates are added to the
+     * batch instead of being executed immediately.
+     *
+     * @return true if the DbMapping of the updated Node is to be marked as updated via
+     *              DbMapping.setLastDataChange
+     */
+    public boolean updateNode(IDatabase db, ITransaction txn, Node node, StatementBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
 
         invokeOnPersist(node);
         DbMapping dbm = node.getDbMapping();
         boolean markMappingAsUpdated = false;
 
         if ((dbm == null) || !dbm.isRelational()) {
+            storeChildPages(db, txn, node);
             db.updateNode(txn, node.getID(), node);
         } else {
             Hashtable propMap = node.getPropMap();
@@ -615,12 +690,33 @@ public final class NodeManager {
             }
 
             b.append(" WHERE ");
-            dbm.appendCondition(b, dbm.getIDField(), node.getID());
+
+            // batched updates need the id as statement parameter
+            DbColumn idColumn = batch == null ? null : dbm.getColumn(dbm.getIDField());
+
+            if (idColumn != null) {
+                b.append(dbm.getIDField()).append(" = ?");
+            } else {
+                dbm.appendCondition(b, dbm.getIDField(), node.getID());
+            }
 
             Connection con = dbm.getConnection();
             // set connection to write mode
             if (con.isReadOnly()) con.setReadOnly(false);
-            PreparedStatement stmt = con.prepareStatement(b.toString());
+
+            StatementBatch.Group group = null;
+            PreparedStatement stmt;
+
+            if (idColumn != null) {
+                group = batch.getGroup(StatementBatch.UPDATE, con, dbm, b.toString());
+                stmt = group.stmt;
+            } else {
+                // keep the order of writes by sending earlier batched ones first
+                if (batch != null && !batch.isEmpty()) {
+                    executeBatch(batch);
+                }
+                stmt = con.prepareStatement(b.toString());
+            }
 
             int stmtNumber = 0;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
@@ -645,15 +741,21 @@ public final class NodeManager {
                     }
                 }
 
-                stmt.executeUpdate();
+                if (group != null) {
+                    setStatementValue(stmt, stmtNumber + 1, node.getID(), idColumn);
+                    batch.addBatch(group);
+                } else {
+                    stmt.executeUpdate();
+                }
 
             } finally {
-                if (logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL UPDATE", dbm.getTableName(),
-                                    logTimeStart, logTimeStop, b.toString());
-                }
-                if (stmt != null) {
+                // batched statements are logged and closed in executeBatch()
+                if (group == null) {
+                    if (logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL UPDATE", dbm.getTableName(),
+                                        logTimeStart, logTimeStop, b.toString());
+                    }
                     try {
                         stmt.close();
                     } catch (Exception ignore) {
@@ -675,17 +777,71 @@ public final class NodeManager {
         return markMappingAsUpdated;
     }
 
+    /**
+     *  Write the modified child pages of an embedded node before the node itself
+     *  is written, as storing them may change the node's page directory.
+     */
+    private void storeChildPages(IDatabase db, ITransaction txn, Node node)
+                    throws IOException {
+        SubnodeList subnodes = node.getSubnodeList();
+        if (subnodes instanceof PagedSubnodeList && db instanceof ChildPageStore) {
+            ((PagedSubnodeList) subnodes).store(txn, (ChildPageStore) db);
+        }
+    }
+
+    /**
+     *  Get the embedded database used for nodes without a relational mapping.
+     */
+    public IDatabase getDatabase() {
+        return db;
+    }
+
+    /**
+     *  Get the embedded database if it can store child lists in separate pages.
+     */
+    ChildPageStore getChildPageStore() {
+        return db instanceof ChildPageStore ? (ChildPageStore) db : null;
+    }
+
     /**
      *  Performs the actual deletion of a node from either the embedded or an external
      *  SQL database.
      */
     public void deleteNode(IDatabase db, ITransaction txn, Node node)
                     throws Exception {
+        deleteNode(db, txn, node, null);
+    }
+
+    /**
+     *  Performs the actual deletion of a node from either the embedded or an external
+     *  SQL database. If batch is not null, relational deletes are added to the batch
+     *  instead of being executed immediately.
+     */
+    public void deleteNode(IDatabase db, ITransaction txn, Node node, StatementBatch batch)
+                    throws Exception {
         DbMapping dbm = node.getDbMapping();
+        DbColumn idColumn = null;
+
+        if (batch != null && dbm != null && dbm.isRelational()) {
+            idColumn = dbm.getColumn(dbm.getIDField());
+        }
 
         if ((dbm == null) || !dbm.isRelational()) {
+            SubnodeList subnodes = node.getSubnodeList();
+            if (subnodes instanceof PagedSubnodeList && db instanceof ChildPageStore) {
+                ((PagedSubnodeList) subnodes).delete(txn, (ChildPageStore) db);
+            }
             db.deleteNode(txn, node.getID());
+        } else if (idColumn != null) {
+            Connection con = dbm.getConnection();
+            // set connection to write mode
+            if (con.isReadOnly()) con.setReadOnly(false);
+            batch.addDelete(con, dbm, idColumn, node.getID());
         } else {
+            // keep the order of writes by sending earlier batched ones first
+            if (batch != null && !batch.isEmpty()) {
+                executeBatch(batch);
+            }
             Statement st = null;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
             String str = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
@@ -724,6 +880,80 @@ public final class NodeManager {
     }
 
 
+    /**
+     * Execute and close all statements collected in a batch. Deletes are
+     * executed as <code>DELETE ... WHERE id IN (...)</code> with up to
+     * 500 ids per statement.
+     *
+     * @param batch the statement batch
+     */
+    public void executeBatch(StatementBatch batch)
+                    throws SQLException, ClassNotFoundException {
+        try {
+            for (Iterator i = batch.groups(); i.hasNext(); ) {
+                StatementBatch.Group group = (StatementBatch.Group) i.next();
+                long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+                if (group.type == StatementBatch.DELETE) {
+                    executeBatchDelete(group);
+                } else {
+                    group.stmt.executeBatch();
+                    if (logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement(group.type == StatementBatch.INSERT ?
+                                            "SQL INSERT BATCH" : "SQL UPDATE BATCH",
+                                        group.dbm.getTableName(), logTimeStart,
+                                        logTimeStop, group.sql + " [" + group.count + "]");
+                    }
+                }
+            }
+        } finally {
+            batch.close();
+        }
+    }
+
+    private void executeBatchDelete(StatementBatch.Group group)
+                    throws SQLException {
+        DbMapping dbm = group.dbm;
+        List ids = group.ids;
+
+        for (int start = 0; start < ids.size(); start += 500) {
+            int end = Math.min(start + 500, ids.size());
+            StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
+                                                             .append(" WHERE ")
+                                                             .append(dbm.getIDField())
+                                                             .append(" IN (");
+            for (int j = start; j < end; j++) {
+                b.append(j == start ? "?" : ", ?");
+            }
+            b.append(")");
+
+            PreparedStatement stmt = null;
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+            try {
+                stmt = group.con.prepareStatement(b.toString());
+                for (int j = start; j < end; j++) {
+                    setStatementValue(stmt, j - start + 1, (String) ids.get(j), group.idColumn);
+                }
+                stmt.executeUpdate();
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    logSqlStatement("SQL DELETE BATCH", dbm.getTableName(),
+                                    logTimeStart, logTimeStop,
+                                    b.toString() + " [" + (end - start) + "]");
+                }
+                if (stmt != null) {
+                    try {
+                        stmt.close();
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Generate a new ID for a given type, delegating to our IDGenerator if set.
      */
@@ -860,6 +1090,62 @@ public final class NodeManager {
         return retval;
     }
 
+    /**
+     * Fetch a number of values from the type's sequence in one round trip.
+     */
+    String[] generateSequenceIDs(DbMapping map, int count) throws Exception {
+        Statement stmt = null;
+        String[] retval = new String[count];
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+        String q;
+        if (map.isOracle()) {
+            q = new StringBuffer("SELECT ").append(map.getIDgen())
+                    .append(".nextval FROM dual CONNECT BY LEVEL <= ")
+                    .append(count).toString();
+        } else if (map.isPostgreSQL()) {
+            q = new StringBuffer("SELECT nextval('").append(map.getIDgen())
+                    .append("') FROM generate_series(1, ").append(count)
+                    .append(")").toString();
+        } else if (map.isH2()) {
+            q = new StringBuffer("SELECT nextval('").append(map.getIDgen())
+                    .append("') FROM system_range(1, ").append(count)
+                    .append(")").toString();
+        } else {
+            throw new RuntimeException("Unable to generate sequence: unknown DB");
+        }
+
+        try {
+            Connection con = map.getConnection();
+            if (con.isReadOnly()) con.setReadOnly(false);
+
+            stmt = con.createStatement();
+
+            ResultSet rs = stmt.executeQuery(q);
+
+            for (int i = 0; i < count; i++) {
+                if (!rs.next()) {
+                    throw new SQLException("Error creating IDs from Sequence: got " +
+                                           i + " of " + count + " values");
+                }
+                retval[i] = rs.getString(1);
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_NEXTVAL", map.getTableName(),
+                                logTimeStart, logTimeStop, q);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+
+        return retval;
+    }
+
     /**
      *  Loades subnodes via subnode relation. Only the ID index is loaded, the nodes are
      *  loaded later on demand.
@@ -878,7 +1164,10 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        StatementCache statements = getStatementCache(type, con);
+        StatementParameters params = new StatementParameters();
+        PreparedStatement stmt = null;
+        boolean failed = true;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
         String query = null;
 
@@ -890,17 +1179,15 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString();
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
+            stmt = statements.prepare(con, query, type);
+            stmt.setMaxRows(rel.maxSize > 0 ? rel.maxSize : 0);
+            params.bind(stmt);
 
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
-            }
-
-            ResultSet result = stmt.executeQuery(query);
+            ResultSet result = stmt.executeQuery();
 
             // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
             Key k = (rel.groupby != null) ? home.getKey() : null;
@@ -929,18 +1216,15 @@ public final class NodeManager {
                     }
                 }
             }
+            result.close();
+            failed = false;
         } finally {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_IDS", type.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, params);
             }
+            statements.release(query, stmt, failed);
         }
 
         return retval;
@@ -969,7 +1253,7 @@ public final class NodeManager {
         if (!con.isReadOnly()) con.setReadOnly(true);
 
         Statement stmt = con.createStatement();
-        DbColumn[] columns = dbm.getColumns();
+        DbColumn[] columns = dbm.getSelectColumns();
         Relation[] joins = dbm.getJoins();
         String query = null;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
@@ -991,6 +1275,7 @@ public final class NodeManager {
             }
 
             ResultSet rs = stmt.executeQuery(query);
+            List loaded = new ArrayList();
 
             while (rs.next()) {
                 // create new Nodes.
@@ -1002,10 +1287,11 @@ public final class NodeManager {
 
                 retval.add(new NodeHandle(primKey));
 
-                registerNewNode(node, null);
+                loaded.add(registerNewNode(node, null));
 
                 fetchJoinedNodes(rs, joins, columns.length);
             }
+            setFetchGroup(loaded);
 
         } finally {
             if (logSql) {
@@ -1024,6 +1310,268 @@ public final class NodeManager {
         return retval;
     }
 
+    /**
+     * Load the objects referenced through a relation by all nodes that were
+     * loaded together with the given node, using one query per 500 objects.
+     * This is called the first time a node dereferences an object reference
+     * with <code>loadmode = batch</code>. Nothing is done if the reference
+     * has already been loaded for the node's fetch group, or if fewer than
+     * two referenced objects are missing from the cache.
+     */
+    public void prefetchReferences(Node node, Relation rel) throws Exception {
+        FetchGroup group = node.fetchGroup;
+        DbMapping dbm = rel.otherType == null ? null :
+                app.getDbMapping(rel.otherType.getStorageTypeName());
+
+        // references not using the primary key can't be loaded by id
+        if (group == null || dbm == null || !dbm.isRelational() ||
+                !rel.usesPrimaryKey() || !group.markLoaded(rel.propName)) {
+            return;
+        }
+
+        Transactor tx = Transactor.getInstanceOrFail();
+        List missing = new ArrayList();
+        HashSet seen = new HashSet();
+
+        for (int i = 0; i < group.keys.length; i++) {
+            Node sibling = tx.getCleanNode(group.keys[i]);
+            if (sibling == null) {
+                sibling = (Node) cache.get(group.keys[i]);
+            }
+            Hashtable propMap = sibling == null || sibling.isNullNode() ?
+                    null : sibling.getPropMap();
+            Property prop = propMap == null ? null : (Property) propMap.get(rel.propName);
+            if (prop == null || prop.getType() != Property.NODE) {
+                continue;
+            }
+            Key key = prop.getNodeHandle().getKey();
+            if (key instanceof DbKey && key.getID() != null && seen.add(key) &&
+                    tx.getCleanNode(key) == null && !cache.containsKey(key)) {
+                missing.add(key.getID());
+            }
+        }
+
+        if (missing.size() < 2) {
+            return;
+        }
+
+        Connection con = dbm.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly()) con.setReadOnly(true);
+
+        StatementCache statements = getStatementCache(dbm, con);
+        DbColumn[] columns = dbm.getSelectColumns();
+        Relation[] joins = dbm.getJoins();
+        List loaded = new ArrayList();
+
+        for (int start = 0; start < missing.size(); start += 500) {
+            int end = Math.min(start + 500, missing.size());
+            String[] ids = (String[]) missing.subList(start, end).toArray(new String[end - start]);
+            StatementParameters params = new StatementParameters();
+            PreparedStatement stmt = null;
+            boolean failed = true;
+            String query = null;
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+            try {
+                StringBuffer b = dbm.getSelect(null).append(" WHERE ");
+                dbm.appendCondition(b, dbm.getIDField(), ids, params);
+                dbm.addJoinConstraints(b, " AND ");
+                query = b.toString();
+
+                stmt = statements.prepare(con, query, dbm);
+                stmt.setMaxRows(0);
+                params.bind(stmt);
+                ResultSet rs = stmt.executeQuery();
+
+                try {
+                    while (rs.next()) {
+                        Node referenced = createNode(dbm, rs, columns, 0);
+                        if (referenced != null) {
+                            loaded.add(registerNewNode(referenced, null));
+                        }
+                        fetchJoinedNodes(rs, joins, columns.length);
+                    }
+                } finally {
+                    rs.close();
+                }
+                referenceQueries.incrementAndGet();
+                batchedReferences.addAndGet(ids.length);
+                failed = false;
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    logSqlStatement("SQL SELECT_REFERENCES", dbm.getTableName(),
+                                    logTimeStart, logTimeStop, query, params);
+                }
+                statements.release(query, stmt, failed);
+            }
+        }
+
+        // the referenced objects may in turn have batch loaded references
+        setFetchGroup(loaded);
+    }
+
+    /**
+     * Load the value of a lazy column for a node. If the node was loaded
+     * together with other nodes of the same type, the column is loaded for
+     * all of them that are still in the cache, using one query per 500 nodes.
+     *
+     * @param node the node whose property is accessed
+     * @param rel the relation of the lazy property
+     * @return the loaded property, or null if the node's row no longer exists
+     */
+    public Property loadLazyProperty(Node node, Relation rel) throws Exception {
+        DbMapping dbm = node.getDbMapping();
+        DbColumn column = dbm.getColumn(rel.getDbField());
+
+        if (column == null) {
+            return null;
+        }
+
+        // nodes that lack the value by id
+        HashMap nodes = new HashMap();
+        nodes.put(node.getID(), node);
+
+        FetchGroup group = node.fetchGroup;
+        if (group != null && group.markLoaded(rel.propName)) {
+            Transactor tx = Transactor.getInstanceOrFail();
+            for (int i = 0; i < group.keys.length; i++) {
+                Node sibling = tx.getCleanNode(group.keys[i]);
+                if (sibling == null) {
+                    sibling = (Node) cache.get(group.keys[i]);
+                }
+                if (sibling != null && sibling.getDbMapping() == dbm &&
+                        sibling.getState() == Node.CLEAN &&
+                        sibling.getPropMap() != null &&
+                        !sibling.getPropMap().containsKey(rel.propName)) {
+                    nodes.put(sibling.getID(), sibling);
+                }
+            }
+        }
+
+        Connection con = dbm.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly()) con.setReadOnly(true);
+
+        StatementCache statements = getStatementCache(dbm, con);
+        String[] ids = (String[]) nodes.keySet().toArray(new String[nodes.size()]);
+
+        for (int start = 0; start < ids.length; start += 500) {
+            int end = Math.min(start + 500, ids.length);
+            String[] chunk = new String[end - start];
+            System.arraycopy(ids, start, chunk, 0, chunk.length);
+            StatementParameters params = new StatementParameters();
+            PreparedStatement stmt = null;
+            boolean failed = true;
+            String query = null;
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+            try {
+                String table = dbm.getTableName();
+                StringBuffer b = new StringBuffer("SELECT ")
+                        .append(table).append('.').append(dbm.getIDField()).append(", ")
+                        .append(table).append('.').append(column.getName())
+                        .append(" FROM ").append(table).append(" WHERE ");
+                dbm.appendCondition(b, dbm.getIDField(), chunk, params);
+                query = b.toString();
+
+                stmt = statements.prepare(con, query, dbm);
+                stmt.setMaxRows(0);
+                params.bind(stmt);
+                ResultSet rs = stmt.executeQuery();
+
+                try {
+                    while (rs.next()) {
+                        Node n = (Node) nodes.get(rs.getString(1));
+                        if (n != null) {
+                            Property prop = readColumn(n, rs, column, 2);
+                            prop.setName(rel.propName);
+                            n.initLazyProperty(prop);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+                lazyQueries.incrementAndGet();
+                lazyValues.addAndGet(chunk.length);
+                failed = false;
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    logSqlStatement("SQL SELECT_LAZY", dbm.getTableName(),
+                                    logTimeStart, logTimeStop, query, params);
+                }
+                statements.release(query, stmt, failed);
+            }
+        }
+
+        Hashtable propMap = node.getPropMap();
+        return propMap == null ? null : (Property) propMap.get(rel.propName);
+    }
+
+    /**
+     * Return the number of times cached collections of relational objects
+     * were found out of date, keyed by prototype and property name. The
+     * child collection of a prototype is listed as <code>_children</code>.
+     */
+    public Map getCollectionStatistics() {
+        Map stats = new HashMap();
+
+        for (Iterator i = app.getPrototypes().iterator(); i.hasNext(); ) {
+            DbMapping dbm = ((Prototype) i.next()).getDbMapping();
+            if (dbm == null) {
+                continue;
+            }
+
+            String[] names = dbm.getPropertyNames();
+            ArrayList relations = new ArrayList(names.length + 1);
+            relations.add(dbm.getSubnodeRelation());
+            for (int j = 0; j < names.length; j++) {
+                relations.add(dbm.getExactPropertyRelation(names[j]));
+            }
+
+            for (Iterator j = relations.iterator(); j.hasNext(); ) {
+                Relation rel = (Relation) j.next();
+                // skip inherited and non-collection relations
+                if (rel != null && rel.ownType == dbm && rel.reftype == Relation.COLLECTION &&
+                        rel.otherType != null && rel.otherType.isRelational()) {
+                    stats.put(dbm.getTypeName() + "." + rel.propName,
+                              new Long(rel.getInvalidations()));
+                }
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Count an update of a cached subnode list.
+     *
+     * @param reload true if the list was reloaded, false if it was updated
+     *               from logged data changes
+     */
+    void countSubnodeUpdate(boolean reload) {
+        (reload ? subnodeReloads : subnodeUpdates).incrementAndGet();
+    }
+
+    /**
+     * Remember which relational nodes were loaded by the same query.
+     */
+    private void setFetchGroup(List nodes) {
+        if (nodes.size() < 2) {
+            return;
+        }
+        List keys = new ArrayList(nodes.size());
+        for (Iterator i = nodes.iterator(); i.hasNext(); ) {
+            keys.add(((Node) i.next()).getKey());
+        }
+        FetchGroup group = new FetchGroup(keys);
+        for (Iterator i = nodes.iterator(); i.hasNext(); ) {
+            ((Node) i.next()).fetchGroup = group;
+        }
+    }
+
     protected List collectMissingKeys(SubnodeList list, int start, int length) {
         List retval = null;
         for (int i = start; i < start + length; i++) {
@@ -1055,8 +1603,11 @@ public final class NodeManager {
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
 
-                Statement stmt = con.createStatement();
-                DbColumn[] columns = dbm.getColumns();
+                StatementCache statements = getStatementCache(dbm, con);
+                StatementParameters params = new StatementParameters();
+                PreparedStatement stmt = null;
+                boolean failed = true;
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 String query = null;
                 long logTimeStart = logSql ? System.currentTimeMillis() : 0;
@@ -1066,11 +1617,11 @@ public final class NodeManager {
                     String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
                     String[] ids = (String[]) missing.toArray(new String[missing.size()]);
 
-                    dbm.appendCondition(b, idfield, ids);
+                    dbm.appendCondition(b, idfield, ids, params);
                     dbm.addJoinConstraints(b, " AND ");
 
                     if (rel.groupby != null) {
-                        rel.renderConstraints(b, home, " AND ");
+                        rel.renderConstraints(b, home, " AND ", params);
 
                         if (rel.order != null) {
                             b.append(" ORDER BY ");
@@ -1080,7 +1631,10 @@ public final class NodeManager {
 
                     query = b.toString();
 
-                    ResultSet rs = stmt.executeQuery(query);
+                    stmt = statements.prepare(con, query, dbm);
+                    stmt.setMaxRows(0);
+                    params.bind(stmt);
+                    ResultSet rs = stmt.executeQuery();
 
                     String groupbyProp = null;
                     HashMap groupbySubnodes = null;
@@ -1096,6 +1650,8 @@ public final class NodeManager {
                         accessProp = dbm.columnNameToProperty(rel.accessName);
                     }
 
+                    List loaded = new ArrayList();
+
                     while (rs.next()) {
                         // create new Nodes.
                         Node node = createNode(dbm, rs, columns, 0);
@@ -1145,24 +1701,22 @@ public final class NodeManager {
 
                         // register new nodes with the cache. If an up-to-date copy
                         // existed in the cache, use that.
-                        registerNewNode(node, secondaryKey);
+                        loaded.add(registerNewNode(node, secondaryKey));
                         fetchJoinedNodes(rs, joins, columns.length);
                     }
 
+                    rs.close();
+                    setFetchGroup(loaded);
+                    failed = false;
                 } catch (Exception x) {
                     app.logError("Error in prefetchNodes()", x);
                 } finally {
                     if (logSql) {
                         long logTimeStop = System.currentTimeMillis();
                         logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(),
-                                        logTimeStart, logTimeStop, query);
-                    }
-                    if (stmt != null) {
-                        try {
-                            stmt.close();
-                        } catch (Exception ignore) {
-                        }
+                                        logTimeStart, logTimeStop, query, params);
                     }
+                    statements.release(query, stmt, failed);
                 }
             }
         }
@@ -1183,7 +1737,10 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        StatementCache statements = getStatementCache(type, con);
+        StatementParameters params = new StatementParameters();
+        PreparedStatement stmt = null;
+        boolean failed = true;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
         String query = null;
 
@@ -1195,30 +1752,29 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString();
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, false, true);
+                rel.buildQuery(b, home, false, true, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = statements.prepare(con, query, type);
+            stmt.setMaxRows(0);
+            params.bind(stmt);
+            ResultSet rs = stmt.executeQuery();
 
             if (!rs.next()) {
                 retval = 0;
             } else {
                 retval = rs.getInt(1);
             }
+            rs.close();
+            failed = false;
         } finally {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_COUNT", type.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, params);
             }
+            statements.release(query, stmt, failed);
         }
 
         return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
@@ -1305,7 +1861,10 @@ public final class NodeManager {
         } else {
             String idfield = dbm.getIDField();
 
-            Statement stmt = null;
+            StatementCache statements = StatementCache.UNCACHED;
+            StatementParameters params = new StatementParameters();
+            PreparedStatement stmt = null;
+            boolean failed = true;
             String query = null;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
@@ -1314,41 +1873,45 @@ public final class NodeManager {
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
 
-                stmt = con.createStatement();
+                statements = getStatementCache(dbm, con);
 
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
 
                 StringBuffer b = dbm.getSelect(null).append("WHERE ");
-                dbm.appendCondition(b, idfield, kstr);
+                dbm.appendCondition(b, idfield, kstr, params);
+                keyQueries.incrementAndGet();
                 dbm.addJoinConstraints(b, " AND ");
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = statements.prepare(con, query, dbm);
+                stmt.setMaxRows(0);
+                params.bind(stmt);
+                ResultSet rs = stmt.executeQuery();
 
-                if (!rs.next()) {
-                    return null;
-                }
-                node = createNode(dbm, rs, columns, 0);
+                try {
+                    if (!rs.next()) {
+                        failed = false;
+                        return null;
+                    }
+                    node = createNode(dbm, rs, columns, 0);
 
-                fetchJoinedNodes(rs, joins, columns.length);
+                    fetchJoinedNodes(rs, joins, columns.length);
 
-                if (rs.next()) {
-                    app.logError("Warning: More than one value returned for query " + query);
+                    if (rs.next()) {
+                        app.logError("Warning: More than one value returned for query " + query);
+                    }
+                } finally {
+                    rs.close();
                 }
+                failed = false;
             } finally {
                 if (logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYKEY", dbm.getTableName(),
-                                    logTimeStart, logTimeStop, query);
-                }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                                    logTimeStart, logTimeStop, query, params);
                 }
+                statements.release(query, stmt, failed);
             }
         }
 
@@ -1389,7 +1952,7 @@ public final class NodeManager {
                 Connection con = dbm.getConnection();
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 StringBuffer b = dbm.getSelect(rel);
 
@@ -1497,134 +2060,9 @@ public final class NodeManager {
                 name = rs.getString(columnNumber);
             }
 
-            Property newprop = new Property(node);
-
-            switch (columns[i].getType()) {
-                case Types.BIT:
-                case Types.BOOLEAN:
-                    newprop.setBooleanValue(rs.getBoolean(columnNumber));
-
-                    break;
-
-                case Types.TINYINT:
-                case Types.BIGINT:
-                case Types.SMALLINT:
-                case Types.INTEGER:
-                    newprop.setIntegerValue(rs.getLong(columnNumber));
-
-                    break;
-
-                case Types.REAL:
-                case Types.FLOAT:
-                case Types.DOUBLE:
-                    newprop.setFloatValue(rs.getDouble(columnNumber));
-
-                    break;
-
-                case Types.DECIMAL:
-                case Types.NUMERIC:
-
-                    BigDecimal num = rs.getBigDecimal(columnNumber);
-                    if (num == null) {
-                        break;
-                    }
-                    if (num.scale() > 0) {
-                        newprop.setFloatValue(num.doubleValue());
-                    } else {
-                        newprop.setIntegerValue(num.longValue());
-                    }
-
-                    break;
-
-                case Types.VARBINARY:
-                case Types.BINARY:
-                    newprop.setJavaObjectValue(rs.getBytes(columnNumber));
-
-                    break;
-
-                case Types.BLOB:
-                case Types.LONGVARBINARY:
-                    {
-                        InputStream in = rs.getBinaryStream(columnNumber);
-                        if (in == null) {
-                            break;
-                        }
-                        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            bout.write(buffer, 0, read);
-                        }
-                        newprop.setJavaObjectValue(bout.toByteArray());
-                    }
-
-                    break;
-
-                case Types.LONGVARCHAR:
-                    try {
-                        newprop.setStringValue(rs.getString(columnNumber));
-                    } catch (SQLException x) {
-                        Reader in = rs.getCharacterStream(columnNumber);
-                        if (in == null) {
-                            newprop.setStringValue(null);
-                            break;
-                        }
-                        StringBuffer out = new StringBuffer();
-                        char[] buffer = new char[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            out.append(buffer, 0, read);
-                        }
-                        newprop.setStringValue(out.toString());
-                    }
-
-                    break;
-
-                case Types.CHAR:
-                case Types.VARCHAR:
-                case Types.OTHER:
-                    newprop.setStringValue(rs.getString(columnNumber));
-
-                    break;
-
-                case Types.DATE:
-                case Types.TIME:
-                case Types.TIMESTAMP:
-                    newprop.setDateValue(rs.getTimestamp(columnNumber));
-
-                    break;
-
-                case Types.NULL:
-                    newprop.setStringValue(null);
-
-                    break;
-
-                case Types.CLOB:
-                    Clob cl = rs.getClob(columnNumber);
-                    if (cl == null) {
-                        newprop.setStringValue(null);
-                        break;
-                    }
-                    char[] c = new char[(int) cl.length()];
-                    Reader isr = cl.getCharacterStream();
-                    isr.read(c);
-                    newprop.setStringValue(String.copyValueOf(c));
-                    break;
-
-                default:
-                    newprop.setStringValue(rs.getString(columnNumber));
-
-                    break;
-            }
-
-            if (rs.wasNull()) {
-                newprop.setStringValue(null);
-            }
+            Property newprop = readColumn(node, rs, columns[i], columnNumber);
 
             propBuffer.put(columns[i].getName(), newprop);
-
-            // mark property as clean, since it's fresh from the db
-            newprop.dirty = false;
         }
 
         if (id == null) {
@@ -1669,6 +2107,140 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     *  Read the value of a column from a ResultSet into a new clean Property.
+     */
+    private Property readColumn(Node node, ResultSet rs, DbColumn column, int columnNumber)
+                throws SQLException, IOException {
+        Property newprop = new Property(node);
+
+        switch (column.getType()) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                newprop.setBooleanValue(rs.getBoolean(columnNumber));
+
+                break;
+
+            case Types.TINYINT:
+            case Types.BIGINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                newprop.setIntegerValue(rs.getLong(columnNumber));
+
+                break;
+
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                newprop.setFloatValue(rs.getDouble(columnNumber));
+
+                break;
+
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+
+                BigDecimal num = rs.getBigDecimal(columnNumber);
+                if (num == null) {
+                    break;
+                }
+                if (num.scale() > 0) {
+                    newprop.setFloatValue(num.doubleValue());
+                } else {
+                    newprop.setIntegerValue(num.longValue());
+                }
+
+                break;
+
+            case Types.VARBINARY:
+            case Types.BINARY:
+                newprop.setJavaObjectValue(rs.getBytes(columnNumber));
+
+                break;
+
+            case Types.BLOB:
+            case Types.LONGVARBINARY:
+                {
+                    InputStream in = rs.getBinaryStream(columnNumber);
+                    if (in == null) {
+                        break;
+                    }
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        bout.write(buffer, 0, read);
+                    }
+                    newprop.setJavaObjectValue(bout.toByteArray());
+                }
+
+                break;
+
+            case Types.LONGVARCHAR:
+                try {
+                    newprop.setStringValue(rs.getString(columnNumber));
+                } catch (SQLException x) {
+                    Reader in = rs.getCharacterStream(columnNumber);
+                    if (in == null) {
+                        newprop.setStringValue(null);
+                        break;
+                    }
+                    StringBuffer out = new StringBuffer();
+                    char[] buffer = new char[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        out.append(buffer, 0, read);
+                    }
+                    newprop.setStringValue(out.toString());
+                }
+
+                break;
+
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.OTHER:
+                newprop.setStringValue(rs.getString(columnNumber));
+
+                break;
+
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                newprop.setDateValue(rs.getTimestamp(columnNumber));
+
+                break;
+
+            case Types.NULL:
+                newprop.setStringValue(null);
+
+                break;
+
+            case Types.CLOB:
+                Clob cl = rs.getClob(columnNumber);
+                if (cl == null) {
+                    newprop.setStringValue(null);
+                    break;
+                }
+                char[] c = new char[(int) cl.length()];
+                Reader isr = cl.getCharacterStream();
+                isr.read(c);
+                newprop.setStringValue(String.copyValueOf(c));
+                break;
+
+            default:
+                newprop.setStringValue(rs.getString(columnNumber));
+
+                break;
+        }
+
+        if (rs.wasNull()) {
+            newprop.setStringValue(null);
+        }
+
+        // mark property as clean, since it's fresh from the db
+        newprop.dirty = false;
+        return newprop;
+    }
+
     /**
      *  Fetch nodes that are fetched additionally to another node via join.
      */
@@ -1678,11 +2250,11 @@ public final class NodeManager {
         // create joined objects
         for (int i = 0; i < joins.length; i++) {
             DbMapping jdbm = joins[i].otherType;
-            Node node = createNode(jdbm, rs, jdbm.getColumns(), resultSetOffset);
+            Node node = createNode(jdbm, rs, jdbm.getSelectColumns(), resultSetOffset);
             if (node != null) {
                 registerNewNode(node, null);
             }
-            resultSetOffset += jdbm.getColumns().length;
+            resultSetOffset += jdbm.getSelectColumns().length;
         }
     }
 
@@ -1722,7 +2294,16 @@ public final class NodeManager {
      * Returns a map with statistics about the cache
      */
     public Map getCacheStatistics() {
-        return cache.getStatistics();
+        Map stats = new HashMap(cache.getStatistics());
+        // queries used to load single relational nodes and batches of references
+        stats.put("keyQueries", new Long(keyQueries.get()));
+        stats.put("referenceQueries", new Long(referenceQueries.get()));
+        stats.put("batchedReferences", new Long(batchedReferences.get()));
+        stats.put("lazyQueries", new Long(lazyQueries.get()));
+        stats.put("lazyValues", new Long(lazyValues.get()));
+        stats.put("subnodeReloads", new Long(subnodeReloads.get()));
+        stats.put("subnodeUpdates", new Long(subnodeUpdates.get()));
+        return stats;
     }
 
     /**
@@ -1870,6 +2451,27 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Get the prepared statement cache for a connection obtained from a DbMapping.
+     */
+    private StatementCache getStatementCache(DbMapping dbm, Connection con) {
+        Transactor tx = Transactor.getInstance();
+        DbSource src = dbm.getDbSource();
+        if (tx == null || src == null) {
+            return StatementCache.UNCACHED;
+        }
+        return tx.getStatementCache(src, con);
+    }
+
+    private void logSqlStatement(String type, String table, long logTimeStart,
+                                 long logTimeStop, String statement,
+                                 StatementParameters params) {
+        if (params != null && params.size() > 0) {
+            statement = statement + " " + params;
+        }
+        logSqlStatement(type, table, logTimeStart, logTimeStop, statement);
+    }
+
     private void logSqlStatement(String type, String table,
                                  long logTimeStart, long logTimeStop, String statement) {
         // init sql-log if necessary
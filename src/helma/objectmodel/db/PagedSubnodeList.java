@@ -0,0 +1,556 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.ITransaction;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Subnode list for nodes stored in the embedded database. Small lists are
+ * kept in memory and stored inline with their parent node, just like with
+ * {@link SubnodeList}. Once a list grows beyond the database's child page
+ * size, its references are moved to separate pages that are loaded on
+ * demand, and the parent's record only holds the page directory. Adding,
+ * inserting or removing a child then only rewrites the affected page.
+ *
+ * Pages are split when they grow beyond the page size and merged with their
+ * successor when they shrink to a quarter of it. Only a limited number of
+ * unmodified pages are kept in memory.
+ */
+public class PagedSubnodeList extends SubnodeList {
+
+    // maximum number of unmodified pages kept in memory
+    static int MAXLOADED = 8;
+
+    transient ChildPageStore store;
+    int pageSize;
+
+    // the page directory, or null if children are stored inline
+    ArrayList pages = null;
+    int count = 0;
+    int nextPageId = 0;
+
+    // ids of stored pages that are no longer used
+    ArrayList deletedPages = new ArrayList();
+
+    // start indexes of pages, computed on demand
+    transient int[] starts = null;
+
+    // loaded pages in access order
+    LinkedHashMap loaded = new LinkedHashMap(16, 0.75f, true);
+
+    /**
+     * Creates a new paged subnode list
+     * @param node the node we belong to
+     * @param store the database storing the list's pages
+     */
+    public PagedSubnodeList(Node node, ChildPageStore store) {
+        super(node);
+        this.store = store;
+        this.pageSize = store.getChildPageSize();
+    }
+
+    /**
+     * Add a page to the directory of a list read from the database.
+     *
+     * @param id the page id
+     * @param size the number of children stored in the page
+     */
+    public synchronized void addPage(int id, int size) {
+        if (pages == null) {
+            pages = new ArrayList();
+        }
+        nextPageId = Math.max(nextPageId, id + 1);
+        Page page = new Page(id, size);
+        page.stored = true;
+        if (size > 0) {
+            pages.add(page);
+            count += size;
+            starts = null;
+        } else {
+            deletedPages.add(new Integer(id));
+        }
+    }
+
+    /**
+     * Check if the children of this list are stored in separate pages.
+     *
+     * @return true if the list is paged, false if it is stored inline
+     */
+    public synchronized boolean isPaged() {
+        return pages != null;
+    }
+
+    /**
+     * Return the number of pages in this list.
+     */
+    public synchronized int countPages() {
+        return pages == null ? 0 : pages.size();
+    }
+
+    /**
+     * Return the id of a page.
+     *
+     * @param index the index of the page
+     * @return the page id
+     */
+    public synchronized int getPageId(int index) {
+        return ((Page) pages.get(index)).id;
+    }
+
+    /**
+     * Return the number of children in a page.
+     *
+     * @param index the index of the page
+     * @return the page size
+     */
+    public synchronized int getPageLength(int index) {
+        return ((Page) pages.get(index)).size;
+    }
+
+    public synchronized boolean add(NodeHandle handle) {
+        if (pages == null) {
+            return super.add(handle);
+        }
+        Page page = pages.isEmpty() ? null : (Page) pages.get(pages.size() - 1);
+        // start a new page rather than loading a full one
+        if (page == null || page.size >= pageSize) {
+            page = newPage(pages.size());
+        } else {
+            loadPage(page);
+        }
+        page.handles.add(handle);
+        page.size += 1;
+        page.dirty = true;
+        count += 1;
+        return true;
+    }
+
+    public synchronized void add(int index, NodeHandle handle) {
+        if (pages == null) {
+            super.add(index, handle);
+            return;
+        }
+        if (index == count) {
+            add(handle);
+            return;
+        }
+        if (index < 0 || index > count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        int p = getPageIndex(index);
+        Page page = (Page) pages.get(p);
+        loadPage(page);
+        page.handles.add(index - getStart(p), handle);
+        page.size += 1;
+        page.dirty = true;
+        count += 1;
+        starts = null;
+        if (page.size > pageSize) {
+            // split the page in two halves
+            Page next = newPage(p + 1);
+            List tail = page.handles.subList(page.size / 2, page.size);
+            next.handles.addAll(tail);
+            tail.clear();
+            next.size = next.handles.size();
+            page.size = page.handles.size();
+        }
+    }
+
+    public synchronized NodeHandle get(int index) {
+        if (pages == null) {
+            return super.get(index);
+        }
+        if (index < 0 || index >= count) {
+            return null;
+        }
+        int p = getPageIndex(index);
+        Page page = (Page) pages.get(p);
+        loadPage(page);
+        // the page may have turned out shorter than expected
+        int offset = index - getStart(p);
+        return offset < page.handles.size() ? (NodeHandle) page.handles.get(offset) : null;
+    }
+
+    public synchronized boolean contains(Object object) {
+        if (pages == null) {
+            return super.contains(object);
+        }
+        return indexOf(object) > -1;
+    }
+
+    /**
+     * Check if the list contains a node that hasn't been stored yet. Such a
+     * node can only be contained in modified pages, so unmodified pages
+     * don't need to be loaded.
+     */
+    protected synchronized boolean containsNew(NodeHandle handle) {
+        if (pages == null) {
+            return super.containsNew(handle);
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = (Page) pages.get(i);
+            if (page.dirty && page.handles.contains(handle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int indexOf(Object object) {
+        if (pages == null) {
+            return super.indexOf(object);
+        }
+        int start = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = (Page) pages.get(i);
+            loadPage(page);
+            int index = page.handles.indexOf(object);
+            if (index > -1) {
+                return start + index;
+            }
+            start += page.size;
+        }
+        return -1;
+    }
+
+    /**
+     * remove the object specified by the given index-position
+     * @param index the index-position of the NodeHandle to remove
+     */
+    public synchronized Object remove(int index) {
+        if (pages == null) {
+            return super.remove(index);
+        }
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        int p = getPageIndex(index);
+        Page page = (Page) pages.get(p);
+        loadPage(page);
+        Object removed = page.handles.remove(index - getStart(p));
+        page.size -= 1;
+        page.dirty = true;
+        count -= 1;
+        starts = null;
+        if (page.size == 0) {
+            pages.remove(p);
+            dropPage(page);
+        } else if (page.size <= pageSize / 4 && p + 1 < pages.size()) {
+            // merge with the following page if both fit into one
+            Page next = (Page) pages.get(p + 1);
+            if (page.size + next.size <= pageSize) {
+                loadPage(next);
+                page.handles.addAll(next.handles);
+                page.size = page.handles.size();
+                pages.remove(p + 1);
+                dropPage(next);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * remove the given Object from this List
+     * @param object the NodeHandle to remove
+     */
+    public synchronized boolean remove(Object object) {
+        if (pages == null) {
+            return super.remove(object);
+        }
+        int index = indexOf(object);
+        if (index > -1) {
+            remove(index);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized Object[] toArray() {
+        if (pages == null) {
+            return super.toArray();
+        }
+        Object[] array = new Object[count];
+        int n = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = (Page) pages.get(i);
+            loadPage(page);
+            for (Iterator it = page.handles.iterator(); it.hasNext() && n < count; ) {
+                array[n++] = it.next();
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Return the size of the list.
+     * @return the list size
+     */
+    public synchronized int size() {
+        if (pages == null) {
+            return super.size();
+        }
+        return count;
+    }
+
+    /**
+     * Load the pages holding the given range of children.
+     */
+    protected void prefetch(int start, int length) {
+        synchronized (this) {
+            if (pages != null) {
+                if (start < 0 || start >= count) {
+                    return;
+                }
+                int end = (length < 0) ? count : Math.min(start + length, count);
+                int last = getPageIndex(end - 1);
+                for (int p = getPageIndex(start); p <= last && p < pages.size(); p++) {
+                    loadPage((Page) pages.get(p));
+                }
+                return;
+            }
+        }
+        super.prefetch(start, length);
+    }
+
+    /**
+     * Write modified pages and delete unused ones as part of a transaction.
+     * This must be called before the parent node is written, as it may move
+     * the list's children between the parent's record and separate pages.
+     *
+     * @param txn the current transaction
+     * @param db the database to write to
+     * @throws IOException if a page couldn't be written
+     */
+    public synchronized void store(ITransaction txn, ChildPageStore db)
+                throws IOException {
+        store = db;
+        pageSize = db.getChildPageSize();
+
+        if (pages == null) {
+            if (pageSize <= 0 || list.size() <= pageSize) {
+                return;
+            }
+            // move children from the parent's record into pages
+            pages = new ArrayList();
+            for (int i = 0; i < list.size(); i += pageSize) {
+                Page page = newPage(pages.size());
+                page.handles.addAll(list.subList(i, Math.min(i + pageSize, list.size())));
+                page.size = page.handles.size();
+            }
+            count = list.size();
+            list = new ArrayList();
+        } else if (pageSize <= 0 || count <= pageSize / 2) {
+            // move children back into the parent's record
+            ArrayList all = new ArrayList(count);
+            for (int i = 0; i < pages.size(); i++) {
+                Page page = (Page) pages.get(i);
+                loadPage(page);
+                all.addAll(page.handles);
+                dropPage(page);
+            }
+            pages = null;
+            count = 0;
+            starts = null;
+            list = all;
+        }
+
+        for (Iterator it = deletedPages.iterator(); it.hasNext(); ) {
+            db.writeChildPage(txn, getPageKey(((Integer) it.next()).intValue()), null);
+        }
+        deletedPages.clear();
+
+        if (pages != null) {
+            for (int i = 0; i < pages.size(); i++) {
+                Page page = (Page) pages.get(i);
+                // the previous transaction on this node has completed, so
+                // pages written by it can be reloaded from the database
+                page.written = false;
+                if (page.dirty) {
+                    db.writeChildPage(txn, getPageKey(page.id), encodePage(page.handles));
+                    page.dirty = false;
+                    page.stored = true;
+                    page.written = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete all pages of this list as part of a transaction. This is
+     * called when the parent node is deleted.
+     *
+     * @param txn the current transaction
+     * @param db the database to delete from
+     * @throws IOException if a page couldn't be deleted
+     */
+    public synchronized void delete(ITransaction txn, ChildPageStore db)
+                throws IOException {
+        if (pages != null) {
+            for (int i = 0; i < pages.size(); i++) {
+                dropPage((Page) pages.get(i));
+            }
+            pages.clear();
+            count = 0;
+            starts = null;
+        }
+        for (Iterator it = deletedPages.iterator(); it.hasNext(); ) {
+            db.writeChildPage(txn, getPageKey(((Integer) it.next()).intValue()), null);
+        }
+        deletedPages.clear();
+    }
+
+    private Page newPage(int index) {
+        Page page = new Page(nextPageId++, 0);
+        page.handles = new ArrayList();
+        page.dirty = true;
+        pages.add(index, page);
+        loaded.put(page, page);
+        starts = null;
+        return page;
+    }
+
+    private void dropPage(Page page) {
+        loaded.remove(page);
+        if (page.stored) {
+            deletedPages.add(new Integer(page.id));
+        }
+    }
+
+    private int getPageIndex(int index) {
+        int p = Arrays.binarySearch(computeStarts(), index);
+        return p < 0 ? -p - 2 : p;
+    }
+
+    private int getStart(int p) {
+        return computeStarts()[p];
+    }
+
+    private int[] computeStarts() {
+        if (starts == null) {
+            int[] s = new int[pages.size()];
+            int start = 0;
+            for (int i = 0; i < s.length; i++) {
+                s[i] = start;
+                start += ((Page) pages.get(i)).size;
+            }
+            starts = s;
+        }
+        return starts;
+    }
+
+    private void loadPage(Page page) {
+        if (page.handles == null) {
+            String key = getPageKey(page.id);
+            byte[] data;
+            try {
+                if (store == null) {
+                    store = node.nmgr.getChildPageStore();
+                }
+                data = store.readChildPage(key);
+            } catch (IOException x) {
+                throw new RuntimeException("Error loading child page " + key, x);
+            }
+            page.handles = data == null ? new ArrayList() : decodePage(data);
+            if (page.handles.size() != page.size) {
+                node.nmgr.logEvent("Inconsistent child page in " + node + ": " + page);
+                count += page.handles.size() - page.size;
+                page.size = page.handles.size();
+                page.dirty = true;
+                starts = null;
+            }
+        }
+        loaded.put(page, page);
+
+        // unload the least recently used pages that can be read again
+        Iterator it = loaded.values().iterator();
+        while (loaded.size() > MAXLOADED && it.hasNext()) {
+            Page p = (Page) it.next();
+            if (p != page && !p.dirty && !p.written) {
+                p.handles = null;
+                it.remove();
+            }
+        }
+    }
+
+    private String getPageKey(int id) {
+        return node.getID() + "-" + id;
+    }
+
+    private byte[] encodePage(List handles) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(handles.size() * 16);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(handles.size());
+        for (Iterator it = handles.iterator(); it.hasNext(); ) {
+            Key key = ((NodeHandle) it.next()).getKey();
+            String storageName = key.getStorageName();
+            out.writeUTF(key.getID());
+            out.writeBoolean(storageName != null);
+            if (storageName != null) {
+                out.writeUTF(storageName);
+            }
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    private ArrayList decodePage(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int size = in.readInt();
+            ArrayList handles = new ArrayList(size + 1);
+            for (int i = 0; i < size; i++) {
+                String id = in.readUTF();
+                DbMapping dbmap = in.readBoolean() ?
+                        node.nmgr.getDbMapping(in.readUTF()) : null;
+                handles.add(new NodeHandle(new DbKey(dbmap, id)));
+            }
+            return handles;
+        } catch (IOException x) {
+            throw new RuntimeException("Error decoding child page of " + node, x);
+        }
+    }
+
+    static class Page implements Serializable {
+
+        int id, size;
+        ArrayList handles;
+
+        // modified since last stored
+        boolean dirty;
+        // exists in the database
+        boolean stored;
+        // written by a transaction that may not have completed yet
+        transient boolean written;
+
+        Page(int id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+
+        public String toString() {
+            return "Page{id: " + id + ", size: " + size + "}";
+        }
+    }
+}
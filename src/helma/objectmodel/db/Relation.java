@@ -25,6 +25,8 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Enumeration;
 import java.util.Vector;
 
@@ -85,7 +87,9 @@ public final class Relation {
     boolean lazyLoading;
     boolean aggressiveLoading;
     boolean aggressiveCaching;
+    boolean batchLoading;
     boolean isPrivate = false;
+    boolean lazyColumn = false;
     boolean referencesPrimaryKey = false;
     String updateCriteria;
     String accessName; // db column used to access objects through this relation
@@ -104,6 +108,10 @@ public final class Relation {
     int maxSize = 0;
     int offset = 0;
 
+    // number of times cached collections defined by this relation were found
+    // stale, shared with the copies used by virtual and group nodes
+    AtomicLong invalidations = new AtomicLong();
+
     /**
      * This constructor makes a copy of an existing relation. Not all fields are copied, just those
      * which are needed in groupby- and virtual nodes defined by this relation. use
@@ -132,6 +140,8 @@ public final class Relation {
         this.lazyLoading =              rel.lazyLoading;
         this.aggressiveLoading =        rel.aggressiveLoading;
         this.aggressiveCaching =        rel.aggressiveCaching;
+        this.batchLoading =             rel.batchLoading;
+        this.invalidations =            rel.invalidations;
         this.updateCriteria =           rel.updateCriteria;
         this.autoSorted =               rel.autoSorted;
     }
@@ -194,6 +204,9 @@ public final class Relation {
 
         readonly = "true".equalsIgnoreCase(props.getProperty("readonly"));
         isPrivate = "true".equalsIgnoreCase(props.getProperty("private"));
+        // large primitive columns may be left out of the select and loaded on demand
+        lazyColumn = reftype == PRIMITIVE &&
+                "true".equalsIgnoreCase(props.getProperty("lazy"));
 
         // the following options only apply to object and collection relations
         if ((reftype != PRIMITIVE) && (reftype != INVALID)) {
@@ -302,18 +315,23 @@ public final class Relation {
 
         if (loading != null) {
             loading = loading.trim();
+            batchLoading = false;
             if ("aggressive".equalsIgnoreCase(loading)) {
                 aggressiveLoading = true;
                 lazyLoading = false;
             } else if ("lazy".equalsIgnoreCase(loading)) {
                 lazyLoading = true;
                 aggressiveLoading = false;
+            } else if ("batch".equalsIgnoreCase(loading) && reftype == REFERENCE) {
+                // load the objects referenced by sibling nodes together
+                batchLoading = true;
+                aggressiveLoading = lazyLoading = false;
             } else {
                 System.err.println("Unsupported loadmode property in " + ownType + ": " + loading);
                 aggressiveLoading = lazyLoading = false;
             }
         } else {
-            aggressiveLoading = lazyLoading = false;
+            aggressiveLoading = lazyLoading = batchLoading = false;
         }
 
         String caching = props.getProperty("cachemode");
@@ -555,6 +573,14 @@ public final class Relation {
         return isPrivate;
     }
 
+    /**
+     *  Tell whether the column of this primitive property is left out when
+     *  selecting objects and only loaded when the property is first accessed.
+     */
+    public boolean isLazyColumn() {
+        return lazyColumn;
+    }
+
     /**
      *  Check whether aggressive loading is set for this relation
      */
@@ -562,6 +588,15 @@ public final class Relation {
         return aggressiveLoading;
     }
 
+    /**
+     *  Check whether the objects referenced through this relation by nodes
+     *  loaded together should be fetched with one query. This is set with
+     *  <code>loadmode = batch</code> on object references.
+     */
+    public boolean loadInBatches() {
+        return batchLoading;
+    }
+
     /**
      *  Returns the number of constraints for this relation.
      */
@@ -958,7 +993,17 @@ public final class Relation {
      */
     public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
-        buildQuery(q, home, otherType, null, useOrder, isCount);
+        buildQuery(q, home, otherType, null, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, rendering constraint values as statement parameters.
+     */
+    void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount,
+                    StatementParameters params)
+            throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, otherType, null, useOrder, isCount, params);
     }
 
     /**
@@ -968,6 +1013,17 @@ public final class Relation {
     public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
                            boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, otherDbm, kstr, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object. If params is not null, key and constraint values are
+     *  rendered as statement parameters and added to params.
+     */
+    void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
+                    boolean useOrder, boolean isCount, StatementParameters params)
+            throws SQLException, ClassNotFoundException {
         String prefix = " WHERE ";
         Node nonvirtual = home.getNonVirtualParent();
 
@@ -976,13 +1032,13 @@ public final class Relation {
 
             String accessColumn = (accessName == null) ?
                     otherDbm.getIDField() : accessName;
-            otherDbm.appendCondition(q, accessColumn, kstr);
+            otherDbm.appendCondition(q, accessColumn, kstr, params);
 
             prefix = " AND ";
         }
 
         // render the constraints and filter
-        renderConstraints(q, home, nonvirtual, otherDbm, prefix);
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, params);
 
         // add joined fetch constraints
         ownType.addJoinConstraints(q, prefix);
@@ -1087,7 +1143,17 @@ public final class Relation {
      */
     public void renderConstraints(StringBuffer q, Node home, String prefix)
                              throws SQLException, ClassNotFoundException {
-        renderConstraints(q, home, home.getNonVirtualParent(), otherType, prefix);
+        renderConstraints(q, home, home.getNonVirtualParent(), otherType, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer,
+     * rendering constraint values as statement parameters.
+     */
+    void renderConstraints(StringBuffer q, Node home, String prefix,
+                           StatementParameters params)
+                             throws SQLException, ClassNotFoundException {
+        renderConstraints(q, home, home.getNonVirtualParent(), otherType, prefix, params);
     }
 
     /**
@@ -1105,6 +1171,17 @@ public final class Relation {
     public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
                                   DbMapping otherDbm, String prefix)
                              throws SQLException, ClassNotFoundException {
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer.
+     * If params is not null, constraint values are rendered as statement
+     * parameters and added to params. Filter values are always rendered literally.
+     */
+    void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
+                           DbMapping otherDbm, String prefix, StatementParameters params)
+                             throws SQLException, ClassNotFoundException {
 
         if (constraints.length > 1 && logicalOperator != AND) {
             q.append(prefix);
@@ -1119,7 +1196,7 @@ public final class Relation {
                 continue;
             }
             q.append(prefix);
-            constraints[i].addToQuery(q, home, nonvirtual, otherDbm);
+            constraints[i].addToQuery(q, home, nonvirtual, otherDbm, params);
             prefix = logicalOperator;
         }
 
@@ -1140,7 +1217,7 @@ public final class Relation {
             // extended prototypes. nevertheless we check it here
             if (extensions != null && protoField != null) {
                 q.append(prefix);
-                otherDbm.appendCondition(q, protoField, extensions);
+                otherDbm.appendCondition(q, protoField, extensions, params);
                 prefix = " AND ";
             }
         }
@@ -1281,6 +1358,168 @@ public final class Relation {
         }
     }
 
+    /**
+     * Get the sort direction of a collection that is either unordered or
+     * ordered by the primary key of the other type, which are the orders
+     * that can be maintained in memory.
+     *
+     * @return 1 for ascending, -1 for descending, 0 if unordered, or
+     *         null if the collection is ordered by anything else
+     */
+    Integer getIdOrder() {
+        if (order == null) {
+            return new Integer(0);
+        }
+        StringTokenizer st = new StringTokenizer(order.trim());
+        String column = st.nextToken();
+        String direction = st.hasMoreTokens() ? st.nextToken() : "asc";
+        if (st.hasMoreTokens() || column.indexOf(',') > -1) {
+            return null;
+        }
+        column = column.substring(column.lastIndexOf('.') + 1);
+        if (!column.equalsIgnoreCase(otherType.getIDField())) {
+            return null;
+        }
+        if ("asc".equalsIgnoreCase(direction)) {
+            return new Integer(1);
+        } else if ("desc".equalsIgnoreCase(direction)) {
+            return new Integer(-1);
+        }
+        return null;
+    }
+
+    /**
+     * Get a serial number that changes whenever objects in the collection
+     * defined by this relation and a home node may have changed. For
+     * collections constrained by a column value, this only changes when
+     * objects with that value change, otherwise when any object of the other
+     * type changes.
+     *
+     * @param home the node holding the collection
+     */
+    long getLastDataChange(Node home) {
+        if (additionalTables != null || !otherType.isRelational() ||
+                (constraints.length > 1 && logicalOperator != AND)) {
+            return otherType.getLastDataChange();
+        }
+
+        for (int i = 0; i < constraints.length; i++) {
+            Constraint cnst = constraints[i];
+            if (cnst.foreignKeyIsPrototype() || cnst.isGroupby) {
+                continue;
+            }
+
+            INode nonvirtual = home.getNonVirtualParent();
+            String local;
+            if (cnst.localKeyIsPrimary(nonvirtual.getDbMapping())) {
+                local = nonvirtual.getID();
+            } else if (cnst.localKeyIsPrototype()) {
+                local = nonvirtual.getDbMapping().getStorageTypeName();
+            } else {
+                String homeprop = ownType.columnNameToProperty(cnst.localKey);
+                local = homeprop == null ? null : nonvirtual.getString(homeprop);
+            }
+
+            if (local != null) {
+                String column = cnst.foreignKeyIsPrimary() ?
+                        otherType.getIDField() : cnst.foreignKey;
+                return otherType.getLastDataChange(column, local);
+            }
+            break;
+        }
+
+        return otherType.getLastDataChange();
+    }
+
+    /**
+     * Get the number of times a cached collection defined by this relation
+     * was found to be out of date.
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Tell whether the members of a collection defined by this relation can
+     * be determined in memory from the column values of committed changes,
+     * which is the case for plain constraints without filter, additional
+     * tables, grouping or limits that are unordered or ordered by primary key.
+     */
+    boolean canEvaluateInMemory() {
+        if (groupby != null || filter != null || additionalTables != null ||
+                maxSize > 0 || offset > 0 || otherType == null ||
+                !otherType.isRelational() || otherType.inheritsStorage()) {
+            return false;
+        }
+        for (int i = 0; i < constraints.length; i++) {
+            if (constraints[i].isGroupby) {
+                return false;
+            }
+        }
+        return getIdOrder() != null;
+    }
+
+    /**
+     * Check whether a committed change leaves an object in the collection
+     * defined by this relation. This evaluates the constraints like the
+     * where clause rendered by renderConstraints(), and must only be used
+     * if canEvaluateInMemory() returns true.
+     *
+     * @param home the node holding the collection
+     * @param change the committed change
+     * @return whether the object belongs to the collection, or null if a
+     *         column value needed to tell isn't known
+     */
+    Boolean matches(Node home, DataChange change) {
+        if (change.deleted) {
+            return Boolean.FALSE;
+        }
+
+        INode nonvirtual = home.getNonVirtualParent();
+        int count = 0;
+        int satisfied = 0;
+
+        for (int i = 0; i < constraints.length; i++) {
+            Constraint cnst = constraints[i];
+            if (cnst.foreignKeyIsPrototype()) {
+                continue;
+            }
+
+            String local;
+            if (cnst.localKeyIsPrimary(nonvirtual.getDbMapping())) {
+                local = nonvirtual.getID();
+            } else if (cnst.localKeyIsPrototype()) {
+                local = nonvirtual.getDbMapping().getStorageTypeName();
+            } else {
+                String homeprop = ownType.columnNameToProperty(cnst.localKey);
+                if (homeprop == null) {
+                    return null;
+                }
+                local = nonvirtual.getString(homeprop);
+            }
+
+            String column = cnst.foreignKeyIsPrimary() ?
+                    otherType.getIDField() : cnst.foreignKey;
+            if (!change.hasValue(column)) {
+                return null;
+            }
+
+            count++;
+            // null never matches in sql
+            if (local != null && local.equals(change.getValue(column))) {
+                satisfied++;
+            }
+        }
+
+        if (logicalOperator == OR) {
+            return Boolean.valueOf(satisfied > 0);
+        } else if (logicalOperator == XOR) {
+            return Boolean.valueOf(satisfied == 1);
+        } else {
+            return Boolean.valueOf(satisfied == count);
+        }
+    }
+
     /**
      * Make sure that the child node fullfills the constraints defined by this relation by setting the
      * appropriate properties
@@ -1488,6 +1727,12 @@ public final class Relation {
 
         public void addToQuery(StringBuffer q, INode home, INode nonvirtual, DbMapping otherDbm)
                         throws SQLException, ClassNotFoundException {
+            addToQuery(q, home, nonvirtual, otherDbm, null);
+        }
+
+        void addToQuery(StringBuffer q, INode home, INode nonvirtual, DbMapping otherDbm,
+                        StatementParameters params)
+                        throws SQLException, ClassNotFoundException {
             String local;
             INode ref = isGroupby ? home : nonvirtual;
 
@@ -1510,7 +1755,7 @@ public final class Relation {
             } else {
                 columnName = foreignKey;
             }
-            otherDbm.appendCondition(q, columnName, local);
+            otherDbm.appendCondition(q, columnName, local, params);
         }
 
         public boolean foreignKeyIsPrimary() {
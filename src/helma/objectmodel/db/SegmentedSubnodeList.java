@@ -213,9 +213,18 @@ public class SegmentedSubnodeList extends SubnodeList {
         // also reload if the type mapping has changed.
         long lastChange = getLastSubnodeChange();
         if (lastChange != lastSubnodeFetch) {
+            if (segments != null) {
+                // the list only holds the segments loaded so far
+                countInvalidation();
+                fetched = false;
+            }
             // count nodes in db without fetching anything
             subnodeCount = node.nmgr.countNodes(node, getSubnodeRelation());
             if (subnodeCount > SEGLENGTH) {
+                if (fetched) {
+                    countInvalidation();
+                    fetched = false;
+                }
                 float size = subnodeCount;
                 int nsegments = (int) Math.ceil(size / SEGLENGTH);
                 int remainder = (int) size % SEGLENGTH;
@@ -0,0 +1,154 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Collects the relational writes of a transaction so they can be sent to
+ * the database in as few round trips as possible. Inserts and updates with
+ * identical SQL share one PreparedStatement and are executed via
+ * <code>executeBatch()</code>, deletes are collected per table and executed
+ * as <code>DELETE ... WHERE id IN (...)</code>.
+ *
+ * Only consecutive writes of the same kind to the same table are grouped,
+ * so that the batch executes the writes in the order the nodes were
+ * modified. Running a later insert before an earlier delete could
+ * otherwise violate unique constraints the unbatched commit respects.
+ *
+ * @see NodeManager#executeBatch(StatementBatch)
+ */
+public final class StatementBatch {
+
+    static final int INSERT = 0;
+    static final int UPDATE = 1;
+    static final int DELETE = 2;
+
+    // statement groups, in execution order
+    private final ArrayList groups = new ArrayList();
+
+    // the group the last write was added to, and its key
+    private Group last;
+    private List lastKey;
+
+    /**
+     * Get the prepared statement for an insert or update, starting a new
+     * group unless the previous write used the same statement. The caller
+     * must bind the statement parameters and call {@link #addBatch(Group)}.
+     */
+    Group getGroup(int type, Connection con, DbMapping dbm, String sql)
+            throws SQLException {
+        List key = Arrays.asList(new Object[] {con, sql});
+        if (key.equals(lastKey)) {
+            return last;
+        }
+        Group group = new Group(type, con, dbm, sql);
+        group.stmt = con.prepareStatement(sql);
+        add(key, group);
+        return group;
+    }
+
+    /**
+     * Add the current parameter set of the group's statement to the batch.
+     */
+    void addBatch(Group group) throws SQLException {
+        group.stmt.addBatch();
+        group.count++;
+    }
+
+    /**
+     * Register a row to be deleted.
+     */
+    void addDelete(Connection con, DbMapping dbm, DbColumn idColumn, String id) {
+        List key = Arrays.asList(new Object[] {con, dbm.getTableName(), idColumn});
+        Group group = last;
+        if (!key.equals(lastKey)) {
+            group = new Group(DELETE, con, dbm, null);
+            group.idColumn = idColumn;
+            group.ids = new ArrayList();
+            add(key, group);
+        }
+        group.ids.add(id);
+        group.count++;
+    }
+
+    private void add(List key, Group group) {
+        groups.add(group);
+        last = group;
+        lastKey = key;
+    }
+
+    /**
+     * Return an iterator over the statement groups in this batch.
+     */
+    Iterator groups() {
+        return groups.iterator();
+    }
+
+    /**
+     * Return true if nothing has been added to this batch.
+     */
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Close all statements and clear the batch.
+     */
+    public void close() {
+        for (Iterator i = groups.iterator(); i.hasNext(); ) {
+            Group group = (Group) i.next();
+            if (group.stmt != null) {
+                try {
+                    group.stmt.close();
+                } catch (Exception ignore) {
+                    // nothing to do
+                }
+            }
+        }
+        groups.clear();
+        last = null;
+        lastKey = null;
+    }
+
+    /**
+     * A set of writes that can be sent to the database together.
+     */
+    static final class Group {
+        final int type;
+        final Connection con;
+        final DbMapping dbm;
+        final String sql;
+        PreparedStatement stmt;
+        DbColumn idColumn;
+        List ids;
+        int count = 0;
+
+        Group(int type, Connection con, DbMapping dbm, String sql) {
+            this.type = type;
+            this.con = con;
+            this.dbm = dbm;
+            this.sql = sql;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of PreparedStatements for a single JDBC
+ * connection. Instances are not thread safe, they are only used by the
+ * thread currently owning the connection.
+ *
+ * The cache size is set per data source via the
+ * <code>statementCacheSize</code> db.properties entry.
+ */
+final class StatementCache {
+
+    /**
+     * A pass-through instance that prepares a new statement on each call
+     * and closes it on release.
+     */
+    static final StatementCache UNCACHED = new StatementCache(0);
+
+    private final LinkedHashMap statements;
+
+    /**
+     * Create a statement cache with the given maximal size.
+     *
+     * @param maxSize the maximal number of cached statements
+     */
+    StatementCache(final int maxSize) {
+        if (maxSize > 0) {
+            statements = new LinkedHashMap(maxSize * 2, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    if (size() > maxSize) {
+                        closeStatement((PreparedStatement) eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        } else {
+            statements = null;
+        }
+    }
+
+    /**
+     * Get a prepared statement for the given SQL, creating it if it isn't
+     * already cached.
+     *
+     * @param con the connection this cache belongs to
+     * @param sql the SQL query
+     * @param dbm the DbMapping to count cache hits and misses for
+     * @return a prepared statement
+     * @throws SQLException if the statement couldn't be prepared
+     */
+    PreparedStatement prepare(Connection con, String sql, DbMapping dbm)
+            throws SQLException {
+        PreparedStatement stmt;
+        if (statements != null) {
+            stmt = (PreparedStatement) statements.get(sql);
+            if (stmt != null) {
+                dbm.countStatementCacheHit();
+                return stmt;
+            }
+        }
+        dbm.countStatementCacheMiss();
+        stmt = con.prepareStatement(sql);
+        if (statements != null) {
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Release a statement obtained via prepare(). Uncached statements are
+     * closed, cached ones are kept for reuse unless the statement failed.
+     *
+     * @param sql the SQL query
+     * @param stmt the statement
+     * @param failed true if using the statement resulted in an error
+     */
+    void release(String sql, PreparedStatement stmt, boolean failed) {
+        if (stmt == null) {
+            return;
+        }
+        if (statements == null || statements.get(sql) != stmt) {
+            closeStatement(stmt);
+        } else if (failed) {
+            statements.remove(sql);
+            closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    void close() {
+        if (statements != null) {
+            for (Iterator i = statements.values().iterator(); i.hasNext(); ) {
+                closeStatement((PreparedStatement) i.next());
+            }
+            statements.clear();
+        }
+    }
+
+    private static void closeStatement(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (Exception ignore) {
+            // nothing to do
+        }
+    }
+}
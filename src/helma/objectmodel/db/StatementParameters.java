@@ -0,0 +1,162 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+
+/**
+ * Collects the values of SQL conditions rendered as <code>?</code>
+ * placeholders so they can be bound to a PreparedStatement later.
+ *
+ * @see DbMapping#appendCondition(StringBuffer, String, String, StatementParameters)
+ */
+final class StatementParameters {
+
+    private final ArrayList values = new ArrayList();
+    private final ArrayList types = new ArrayList();
+
+    /**
+     * Add a parameter value.
+     *
+     * @param value the value
+     * @param type the JDBC type of the column the value is compared with
+     * @param quote true if the value is rendered as string, false if it is numeric
+     */
+    void add(String value, int type, boolean quote) {
+        if (!quote) {
+            // same check as for rendered numeric literals
+            value = DbMapping.checkNumber(value);
+        }
+        values.add(value);
+        // numeric values are bound as numbers regardless of the column type
+        types.add(new Integer(quote ? type : Types.NUMERIC));
+    }
+
+    /**
+     * Bind the collected values to the statement parameters, starting at 1,
+     * using setter methods that match the JDBC types of the columns.
+     *
+     * @param stmt the statement
+     * @throws SQLException if a value couldn't be bound
+     */
+    void bind(PreparedStatement stmt) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            String value = (String) values.get(i);
+            int type = ((Integer) types.get(i)).intValue();
+            switch (type) {
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                    // rendered literals used to contain 'null' for null values
+                    stmt.setString(i + 1, String.valueOf(value));
+                    break;
+
+                case Types.NUMERIC:
+                    if (value == null) {
+                        stmt.setNull(i + 1, Types.NUMERIC);
+                    } else if (value.indexOf('.') > -1 || value.length() > 18) {
+                        stmt.setBigDecimal(i + 1, new BigDecimal(value));
+                    } else {
+                        stmt.setLong(i + 1, Long.parseLong(value));
+                    }
+                    break;
+
+                default:
+                    if (value == null) {
+                        stmt.setNull(i + 1, type);
+                    } else {
+                        bindValue(stmt, i + 1, value, type);
+                    }
+            }
+        }
+    }
+
+    private static void bindValue(PreparedStatement stmt, int index, String value, int type)
+            throws SQLException {
+        switch (type) {
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                // date properties are converted to strings as yyyy-MM-dd HH:mm:ss
+                Timestamp ts = parseTimestamp(value);
+                if (ts == null) {
+                    // let the driver try to convert it
+                    stmt.setObject(index, value, type);
+                } else if (type == Types.DATE) {
+                    stmt.setDate(index, new java.sql.Date(ts.getTime()));
+                } else if (type == Types.TIME) {
+                    stmt.setTime(index, new Time(ts.getTime()));
+                } else {
+                    stmt.setTimestamp(index, ts);
+                }
+                break;
+
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                try {
+                    stmt.setBytes(index, value.getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException x) {
+                    throw new SQLException(x.toString());
+                }
+                break;
+
+            default:
+                stmt.setObject(index, value, type);
+        }
+    }
+
+    private static Timestamp parseTimestamp(String value) {
+        try {
+            return Timestamp.valueOf(value);
+        } catch (IllegalArgumentException x) {
+            // not yyyy-mm-dd hh:mm:ss[.f...]
+        }
+        try {
+            return new Timestamp(java.sql.Date.valueOf(value).getTime());
+        } catch (IllegalArgumentException x) {
+            // not yyyy-mm-dd
+        }
+        try {
+            return new Timestamp(Time.valueOf(value).getTime());
+        } catch (IllegalArgumentException x) {
+            // not hh:mm:ss
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of collected values.
+     */
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Returns the parameter values for logging.
+     */
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -30,7 +30,16 @@ public class SubnodeList implements Serializable {
 
     transient protected long lastSubnodeFetch = 0;
     transient protected long lastSubnodeChange = 0;
-    
+
+    // the local and data change serials the fetched id list reflects.
+    // if only the data has changed since, the list can be updated from the
+    // changes logged by the other type's DbMapping.
+    transient protected boolean fetched = false;
+    transient protected long lastLocalFetch = 0;
+    transient protected long lastDataFetch = 0;
+
+    // maximum number of logged changes applied instead of reloading the list
+    static final int MAX_APPLIED_CHANGES = 1000;
 
     /**
      * Hide/disable zero argument constructor for subclasses
@@ -96,6 +105,16 @@ public class SubnodeList implements Serializable {
         return list.indexOf(object);
     }
 
+    /**
+     * Check if the list contains a node that hasn't been stored yet.
+     * Subclasses that don't keep all elements in memory can limit the
+     * search to the elements added since the list was last stored.
+     * @param handle the handle of the new node
+     */
+    protected boolean containsNew(NodeHandle handle) {
+        return contains(handle);
+    }
+
     /**
      * remove the object specified by the given index-position
      * @param idx the index-position of the NodeHandle to remove
@@ -125,19 +144,134 @@ public class SubnodeList implements Serializable {
     }
 
     protected void update() {
+        Relation rel = getSubnodeRelation();
+        // read the data version before the list is fetched. applying
+        // changes the list already contains does no harm.
+        long dataVersion = rel == null ? 0 : rel.otherType.getLastDataChange();
+        long localChange = lastSubnodeChange + node.dbmap.getLastTypeChange();
         // also reload if the type mapping has changed.
         long lastChange = getLastSubnodeChange();
         if (lastChange != lastSubnodeFetch) {
-            Relation rel = getSubnodeRelation();
-            if (rel != null && rel.aggressiveLoading && rel.groupby == null) {
-                list = node.nmgr.getNodes(node, rel);
+            if (fetched) {
+                countInvalidation();
+            }
+            if (fetched && localChange == lastLocalFetch &&
+                    applyDataChanges(rel, dataVersion)) {
+                node.nmgr.countSubnodeUpdate(false);
             } else {
-                list = node.nmgr.getNodeIDs(node, rel);
+                if (rel != null && rel.aggressiveLoading && rel.groupby == null) {
+                    list = node.nmgr.getNodes(node, rel);
+                } else {
+                    list = node.nmgr.getNodeIDs(node, rel);
+                }
+                node.nmgr.countSubnodeUpdate(true);
+                fetched = true;
             }
+            lastLocalFetch = localChange;
+            lastDataFetch = dataVersion;
             lastSubnodeFetch = lastChange;
         }
     }
 
+    /**
+     * Count a cached list found out of date with the subnode relation.
+     */
+    protected void countInvalidation() {
+        Relation rel = getSubnodeRelation();
+        if (rel != null) {
+            rel.invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Bring the list up to date by applying the changes committed to the
+     * other type's table since the list was fetched.
+     *
+     * @param rel the subnode relation
+     * @param dataVersion the current data version of the other type
+     * @return false if the list has to be reloaded from the database
+     */
+    protected boolean applyDataChanges(Relation rel, long dataVersion) {
+        if (rel == null || node.getSubnodeRelation() != null ||
+                !rel.canEvaluateInMemory()) {
+            return false;
+        }
+
+        List changes = rel.otherType.getDataChanges(lastDataFetch, dataVersion);
+        if (changes == null || changes.size() > MAX_APPLIED_CHANGES) {
+            return false;
+        }
+
+        int order = rel.getIdOrder().intValue();
+        boolean numeric;
+        try {
+            DbColumn idColumn = rel.otherType.getColumn(rel.otherType.getIDField());
+            numeric = idColumn != null && !idColumn.needsQuotes();
+        } catch (Exception x) {
+            return false;
+        }
+
+        // check all changes before modifying the list
+        Boolean[] members = new Boolean[changes.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = rel.matches(node, (DataChange) changes.get(i));
+            if (members[i] == null) {
+                return false;
+            }
+        }
+
+        List updated = new ArrayList(list);
+        for (int i = 0; i < members.length; i++) {
+            NodeHandle handle = ((DataChange) changes.get(i)).handle;
+            int index = updated.indexOf(handle);
+            if (!members[i].booleanValue()) {
+                if (index > -1) {
+                    updated.remove(index);
+                }
+            } else if (index < 0) {
+                if (order == 0) {
+                    updated.add(handle);
+                } else {
+                    updated.add(getInsertIndex(updated, handle, order, numeric), handle);
+                }
+            }
+        }
+        list = updated;
+        return true;
+    }
+
+    /**
+     * Find the index at which to insert a handle into a list sorted by id.
+     */
+    private int getInsertIndex(List sorted, NodeHandle handle, int order,
+                               boolean numeric) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            NodeHandle other = (NodeHandle) sorted.get(mid);
+            if (compareIds(other.getID(), handle.getID(), numeric) * order < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareIds(String id1, String id2, boolean numeric) {
+        if (numeric) {
+            try {
+                long l1 = Long.parseLong(id1);
+                long l2 = Long.parseLong(id2);
+                return l1 < l2 ? -1 : (l1 > l2 ? 1 : 0);
+            } catch (NumberFormatException x) {
+                // fall back to comparing strings
+            }
+        }
+        return id1.compareTo(id2);
+    }
+
     protected void prefetch(int start, int length) {
         if (start < 0 || start >= size()) {
             return;
@@ -164,8 +298,15 @@ public class SubnodeList implements Serializable {
         // include dbmap.getLastTypeChange to also reload if the type mapping has changed.
         long checkSum = lastSubnodeChange + node.dbmap.getLastTypeChange();
         Relation rel = getSubnodeRelation();
+        if (rel != null) {
+            // let the transactor know which type's data we depend on
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) {
+                tx.visitMapping(rel.otherType);
+            }
+        }
         return rel == null || rel.aggressiveCaching ?
-                checkSum : checkSum + rel.otherType.getLastDataChange();
+                checkSum : checkSum + rel.getLastDataChange(node);
     }
 
     protected synchronized void markAsChanged() {
@@ -0,0 +1,642 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ObjectCache;
+import helma.util.CacheMap;
+import helma.util.ConcurrentCacheMap;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A node cache using TinyLFU admission. New entries enter a small LRU
+ * window. Entries falling out of the window only make it into the
+ * segmented (probation/protected) main region if a frequency sketch says
+ * they have been requested more often than the entry they would replace.
+ * This keeps hot objects cached when a crawler or batch job walks large
+ * collections.
+ *
+ * Hits, misses, admission rejects and evictions are counted per prototype
+ * and reported in {@link #getStatistics()}. Misses are counted under the
+ * storage type name of the key since the actual type isn't known yet.
+ *
+ * To use this cache, set <code>cacheimpl = helma.objectmodel.db.TinyLfuCache</code>
+ * in the application's app.properties file. If the <code>cachetrace</code>
+ * property is set to a file name, all requested keys are appended to that
+ * file. Such trace files can be replayed against the available cache
+ * implementations using the {@link #main(String[])} method.
+ */
+public class TinyLfuCache implements ObjectCache {
+
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    // the cached entries
+    private final ConcurrentHashMap<Object, Entry> map = new ConcurrentHashMap<Object, Entry>();
+
+    // guards the queues and sizes below
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // sentinel heads of the window, probation and protected queues
+    private final Entry[] queues = new Entry[] {new Entry(), new Entry(), new Entry()};
+    private final int[] sizes = new int[3];
+
+    private int capacity;
+    private int windowMax;
+    private int protectedMax;
+
+    private volatile FrequencySketch sketch;
+
+    // per-type statistics
+    private final ConcurrentHashMap<String, TypeStats> stats = new ConcurrentHashMap<String, TypeStats>();
+
+    // optional key trace writer. we synchronize on traceLock rather than this
+    // since NodeManager uses the cache's monitor for its own purposes.
+    private final Object traceLock = new Object();
+    private volatile PrintWriter trace;
+    private String traceFile;
+
+    // the application to output messages to
+    private Application app = null;
+
+    /**
+     * Zero argument constructor. Creates a TinyLfuCache with capacity of 1000
+     */
+    public TinyLfuCache() {
+        this(1000);
+    }
+
+    /**
+     * Creates a TinyLfuCache with the given capacity.
+     * @param capacity the maximum number of cached objects
+     */
+    public TinyLfuCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        setCapacity(capacity);
+    }
+
+    /**
+     * Set the capacity of the cache, evicting entries if necessary.
+     */
+    public void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            if (capacity == this.capacity) {
+                return;
+            }
+            if (app != null && this.capacity > 0)
+                app.logEvent("Setting cache capacity to " + capacity);
+            this.capacity = capacity;
+            // 1% of the capacity for the admission window, 80% of the
+            // main region for the protected segment
+            windowMax = Math.max(1, capacity / 100);
+            protectedMax = (int) ((capacity - windowMax) * 0.8);
+            sketch = new FrequencySketch(capacity);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            updateProperties(app.getProperties());
+        }
+    }
+
+    /**
+     * Called when the application holding the cache is stopped.
+     */
+    public void shutdown() {
+        clear();
+        setTraceFile(null);
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        try {
+            int cacheSize = Integer.parseInt(props.getProperty("cachesize", "1000"));
+            setCapacity(cacheSize);
+        } catch (Exception x) {
+            String message = "Invalid cachesize setting: " + props.getProperty("cachesize");
+            if (app != null) {
+                app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+        setTraceFile(props.getProperty("cachetrace"));
+    }
+
+    private void setTraceFile(String file) {
+        synchronized (traceLock) {
+            if (file == null ? traceFile == null : file.equals(traceFile)) {
+                return;
+            }
+            if (trace != null) {
+                trace.close();
+                trace = null;
+            }
+            traceFile = file;
+            if (file != null) {
+                try {
+                    trace = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+                } catch (IOException x) {
+                    String message = "Error opening cache trace file " + file;
+                    if (app != null) {
+                        app.logError(message, x);
+                    } else {
+                        System.err.println(message);
+                    }
+                }
+            }
+        }
+    }
+
+    private void trace(Object key) {
+        synchronized (traceLock) {
+            if (trace != null) {
+                trace.println(key);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the collection contains an element for the key.
+     * @param key the key that we are looking for
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the number of keys in object array <code>keys</code> that
+     * were not found in the Map.
+     * Those keys that are contained in the Map are nulled out in the array.
+     * @param keys an array of key objects we are looking for
+     */
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (get(keys[i]) != null)
+                keys[i] = null;
+            else
+                notfound++;
+        }
+        return notfound;
+    }
+
+    /**
+     * Gets the object associated with the specified key in the cache.
+     * The lookup itself doesn't lock. Reordering of the LRU queues is
+     * skipped if another thread is currently holding the queue lock.
+     * @param key the specified key
+     * @return the element for the key or null if the key
+     *         is not defined in the cache.
+     */
+    public Object get(Object key) {
+        if (trace != null) {
+            trace(key);
+        }
+        sketch.increment(key);
+        Entry e = map.get(key);
+        if (e == null) {
+            getStats(typeName(key, null)).misses.incrementAndGet();
+            return null;
+        }
+        getStats(e.type).hits.incrementAndGet();
+        if (lock.tryLock()) {
+            try {
+                if (e.queue >= 0) {
+                    onAccess(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return e.value;
+    }
+
+    /**
+     * Puts the specified element into the cache, using the specified key.
+     * The key and the element cannot be null.
+     * @param key the specified key in the cache
+     * @param value the specified element
+     * @return the old value of the key, or null if it did not have one.
+     */
+    public Object put(Object key, Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        lock.lock();
+        try {
+            Entry e = map.get(key);
+            if (e != null) {
+                Object oldValue = e.value;
+                e.value = value;
+                e.type = typeName(key, value);
+                onAccess(e);
+                return oldValue;
+            }
+            e = new Entry(key, value, typeName(key, value));
+            map.put(key, e);
+            link(WINDOW, e);
+            evict();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the element corresponding to the key. Does nothing if the
+     * key is not present.
+     * @param key the key that needs to be removed
+     * @return the value of key, or null if the key was not found.
+     */
+    public Object remove(Object key) {
+        lock.lock();
+        try {
+            Entry e = map.remove(key);
+            if (e == null) {
+                return null;
+            }
+            unlink(e);
+            return e.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all items currently stored in the cache.
+     */
+    public boolean clear() {
+        lock.lock();
+        try {
+            map.clear();
+            for (int i = 0; i < queues.length; i++) {
+                queues[i].prev = queues[i].next = queues[i];
+                sizes[i] = 0;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of objects currently stored in the cache.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public Object[] getCachedObjects() {
+        return map.keySet().toArray();
+    }
+
+    public Map<String,Object> getStatistics() {
+        Map<String,Object> result = new HashMap<String,Object>();
+        long hits = 0, misses = 0, rejects = 0, evictions = 0;
+        Map<String,Object> types = new HashMap<String,Object>();
+        for (Iterator<Map.Entry<String,TypeStats>> it = stats.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,TypeStats> entry = it.next();
+            TypeStats s = entry.getValue();
+            hits += s.hits.get();
+            misses += s.misses.get();
+            rejects += s.rejects.get();
+            evictions += s.evictions.get();
+            types.put(entry.getKey(), s.toMap());
+        }
+        result.put("size", size());
+        result.put("capacity", capacity);
+        lock.lock();
+        try {
+            result.put("window", sizes[WINDOW]);
+            result.put("probation", sizes[PROBATION]);
+            result.put("protected", sizes[PROTECTED]);
+        } finally {
+            lock.unlock();
+        }
+        result.put("hits", hits);
+        result.put("misses", misses);
+        result.put("rejects", rejects);
+        result.put("evictions", evictions);
+        result.put("types", types);
+        return result;
+    }
+
+    // the following methods must be called while holding the lock
+
+    /**
+     * Update the queue position of an entry that has been accessed.
+     */
+    private void onAccess(Entry e) {
+        switch (e.queue) {
+            case WINDOW:
+            case PROTECTED:
+                int queue = e.queue;
+                unlink(e);
+                link(queue, e);
+                break;
+            case PROBATION:
+                unlink(e);
+                link(PROTECTED, e);
+                // demote least recently used protected entries
+                while (sizes[PROTECTED] > protectedMax) {
+                    Entry demoted = queues[PROTECTED].next;
+                    unlink(demoted);
+                    link(PROBATION, demoted);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Move entries from the window to the main region, evicting either the
+     * candidate or the main region's victim depending on their frequency.
+     */
+    private void evict() {
+        int mainMax = capacity - windowMax;
+        while (sizes[WINDOW] > windowMax) {
+            Entry candidate = queues[WINDOW].next;
+            unlink(candidate);
+            if (sizes[PROBATION] + sizes[PROTECTED] < mainMax) {
+                link(PROBATION, candidate);
+                continue;
+            }
+            Entry victim = sizes[PROBATION] > 0 ?
+                    queues[PROBATION].next : queues[PROTECTED].next;
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evictEntry(victim);
+                getStats(victim.type).evictions.incrementAndGet();
+                link(PROBATION, candidate);
+            } else {
+                map.remove(candidate.key, candidate);
+                getStats(candidate.type).rejects.incrementAndGet();
+            }
+        }
+        // shrink main region after the capacity has been reduced
+        while (sizes[PROBATION] + sizes[PROTECTED] > mainMax) {
+            Entry victim = sizes[PROBATION] > 0 ?
+                    queues[PROBATION].next : queues[PROTECTED].next;
+            evictEntry(victim);
+            getStats(victim.type).evictions.incrementAndGet();
+        }
+    }
+
+    private void evictEntry(Entry e) {
+        unlink(e);
+        map.remove(e.key, e);
+    }
+
+    private void link(int queue, Entry e) {
+        Entry head = queues[queue];
+        e.queue = queue;
+        e.next = head;
+        e.prev = head.prev;
+        head.prev.next = e;
+        head.prev = e;
+        sizes[queue]++;
+    }
+
+    private void unlink(Entry e) {
+        if (e.queue < 0) {
+            return;
+        }
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+        sizes[e.queue]--;
+        e.queue = -1;
+    }
+
+    private TypeStats getStats(String type) {
+        TypeStats s = stats.get(type);
+        if (s == null) {
+            s = new TypeStats();
+            TypeStats other = stats.putIfAbsent(type, s);
+            if (other != null) {
+                s = other;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Get the name used to group statistics for a cache entry.
+     */
+    static String typeName(Object key, Object value) {
+        if (value instanceof Node) {
+            Node node = (Node) value;
+            if (node.isNullNode()) {
+                return "null";
+            }
+            DbMapping dbmap = node.getDbMapping();
+            if (dbmap != null && dbmap.getTypeName() != null) {
+                return dbmap.getTypeName();
+            }
+            return node.getPrototype();
+        }
+        if (key instanceof Key) {
+            String name = ((Key) key).getStorageName();
+            return name == null ? "HopObject" : name;
+        }
+        if (key instanceof String) {
+            // keys read from trace files look like DbKey.toString()
+            String str = (String) key;
+            int bracket = str.indexOf('[');
+            return bracket > 0 ? str.substring(0, bracket) : "HopObject";
+        }
+        return "unknown";
+    }
+
+    /**
+     * Replay a trace file recorded via the <code>cachetrace</code> property
+     * against CacheMap, ConcurrentCacheMap and TinyLfuCache and print the
+     * resulting hit rates.
+     *
+     * @param args the trace file name and optionally the cache size
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java helma.objectmodel.db.TinyLfuCache <tracefile> [cachesize]");
+            System.exit(1);
+        }
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        ObjectCache[] caches = new ObjectCache[] {
+            new CacheMap(size), new ConcurrentCacheMap(size), new TinyLfuCache(size)
+        };
+        long[] hits = new long[caches.length];
+        long requests = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                // share one key instance across caches
+                String key = line.intern();
+                requests++;
+                for (int i = 0; i < caches.length; i++) {
+                    if (caches[i].get(key) != null) {
+                        hits[i]++;
+                    } else {
+                        caches[i].put(key, key);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.println("Replayed " + requests + " requests with cache size " + size);
+        for (int i = 0; i < caches.length; i++) {
+            double rate = requests == 0 ? 0 : 100.0 * hits[i] / requests;
+            System.out.println(caches[i].getClass().getName() + ": " + hits[i] +
+                    " hits, " + (requests - hits[i]) + " misses, hit rate " +
+                    Math.round(rate * 100) / 100.0 + "%");
+        }
+    }
+
+    /**
+     * A cache entry, linked into one of the three queues.
+     */
+    static final class Entry {
+        final Object key;
+        volatile Object value;
+        volatile String type;
+        Entry prev, next;
+        int queue = -1;
+
+        // constructor for sentinel queue heads
+        Entry() {
+            key = null;
+            prev = next = this;
+        }
+
+        Entry(Object key, Object value, String type) {
+            this.key = key;
+            this.value = value;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Hit, miss, reject and eviction counters for one type.
+     */
+    static final class TypeStats {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong rejects = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        Map<String,Object> toMap() {
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("hits", hits.get());
+            map.put("misses", misses.get());
+            map.put("rejects", rejects.get());
+            map.put("evictions", evictions.get());
+            return map;
+        }
+    }
+
+    /**
+     * A count-min sketch with four 4-bit-saturating rows that estimates how
+     * often a key has been requested recently. Counters are halved once the
+     * number of increments reaches ten times the cache capacity so that old
+     * popularity fades out. Updates are not synchronized, the resulting
+     * inaccuracy is acceptable for admission decisions.
+     */
+    static final class FrequencySketch {
+        static final long[] SEEDS = new long[] {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+
+        final byte[][] table;
+        final int mask;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(int capacity) {
+            int width = 16;
+            while (width < capacity) {
+                width <<= 1;
+            }
+            table = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = Math.max(10 * capacity, 10);
+        }
+
+        int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < table.length; i++) {
+                int idx = index(hash, i);
+                if (table[i][idx] < 15) {
+                    table[i][idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int freq = Integer.MAX_VALUE;
+            for (int i = 0; i < table.length; i++) {
+                freq = Math.min(freq, table[i][index(hash, i)]);
+            }
+            return freq;
+        }
+
+        void reset() {
+            for (int i = 0; i < table.length; i++) {
+                byte[] row = table[i];
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = (byte) (row[j] >> 1);
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -57,6 +57,16 @@ public class Transactor {
     // Set of SQL connections that already have been verified
     private Map<DbSource, Long> testedConnections;
 
+    // Prepared statement caches for unpooled SQL connections
+    private Map<DbSource, StatementCache> statementCaches;
+
+    // DbMappings read in the current transaction along with their data version
+    // at first access, only collected if read tracking is enabled
+    private Map<DbMapping, Long> readMappings;
+
+    // set if something was read or written that can't be tracked by DbMapping
+    private boolean readsUntracked;
+
     // when did the current transaction start?
     private long tstart;
 
@@ -83,6 +93,7 @@ public class Transactor {
 
         sqlConnections = new HashMap<DbSource, Connection>();
         testedConnections = new HashMap<DbSource, Long>();
+        statementCaches = new HashMap<DbSource, StatementCache>();
         active = false;
         killed = false;
     }
@@ -164,6 +175,9 @@ public class Transactor {
      */
     public void visitCleanNode(Node node) {
         if (node != null) {
+            if (readMappings != null) {
+                visitMapping(node.getDbMapping());
+            }
             Key key = node.getKey();
 
             if (!cleanNodes.containsKey(key)) {
@@ -180,6 +194,9 @@ public class Transactor {
      */
     public void visitCleanNode(Key key, Node node) {
         if (node != null) {
+            if (readMappings != null) {
+                visitMapping(node.getDbMapping());
+            }
             if (!cleanNodes.containsKey(key)) {
                 cleanNodes.put(key, node);
             }
@@ -205,6 +222,56 @@ public class Transactor {
         return (key == null) ? null : (Node) cleanNodes.get(key);
     }
 
+    /**
+     * Enable or disable tracking of the DbMappings read in the current
+     * transaction. This must be called after {@link #begin(String)}.
+     *
+     * @param track true to collect the DbMappings read by this transaction
+     */
+    public void setReadTracking(boolean track) {
+        readMappings = track ? new HashMap<DbMapping, Long>() : null;
+        readsUntracked = false;
+    }
+
+    /**
+     * Register a DbMapping whose data was read in the current transaction.
+     * This does nothing unless read tracking is enabled.
+     *
+     * @param dbm the DbMapping, or null if a node without mapping was read
+     */
+    public void visitMapping(DbMapping dbm) {
+        if (readMappings != null) {
+            if (dbm == null) {
+                readsUntracked = true;
+            } else if (!readMappings.containsKey(dbm)) {
+                readMappings.put(dbm, new Long(getDataVersion(dbm)));
+            }
+        }
+    }
+
+    /**
+     * Return the DbMappings read in the last transaction, mapped to their data
+     * version as returned by {@link #getDataVersion(DbMapping)} when first read.
+     * Returns null if read tracking wasn't enabled or if the transaction did
+     * anything that can't be tracked, including writing any data.
+     *
+     * @return the map of DbMappings read, or null
+     */
+    public Map<DbMapping, Long> getReadMappings() {
+        return readsUntracked ? null : readMappings;
+    }
+
+    /**
+     * Get a number that changes whenever the data or the type definition
+     * of the given DbMapping changes.
+     *
+     * @param dbm the DbMapping
+     * @return the data version of the mapping
+     */
+    public static long getDataVersion(DbMapping dbm) {
+        return dbm.getLastDataChange() + dbm.getLastTypeChange();
+    }
+
     /**
      *
      *
@@ -238,7 +305,15 @@ public class Transactor {
      * @param con the connection
      */
     public void registerConnection(DbSource src, Connection con) {
-        sqlConnections.put(src, con);
+        Connection old = sqlConnections.put(src, con);
+        ConnectionPool pool = src.getConnectionPool();
+        if (old != con) {
+            dropStatementCache(src);
+        }
+        if (old != null && old != con && pool != null) {
+            // give back the pool slot held by the replaced connection
+            pool.discard(old);
+        }
         // we assume a freshly created connection is ok.
         testedConnections.put(src, new Long(System.currentTimeMillis()));
     }
@@ -252,7 +327,9 @@ public class Transactor {
         Connection con = sqlConnections.get(src);
         Long tested = testedConnections.get(src);
         long now = System.currentTimeMillis();
-        if (con != null && (tested == null || now - tested.longValue() > 60000)) {
+        // pooled connections are validated by the pool when borrowed
+        if (con != null && src.getConnectionPool() == null &&
+                (tested == null || now - tested.longValue() > 60000)) {
             // Check if the connection is still alive by executing a simple statement.
             try {
                 Statement stmt = con.createStatement();
@@ -264,6 +341,7 @@ public class Transactor {
                 stmt.close();
                 testedConnections.put(src, new Long(now));
             } catch (SQLException sx) {
+                dropStatementCache(src);
                 try {
                     con.close();
                 } catch (SQLException ignore) {/* nothing to do */}
@@ -273,6 +351,40 @@ public class Transactor {
         return con;
     }
 
+    /**
+     * Get the prepared statement cache for a connection previously
+     * registered with this transactor.
+     * @param src the db source
+     * @param con the connection
+     * @return the statement cache for the connection
+     */
+    StatementCache getStatementCache(DbSource src, Connection con) {
+        ConnectionPool pool = src.getConnectionPool();
+        if (pool != null) {
+            StatementCache cache = pool.getStatementCache(con);
+            return cache == null ? StatementCache.UNCACHED : cache;
+        }
+        if (sqlConnections.get(src) != con) {
+            return StatementCache.UNCACHED;
+        }
+        StatementCache cache = statementCaches.get(src);
+        if (cache == null) {
+            cache = new StatementCache(src.getStatementCacheSize());
+            statementCaches.put(src, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Close and remove the statement cache for an unpooled connection.
+     */
+    private void dropStatementCache(DbSource src) {
+        StatementCache cache = statementCaches.remove(src);
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
     /**
      * Start a new transaction with the given name.
      *
@@ -291,6 +403,7 @@ public class Transactor {
         dirtyNodes.clear();
         cleanNodes.clear();
         parentNodes.clear();
+        readMappings = null;
         txn = nmgr.db.beginTransaction();
         active = true;
         tstart = System.currentTimeMillis();
@@ -326,74 +439,101 @@ public class Transactor {
             modifiedParentNodes = new ArrayList();
         }
 
+        if (!dirtyNodes.isEmpty() || !parentNodes.isEmpty()) {
+            // writing transactions don't have a stable read set
+            readsUntracked = true;
+        }
+
         if (!dirtyNodes.isEmpty()) {
             Object[] dirty = dirtyNodes.values().toArray();
 
             // the set to collect DbMappings to be marked as changed
             HashSet dirtyDbMappings = new HashSet();
+            // the committed changes of relational nodes by DbMapping
+            HashMap dataChanges = new HashMap();
             Log eventLog = nmgr.app.getEventLog();
 
-            for (int i = 0; i < dirty.length; i++) {
-                Node node = (Node) dirty[i];
+            // collect relational writes in a batch if enabled
+            StatementBatch batch = nmgr.isBatchCommit() ? new StatementBatch() : null;
 
-                // update nodes in db
-                int nstate = node.getState();
-
-                if (nstate == Node.NEW) {
-                    nmgr.insertNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-                    node.setState(Node.CLEAN);
+            try {
+                for (int i = 0; i < dirty.length; i++) {
+                    Node node = (Node) dirty[i];
 
-                    // register node with nodemanager cache
-                    nmgr.registerNode(node);
+                    // update nodes in db
+                    int nstate = node.getState();
 
-                    if (hasListeners) {
-                        insertedNodes.add(node);
-                    }
-
-                    inserted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("inserted node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.MODIFIED) {
-                    // only mark DbMapping as dirty if updateNode returns true
-                    if (nmgr.updateNode(nmgr.db, txn, node)) {
+                    if (nstate == Node.NEW) {
+                        nmgr.insertNode(nmgr.db, txn, node, batch);
                         dirtyDbMappings.add(node.getDbMapping());
-                    }
-                    node.setState(Node.CLEAN);
-
-                    // update node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (hasListeners) {
-                        updatedNodes.add(node);
-                    }
+                        logDataChange(dataChanges, node, createDataChange(node, false));
+                        node.setState(Node.CLEAN);
+
+                        // register node with nodemanager cache
+                        nmgr.registerNode(node);
+
+                        if (hasListeners) {
+                            insertedNodes.add(node);
+                        }
+
+                        inserted++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("inserted node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
+                    } else if (nstate == Node.MODIFIED) {
+                        // capture the written columns while they're still dirty
+                        DataChange change = createDataChange(node, false);
+                        // only mark DbMapping as dirty if updateNode returns true
+                        if (nmgr.updateNode(nmgr.db, txn, node, batch)) {
+                            dirtyDbMappings.add(node.getDbMapping());
+                            logDataChange(dataChanges, node, change);
+                        }
+                        node.setState(Node.CLEAN);
+
+                        // update node with nodemanager cache
+                        nmgr.registerNode(node);
+
+                        if (hasListeners) {
+                            updatedNodes.add(node);
+                        }
+
+                        updated++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("updated node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
+                    } else if (nstate == Node.DELETED) {
+                        DataChange change = createDataChange(node, true);
+                        nmgr.deleteNode(nmgr.db, txn, node, batch);
+                        dirtyDbMappings.add(node.getDbMapping());
+                        logDataChange(dataChanges, node, change);
 
-                    updated++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("updated node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.DELETED) {
-                    nmgr.deleteNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
+                        // remove node from nodemanager cache
+                        nmgr.evictNode(node);
 
-                    // remove node from nodemanager cache
-                    nmgr.evictNode(node);
+                        if (hasListeners) {
+                            deletedNodes.add(node);
+                        }
 
-                    if (hasListeners) {
-                        deletedNodes.add(node);
+                        deleted++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("removed node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
                     }
 
-                    deleted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("removed node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
+                    node.clearWriteLock();
                 }
 
-                node.clearWriteLock();
+                // send batched relational writes to the database
+                if (batch != null) {
+                    nmgr.executeBatch(batch);
+                }
+            } finally {
+                if (batch != null) {
+                    batch.close();
+                }
             }
 
             // set last data change times in db-mappings
@@ -401,7 +541,13 @@ public class Transactor {
             for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
                 DbMapping dbm = (DbMapping) i.next();
                 if (dbm != null) {
-                    dbm.setLastDataChange();
+                    List changes = (List) dataChanges.get(dbm);
+                    if (changes != null &&
+                            changes.size() <= SubnodeList.MAX_APPLIED_CHANGES) {
+                        dbm.setLastDataChange(changes);
+                    } else {
+                        dbm.setLastDataChange();
+                    }
                 }
             }
         }
@@ -426,6 +572,8 @@ public class Transactor {
 
         // clear the node collections
         recycle();
+        // return pooled JDBC connections
+        releaseConnections();
 
         if (active) {
             active = false;
@@ -447,6 +595,39 @@ public class Transactor {
         tname = null;
     }
 
+    /**
+     * Create the DataChange for a relational node, or return null for
+     * nodes stored in the embedded database.
+     */
+    private DataChange createDataChange(Node node, boolean deleted)
+            throws ClassNotFoundException, SQLException {
+        DbMapping dbm = node.getDbMapping();
+        if (dbm == null || !dbm.isRelational()) {
+            return null;
+        }
+        return new DataChange(node, deleted);
+    }
+
+    /**
+     * Remember the change of a relational node so that cached subnode lists
+     * can be updated without reloading them.
+     */
+    private void logDataChange(HashMap dataChanges, Node node, DataChange change) {
+        if (change == null) {
+            return;
+        }
+        DbMapping dbm = node.getDbMapping();
+        List changes = (List) dataChanges.get(dbm);
+        if (changes == null) {
+            changes = new ArrayList();
+            dataChanges.put(dbm, changes);
+        }
+        // lists are reloaded after large transactions anyway
+        if (changes.size() <= SubnodeList.MAX_APPLIED_CHANGES) {
+            changes.add(change);
+        }
+    }
+
     /**
      * Abort the current transaction, rolling back all changes made.
      */
@@ -527,23 +708,59 @@ public class Transactor {
     }
 
     /**
-     * Closes all open JDBC connections
+     * Closes all open JDBC connections. Connections borrowed from a
+     * connection pool are returned to the pool instead, unless this
+     * transactor has been killed.
      */
     public void closeConnections() {
         if (sqlConnections != null) {
-            for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
+            for (Iterator i = sqlConnections.entrySet().iterator(); i.hasNext();) {
                 try {
-                    Connection con = (Connection) i.next();
-
-                    con.close();
-                    nmgr.app.logEvent("Closing DB connection: " + con);
+                    Map.Entry entry = (Map.Entry) i.next();
+                    DbSource src = (DbSource) entry.getKey();
+                    Connection con = (Connection) entry.getValue();
+                    ConnectionPool pool = src.getConnectionPool();
+
+                    if (pool == null) {
+                        con.close();
+                        nmgr.app.logEvent("Closing DB connection: " + con);
+                    } else if (killed) {
+                        // the connection may still be in use by our thread
+                        pool.discard(con);
+                    } else {
+                        pool.release(con);
+                    }
                 } catch (Exception ignore) {
                     // exception closing db connection, ignore
                 }
             }
 
+            for (Iterator i = statementCaches.values().iterator(); i.hasNext();) {
+                ((StatementCache) i.next()).close();
+            }
+
             sqlConnections.clear();
             testedConnections.clear();
+            statementCaches.clear();
+        }
+    }
+
+    /**
+     * Return JDBC connections borrowed from connection pools at the end of
+     * a transaction. Unpooled connections are kept open for reuse by the
+     * next transaction of this thread.
+     */
+    private void releaseConnections() {
+        for (Iterator i = sqlConnections.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            DbSource src = (DbSource) entry.getKey();
+            ConnectionPool pool = src.getConnectionPool();
+
+            if (pool != null) {
+                pool.release((Connection) entry.getValue());
+                testedConnections.remove(src);
+                i.remove();
+            }
         }
     }
 
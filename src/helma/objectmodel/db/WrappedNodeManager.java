@@ -170,6 +170,32 @@ public final class WrappedNodeManager {
         }
     }
 
+    public void prefetchReferences(Node node, Relation rel) {
+        try {
+            nmgr.prefetchReferences(node, rel);
+        } catch (Exception x) {
+            throw new RuntimeException("Error prefetching references", x);
+        }
+    }
+
+    /**
+     * Count an update of a cached subnode list.
+     *
+     * @param reload true if the list was reloaded, false if it was updated
+     *               from logged data changes
+     */
+    public void countSubnodeUpdate(boolean reload) {
+        nmgr.countSubnodeUpdate(reload);
+    }
+
+    public Property loadLazyProperty(Node node, Relation rel) {
+        try {
+            return nmgr.loadLazyProperty(node, rel);
+        } catch (Exception x) {
+            throw new RuntimeException("Error loading lazy property", x);
+        }
+    }
+
     /**
      * Delete a node from the database
      *
@@ -301,6 +327,16 @@ public final class WrappedNodeManager {
         nmgr.app.logEvent(msg);
     }
 
+    /**
+     * Get the embedded database as child page store, or null if the
+     * embedded database always stores child lists inline.
+     *
+     * @return the child page store, or null
+     */
+    public ChildPageStore getChildPageStore() {
+        return nmgr.getChildPageStore();
+    }
+
     /**
      * Get the DbMapping corresponding to a type name
      *
@@ -0,0 +1,452 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.dom;
+
+import helma.objectmodel.INode;
+import helma.objectmodel.IProperty;
+import helma.objectmodel.db.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary serialization for nodes of the embedded database. It
+ * stores the same information as {@link XmlWriter} does in database mode:
+ * the node's id, name, prototype and timestamps, its parent reference, its
+ * primitive and reference properties, and references to its children.
+ *
+ * Property and prototype names are written once to a dictionary at the
+ * start of each record and referenced by index; when reading, dictionary
+ * entries are interned so nodes share their name strings. Counts and
+ * lengths are written as variable length integers.
+ *
+ * <pre>
+ * record:     'H' 'N' version, dictionary, node
+ * dictionary: count, string*
+ * node:       id, name, prototype#, created, lastModified, parent?,
+ *             propertyCount, property*, children
+ * property:   name#, type, value
+ * children:   0, childCount, reference* | 1, pageCount, (pageId, pageSize)*
+ * reference:  id, prototype#
+ * </pre>
+ *
+ * Records of version 1 have no children type and always store children inline.
+ */
+public final class BinaryNodeCodec {
+
+    static final int MAGIC_0 = 'H';
+    static final int MAGIC_1 = 'N';
+    static final int VERSION = 2;
+
+    /**
+     * Check if a stored node record is in binary format.
+     *
+     * @param data the record
+     * @return true if the record was written by this codec
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length > 2 && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+    }
+
+    /**
+     * Serialize a node.
+     *
+     * @param node the node
+     * @return the node's binary representation
+     * @throws IOException if serialization fails
+     */
+    public static byte[] encode(INode node) throws IOException {
+        return encode(node, false);
+    }
+
+    /**
+     * Serialize a node, optionally writing child lists stored in separate
+     * pages inline so the record doesn't depend on other records.
+     *
+     * @param node the node
+     * @param inline true to write all children inline
+     * @return the node's binary representation
+     * @throws IOException if serialization fails
+     */
+    public static byte[] encode(INode node, boolean inline) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        write(node, bout, inline);
+        return bout.toByteArray();
+    }
+
+    /**
+     * Serialize a node to a stream.
+     *
+     * @param node the node
+     * @param stream the stream to write to
+     * @throws IOException if serialization fails
+     */
+    public static void write(INode node, OutputStream stream) throws IOException {
+        write(node, stream, false);
+    }
+
+    /**
+     * Serialize a node to a stream.
+     *
+     * @param node the node
+     * @param stream the stream to write to
+     * @param inline true to write child lists stored in separate pages inline
+     * @throws IOException if serialization fails
+     */
+    public static void write(INode node, OutputStream stream, boolean inline)
+            throws IOException {
+        Dictionary dict = new Dictionary();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(body);
+
+        writeString(out, node.getID());
+        writeString(out, node.getName());
+        writeVarInt(out, dict.index(getPrototype(node)));
+        out.writeLong(node.created());
+        out.writeLong(node.lastModified());
+
+        INode parent = node.getParent();
+        out.writeBoolean(parent != null);
+        if (parent != null) {
+            writeReference(out, dict, parent);
+        }
+
+        writeProperties(out, dict, node);
+        writeChildren(out, dict, node, inline);
+        out.flush();
+
+        DataOutputStream header = new DataOutputStream(stream);
+        header.writeByte(MAGIC_0);
+        header.writeByte(MAGIC_1);
+        header.writeByte(VERSION);
+        writeVarInt(header, dict.names.size());
+        for (Iterator i = dict.names.iterator(); i.hasNext(); ) {
+            writeString(header, (String) i.next());
+        }
+        header.flush();
+        body.writeTo(stream);
+    }
+
+    /**
+     * Read a node from its binary representation.
+     *
+     * @param nmgr the node manager
+     * @param data the record
+     * @return the node
+     * @throws IOException if the record is malformed
+     */
+    public static Node read(NodeManager nmgr, byte[] data) throws IOException {
+        return read(nmgr, new ByteArrayInputStream(data), null);
+    }
+
+    /**
+     * Read a node from a stream.
+     *
+     * @param nmgr the node manager
+     * @param stream the stream to read from
+     * @return the node
+     * @throws IOException if the record is malformed
+     */
+    public static Node read(NodeManager nmgr, InputStream stream) throws IOException {
+        return read(nmgr, stream, null);
+    }
+
+    /**
+     * Read a node, collecting the prototypes of the nodes it refers to.
+     *
+     * @param nmgr the node manager
+     * @param stream the stream to read from
+     * @param references map to put the keys and prototypes of referenced nodes in, or null
+     * @return the node
+     * @throws IOException if the record is malformed
+     */
+    static Node read(NodeManager nmgr, InputStream stream, Map references)
+            throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readUnsignedByte() != MAGIC_0 || in.readUnsignedByte() != MAGIC_1) {
+            throw new IOException("Not a binary node record");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary node version " + version);
+        }
+
+        String[] dict = new String[readVarInt(in)];
+        for (int i = 0; i < dict.length; i++) {
+            dict[i] = readString(in).intern();
+        }
+
+        String id = readString(in);
+        String name = readString(in);
+        String prototype = dict[readVarInt(in)];
+        long created = in.readLong();
+        long lastModified = in.readLong();
+
+        Node node = new Node(name, id, prototype, nmgr.safe, created, lastModified);
+
+        if (in.readBoolean()) {
+            node.setParentHandle(readReference(nmgr, in, dict, references));
+        }
+
+        int count = readVarInt(in);
+        if (count > 0) {
+            Hashtable propMap = new Hashtable(count * 2);
+            node.setPropMap(propMap);
+            for (int i = 0; i < count; i++) {
+                String propName = dict[readVarInt(in)];
+                Property prop = new Property(propName, node);
+                int type = in.readUnsignedByte();
+                switch (type) {
+                    case IProperty.STRING:
+                        prop.setStringValue(readString(in));
+                        break;
+                    case IProperty.BOOLEAN:
+                        prop.setBooleanValue(in.readBoolean());
+                        break;
+                    case IProperty.INTEGER:
+                        prop.setIntegerValue(in.readLong());
+                        break;
+                    case IProperty.FLOAT:
+                        prop.setFloatValue(in.readDouble());
+                        break;
+                    case IProperty.DATE:
+                        long time = in.readLong();
+                        prop.setDateValue(time == Long.MIN_VALUE ? null : new Date(time));
+                        break;
+                    case IProperty.NODE:
+                        prop.setNodeHandle(readReference(nmgr, in, dict, references));
+                        break;
+                    default:
+                        throw new IOException("Unknown property type " + type);
+                }
+                propMap.put(node.getDbMapping().getApplication()
+                                .correctPropertyName(propName), prop);
+            }
+        }
+
+        boolean paged = version > 1 && in.readUnsignedByte() == 1;
+        count = readVarInt(in);
+        if (paged) {
+            SubnodeList subnodes = node.createSubnodeList();
+            if (!(subnodes instanceof PagedSubnodeList)) {
+                throw new IOException("Database doesn't support child pages: " + node);
+            }
+            for (int i = 0; i < count; i++) {
+                int pageId = readVarInt(in);
+                ((PagedSubnodeList) subnodes).addPage(pageId, readVarInt(in));
+            }
+        } else if (count > 0) {
+            SubnodeList subnodes = node.createSubnodeList();
+            for (int i = 0; i < count; i++) {
+                subnodes.add(readReference(nmgr, in, dict, references));
+            }
+        }
+
+        return node;
+    }
+
+    private static void writeProperties(DataOutputStream out, Dictionary dict, INode node)
+            throws IOException {
+        List props = new ArrayList();
+        Enumeration e;
+
+        if (node instanceof Node) {
+            Hashtable propMap = ((Node) node).getPropMap();
+            e = propMap == null ? null : propMap.keys();
+        } else {
+            e = node.properties();
+        }
+
+        while (e != null && e.hasMoreElements()) {
+            String key = (String) e.nextElement();
+            if (key.charAt(0) == '_') {
+                continue;
+            }
+            IProperty prop = node.get(key);
+            if (prop == null || prop.getType() == IProperty.JAVAOBJECT) {
+                // java objects can't be stored, just like in XML
+                continue;
+            }
+            if (prop.getType() == IProperty.NODE && prop.getNodeValue() == null) {
+                continue;
+            }
+            props.add(new Object[] {key, prop});
+        }
+
+        writeVarInt(out, props.size());
+        for (Iterator i = props.iterator(); i.hasNext(); ) {
+            Object[] entry = (Object[]) i.next();
+            IProperty prop = (IProperty) entry[1];
+            int type = prop.getType();
+            writeVarInt(out, dict.index((String) entry[0]));
+            out.writeByte(type);
+            switch (type) {
+                case IProperty.STRING:
+                    writeString(out, prop.getStringValue());
+                    break;
+                case IProperty.BOOLEAN:
+                    out.writeBoolean(prop.getBooleanValue());
+                    break;
+                case IProperty.INTEGER:
+                    out.writeLong(prop.getIntegerValue());
+                    break;
+                case IProperty.FLOAT:
+                    out.writeDouble(prop.getFloatValue());
+                    break;
+                case IProperty.DATE:
+                    Date date = prop.getDateValue();
+                    out.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+                    break;
+                case IProperty.NODE:
+                    writeReference(out, dict, prop.getNodeValue());
+                    break;
+            }
+        }
+    }
+
+    private static void writeChildren(DataOutputStream out, Dictionary dict, INode node,
+                                      boolean inline) throws IOException {
+        if (node instanceof Node) {
+            DbMapping dbmap = ((Node) node).getDbMapping();
+            DbMapping smap = dbmap == null ? null : dbmap.getSubnodeMapping();
+            if (smap != null && smap.isRelational()) {
+                // children are stored in the relational database
+                out.writeByte(0);
+                writeVarInt(out, 0);
+                return;
+            }
+
+            SubnodeList subnodes = ((Node) node).getSubnodeList();
+            if (subnodes instanceof PagedSubnodeList && !inline) {
+                PagedSubnodeList paged = (PagedSubnodeList) subnodes;
+                synchronized (paged) {
+                    if (paged.isPaged()) {
+                        // children are stored in separate pages
+                        int l = paged.countPages();
+                        out.writeByte(1);
+                        writeVarInt(out, l);
+                        for (int i = 0; i < l; i++) {
+                            writeVarInt(out, paged.getPageId(i));
+                            writeVarInt(out, paged.getPageLength(i));
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        List children = new ArrayList();
+        for (Enumeration e = node.getSubnodes(); e.hasMoreElements(); ) {
+            children.add(e.nextElement());
+        }
+        out.writeByte(0);
+        writeVarInt(out, children.size());
+        for (Iterator i = children.iterator(); i.hasNext(); ) {
+            writeReference(out, dict, (INode) i.next());
+        }
+    }
+
+    private static void writeReference(DataOutputStream out, Dictionary dict, INode node)
+            throws IOException {
+        writeString(out, node.getID());
+        writeVarInt(out, dict.index(getPrototype(node)));
+    }
+
+    private static NodeHandle readReference(NodeManager nmgr, DataInputStream in,
+                                            String[] dict, Map references)
+            throws IOException {
+        String id = readString(in);
+        String prototype = dict[readVarInt(in)];
+        NodeHandle handle = new NodeHandle(new DbKey(nmgr.getDbMapping(prototype), id));
+        if (references != null) {
+            references.put(handle.getKey(), prototype);
+        }
+        return handle;
+    }
+
+    // same default as XmlWriter
+    private static String getPrototype(INode node) {
+        String prototype = node.getPrototype();
+        return prototype == null || prototype.length() == 0 ? "hopobject" : prototype;
+    }
+
+    // write a nullable string as varint length + 1 followed by UTF-8 bytes
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * The names used in a record, in order of first use.
+     */
+    static final class Dictionary {
+        final List names = new ArrayList();
+        final HashMap indexes = new HashMap();
+
+        int index(String name) {
+            Integer index = (Integer) indexes.get(name);
+            if (index == null) {
+                index = new Integer(names.size());
+                names.add(name);
+                indexes.put(name, index);
+            }
+            return index.intValue();
+        }
+    }
+}
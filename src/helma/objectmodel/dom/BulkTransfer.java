@@ -0,0 +1,443 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.dom;
+
+import helma.framework.core.Application;
+import helma.objectmodel.IDatabase;
+import helma.objectmodel.INode;
+import helma.objectmodel.ITransaction;
+import helma.objectmodel.IProperty;
+import helma.objectmodel.db.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the object graph of an application to a compressed stream of
+ * {@link BinaryNodeCodec} records and imports it back, using several
+ * worker threads. This is used by {@link helma.main.CommandlineRunner}'s
+ * <code>-export</code> and <code>-import</code> options.
+ *
+ * The export starts at the root and user root nodes and follows child
+ * lists and node references. Child lists stored in separate pages are
+ * written inline.
+ *
+ * The import doesn't go through the Transactor: nodes are written directly
+ * to the embedded database, replacing existing nodes with the same id, or
+ * inserted into their relational tables using one statement batch per
+ * worker and chunk. The type of a node is taken from the importing
+ * application, so data can be moved from the embedded database to
+ * relational tables by mapping the prototypes in the target application.
+ * Afterwards the embedded id generator is set past the highest imported
+ * numeric id. Database sequences used as id generators are not adjusted.
+ */
+public class BulkTransfer {
+
+    static final int MAGIC = 0x48424c4b;
+    static final int VERSION = 1;
+
+    // milliseconds between progress reports
+    static final long REPORT_INTERVAL = 5000;
+
+    private final Application app;
+    private final NodeManager nmgr;
+    private final int threads;
+    private final int batchSize;
+    private final PrintStream log;
+
+    private final AtomicLong count = new AtomicLong();
+    private volatile Exception error = null;
+    private long started;
+    private long lastReport;
+
+    /**
+     * Create a bulk transfer for an application.
+     *
+     * @param app the application
+     * @param threads the number of worker threads
+     * @param batchSize the number of nodes written per transaction
+     * @param log the stream to write progress reports to
+     */
+    public BulkTransfer(Application app, int threads, int batchSize, PrintStream log) {
+        this.app = app;
+        this.nmgr = app.getNodeManager();
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.log = log;
+    }
+
+    /**
+     * Export all nodes reachable from the root and user root nodes.
+     *
+     * @param stream the stream to write to, closed when done
+     * @return the number of nodes written
+     * @throws Exception if a node couldn't be read or written
+     */
+    public long exportNodes(OutputStream stream) throws Exception {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(stream, 65536), 65536));
+        final BlockingQueue queue = new LinkedBlockingQueue();
+        final Map visited = new ConcurrentHashMap();
+        final AtomicInteger pending = new AtomicInteger();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        Transactor tx = Transactor.getInstance(nmgr);
+        tx.begin("bulk export");
+        try {
+            enqueue(nmgr.getRootNode().getHandle(), queue, visited, pending);
+            enqueue(((Node) app.getUserRoot()).getHandle(), queue, visited, pending);
+            tx.commit();
+        } finally {
+            tx.closeConnections();
+        }
+
+        start("Exporting");
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread("BulkExport-" + i) {
+                public void run() {
+                    exportWorker(out, queue, visited, pending);
+                }
+            };
+            workers[i].start();
+        }
+        join(workers);
+
+        try {
+            if (error != null) {
+                throw error;
+            }
+            out.writeInt(0);
+            out.writeLong(count.get());
+        } finally {
+            out.close();
+        }
+        finish("Exported");
+        return count.get();
+    }
+
+    private void exportWorker(DataOutputStream out, BlockingQueue queue, Map visited,
+                              AtomicInteger pending) {
+        Transactor tx = Transactor.getInstance(nmgr);
+        int processed = 0;
+        try {
+            tx.begin("bulk export");
+            while (error == null) {
+                NodeHandle handle = (NodeHandle) queue.poll(100, TimeUnit.MILLISECONDS);
+                if (handle == null) {
+                    if (pending.get() == 0) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    Node node = handle.getNode(nmgr.safe);
+                    if (node != null) {
+                        byte[] record = BinaryNodeCodec.encode(node, true);
+                        synchronized (out) {
+                            out.writeInt(record.length);
+                            out.write(record);
+                        }
+                        count.incrementAndGet();
+
+                        SubnodeList subnodes = node.getSubnodeList();
+                        if (subnodes != null) {
+                            for (int i = 0; i < subnodes.size(); i++) {
+                                enqueue(subnodes.get(i), queue, visited, pending);
+                            }
+                        }
+                        Hashtable propMap = node.getPropMap();
+                        if (propMap != null) {
+                            for (Iterator i = propMap.values().iterator(); i.hasNext(); ) {
+                                Property prop = (Property) i.next();
+                                if (prop.getType() == IProperty.NODE) {
+                                    enqueue(prop.getNodeHandle(), queue, visited, pending);
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    pending.decrementAndGet();
+                }
+                if (++processed % batchSize == 0) {
+                    // release the nodes read so far
+                    tx.commit();
+                    tx.begin("bulk export");
+                }
+            }
+            tx.commit();
+        } catch (Exception x) {
+            error = x;
+            tx.abort();
+        } finally {
+            tx.closeConnections();
+        }
+    }
+
+    private void enqueue(NodeHandle handle, BlockingQueue queue, Map visited,
+                         AtomicInteger pending) {
+        if (handle != null && visited.put(handle.getKey(), Boolean.TRUE) == null) {
+            pending.incrementAndGet();
+            queue.add(handle);
+        }
+    }
+
+    /**
+     * Import nodes written by {@link #exportNodes}.
+     *
+     * @param stream the stream to read from, closed when done
+     * @return the number of nodes imported
+     * @throws Exception if a node couldn't be read or written
+     */
+    public long importNodes(InputStream stream) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(stream, 65536), 65536));
+        final BlockingQueue queue = new ArrayBlockingQueue(threads * 2);
+        final AtomicLong maxId = new AtomicLong(0);
+        final Set mappings = Collections.synchronizedSet(new HashSet());
+        long expected = -1;
+
+        start("Importing");
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread("BulkImport-" + i) {
+                public void run() {
+                    importWorker(queue, maxId, mappings);
+                }
+            };
+            workers[i].start();
+        }
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a bulk export file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported bulk export version " + version);
+            }
+
+            List chunk = new ArrayList(batchSize);
+            int length;
+            while ((length = in.readInt()) > 0 && error == null) {
+                byte[] record = new byte[length];
+                in.readFully(record);
+                chunk.add(record);
+                if (chunk.size() == batchSize) {
+                    put(queue, chunk);
+                    chunk = new ArrayList(batchSize);
+                }
+            }
+            if (error == null) {
+                put(queue, chunk);
+                expected = in.readLong();
+            }
+        } catch (Exception x) {
+            if (error == null) {
+                error = x;
+            }
+        } finally {
+            in.close();
+            // tell the workers to stop
+            for (int i = 0; i < threads; i++) {
+                queue.put(Collections.EMPTY_LIST);
+            }
+        }
+        join(workers);
+
+        if (error != null) {
+            throw error;
+        }
+        if (expected != count.get()) {
+            throw new IOException("Expected " + expected + " nodes, imported " + count.get());
+        }
+
+        // make sure new ids don't collide with imported ones
+        IDatabase db = nmgr.getDatabase();
+        long next = db.reserveIDs(0);
+        if (maxId.get() >= next) {
+            db.reserveIDs((int) (maxId.get() - next + 1));
+        }
+
+        // nodes cached before the import are outdated
+        for (Iterator i = mappings.iterator(); i.hasNext(); ) {
+            ((DbMapping) i.next()).setLastDataChange();
+        }
+        nmgr.clearCache();
+
+        finish("Imported");
+        return count.get();
+    }
+
+    private void importWorker(BlockingQueue queue, AtomicLong maxId, Set mappings) {
+        IDatabase db = nmgr.getDatabase();
+        // only used to resolve references and to hold database connections
+        Transactor tx = Transactor.getInstance(nmgr);
+        try {
+            while (true) {
+                List chunk = (List) queue.take();
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                if (error != null) {
+                    continue;
+                }
+
+                tx.begin("bulk import");
+                ITransaction txn = db.beginTransaction();
+                StatementBatch batch = new StatementBatch();
+                try {
+                    Node[] nodes = new Node[chunk.size()];
+                    Map references = new HashMap();
+                    for (int i = 0; i < nodes.length; i++) {
+                        nodes[i] = BinaryNodeCodec.read(nmgr,
+                                new ByteArrayInputStream((byte[]) chunk.get(i)), references);
+                    }
+                    // referenced nodes may not have been imported yet, so
+                    // let writers resolve them to placeholders
+                    for (Iterator i = references.entrySet().iterator(); i.hasNext(); ) {
+                        Map.Entry entry = (Map.Entry) i.next();
+                        Key key = (Key) entry.getKey();
+                        tx.visitCleanNode(key, new Node(null, key.getID(),
+                                (String) entry.getValue(), nmgr.safe));
+                    }
+
+                    long max = 0;
+                    for (int i = 0; i < nodes.length; i++) {
+                        Node node = nodes[i];
+                        DbMapping dbm = node.getDbMapping();
+                        if (dbm == null || !dbm.isRelational()) {
+                            // replaces existing nodes such as the root node
+                            nmgr.updateNode(db, txn, node, null);
+                            max = Math.max(max, getNumericId(node));
+                        } else {
+                            nmgr.insertNode(db, txn, node, batch);
+                            if ("[hop]".equalsIgnoreCase(dbm.getIDgen())) {
+                                max = Math.max(max, getNumericId(node));
+                            }
+                        }
+                        if (dbm != null) {
+                            mappings.add(dbm);
+                        }
+                    }
+                    nmgr.executeBatch(batch);
+                    db.commitTransaction(txn);
+                    txn = null;
+                    tx.commit();
+                    count.addAndGet(chunk.size());
+                    updateMax(maxId, max);
+                } finally {
+                    batch.close();
+                    if (txn != null) {
+                        db.abortTransaction(txn);
+                        tx.abort();
+                    }
+                }
+                report("Imported");
+            }
+        } catch (Exception x) {
+            if (error == null) {
+                error = x;
+            }
+            // keep taking chunks so the reader isn't blocked
+            try {
+                while (!((List) queue.take()).isEmpty()) {
+                    // discard
+                }
+            } catch (InterruptedException ignore) {
+                // exit
+            }
+        } finally {
+            tx.closeConnections();
+        }
+    }
+
+    private static long getNumericId(INode node) {
+        try {
+            return Long.parseLong(node.getID());
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    private void put(BlockingQueue queue, List chunk) throws InterruptedException {
+        // wait for a free slot, reporting progress meanwhile
+        while (!queue.offer(chunk, REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    private void join(Thread[] workers) throws InterruptedException {
+        for (int i = 0; i < workers.length; i++) {
+            while (workers[i].isAlive()) {
+                workers[i].join(REPORT_INTERVAL);
+                report(null);
+            }
+        }
+    }
+
+    private synchronized void start(String action) {
+        started = lastReport = System.currentTimeMillis();
+        count.set(0);
+        error = null;
+        log.println(action + " with " + threads + " threads, " + batchSize +
+                    " nodes per batch");
+    }
+
+    private synchronized void report(String action) {
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= REPORT_INTERVAL) {
+            lastReport = now;
+            log.println((action == null ? "Processed" : action) + " " + count.get() +
+                        " nodes (" + getRate(now) + " nodes/s)");
+        }
+    }
+
+    private synchronized void finish(String action) {
+        long now = System.currentTimeMillis();
+        log.println(action + " " + count.get() + " nodes in " + (now - started) / 1000.0 +
+                    "s (" + getRate(now) + " nodes/s)");
+    }
+
+    private long getRate(long now) {
+        long elapsed = Math.max(1, now - started);
+        return count.get() * 1000 / elapsed;
+    }
+}
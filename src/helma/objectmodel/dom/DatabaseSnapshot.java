@@ -0,0 +1,453 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.dom;
+
+import helma.framework.core.Application;
+import helma.objectmodel.IDatabase;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a consistent copy of an embedded database to a zip archive while
+ * the application keeps running. Commits are fenced only while the state of
+ * the database is recorded; the nodes are then written by a background
+ * thread without blocking readers or writers. Changes committed after the
+ * snapshot point are not included.
+ *
+ * The archive uses the file layout of {@link XmlDatabase}, so it can be
+ * restored by extracting it into an empty database directory, and converted
+ * using {@link LogDatabaseMigrator}. Besides the node files it contains
+ * <code>snapshot.properties</code> describing the snapshot and
+ * <code>snapshot.manifest</code> listing the keys of all nodes at the
+ * snapshot point.
+ *
+ * An incremental snapshot only contains the nodes that have changed since
+ * the previous snapshot of the same database. Restoring a full snapshot
+ * followed by its incremental snapshots in order gives the state of the
+ * last one:
+ *
+ * <pre>
+ * java -cp lib/helma.jar helma.objectmodel.dom.DatabaseSnapshot &lt;dbdir&gt; &lt;full.zip&gt; [&lt;incremental.zip&gt; ...]
+ * </pre>
+ */
+public final class DatabaseSnapshot implements Runnable {
+
+    static final String STATE_FILE = "snapshot.properties";
+    static final String MANIFEST = "snapshot.manifest";
+
+    private final Application app;
+    private final Snapshottable db;
+    private final File file;
+    private boolean incremental;
+
+    // status, guarded by this
+    private String status = "pending";
+    private String error = null;
+    private long started = 0;
+    private long finished = 0;
+    private int keys = 0;
+    private int written = 0;
+    private long bytes = 0;
+
+    /**
+     * Implemented by embedded databases that support snapshots.
+     */
+    interface Snapshottable {
+
+        /**
+         * Fence commits, record the current state of the database and
+         * return it.
+         */
+        Source openSnapshot() throws IOException;
+
+        /**
+         * Return the database directory.
+         */
+        File getDirectory();
+    }
+
+    /**
+     * The state of a database at a snapshot point.
+     */
+    interface Source {
+
+        /**
+         * Return a string describing the snapshot point. This is passed
+         * to the next incremental snapshot to find the changed entries.
+         */
+        String getPoint();
+
+        /**
+         * Return the keys of all entries at the snapshot point.
+         */
+        List getKeys();
+
+        /**
+         * Read an entry as of the snapshot point.
+         *
+         * @param key the key
+         * @param since the point of the previous snapshot, or null
+         * @return the entry, or null if it is unchanged since the previous snapshot
+         */
+        Entry read(String key, String since) throws IOException;
+
+        /**
+         * Release resources held by the snapshot.
+         */
+        void release();
+    }
+
+    /**
+     * A file in the snapshot archive.
+     */
+    static final class Entry {
+        final String name;
+        final long time;
+        final byte[] data;
+
+        Entry(String name, long time, byte[] data) {
+            this.name = name;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private DatabaseSnapshot(Application app, Snapshottable db, File file, boolean incremental) {
+        this.app = app;
+        this.db = db;
+        this.file = file;
+        this.incremental = incremental;
+    }
+
+    /**
+     * Start a snapshot of an application's embedded database in a background
+     * thread.
+     *
+     * @param app the application
+     * @param db the application's embedded database
+     * @param file the archive to write
+     * @param incremental true to only include nodes changed since the previous snapshot
+     * @return the snapshot
+     * @throws IllegalArgumentException if the database doesn't support snapshots
+     */
+    public static DatabaseSnapshot start(Application app, IDatabase db, File file,
+                                         boolean incremental) {
+        if (!(db instanceof Snapshottable)) {
+            throw new IllegalArgumentException("Snapshots are not supported by " +
+                    db.getClass().getName());
+        }
+        DatabaseSnapshot snapshot = new DatabaseSnapshot(app, (Snapshottable) db,
+                                                         file, incremental);
+        Thread thread = new Thread(snapshot, "DatabaseSnapshot-" + app.getName());
+        thread.setDaemon(true);
+        thread.start();
+        return snapshot;
+    }
+
+    /**
+     * Check if the snapshot is still being written.
+     */
+    public synchronized boolean isRunning() {
+        return "pending".equals(status) || "running".equals(status);
+    }
+
+    /**
+     * Return a map describing the state of this snapshot.
+     */
+    public synchronized Map getStatus() {
+        Map map = new HashMap();
+        map.put("file", file.getAbsolutePath());
+        map.put("incremental", Boolean.valueOf(incremental));
+        map.put("status", status);
+        map.put("error", error);
+        map.put("started", started == 0 ? null : new Date(started));
+        map.put("finished", finished == 0 ? null : new Date(finished));
+        map.put("keys", new Integer(keys));
+        map.put("written", new Integer(written));
+        map.put("bytes", new Long(bytes));
+        return map;
+    }
+
+    /**
+     * Write the snapshot.
+     */
+    public void run() {
+        synchronized (this) {
+            status = "running";
+            started = System.currentTimeMillis();
+        }
+
+        File stateFile = new File(db.getDirectory(), STATE_FILE);
+        Properties state = new Properties();
+        String since = null;
+        Source source = null;
+
+        try {
+            if (stateFile.exists()) {
+                InputStream in = new FileInputStream(stateFile);
+                try {
+                    state.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            if (incremental) {
+                since = state.getProperty("point");
+                if (since == null) {
+                    app.logEvent("No previous snapshot of " + db.getDirectory() +
+                                 ", writing full snapshot");
+                    synchronized (this) {
+                        incremental = false;
+                    }
+                }
+            }
+
+            source = db.openSnapshot();
+            List list = source.getKeys();
+            synchronized (this) {
+                keys = list.size();
+            }
+
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+
+            try {
+                Properties info = new Properties();
+                info.setProperty("type", incremental ? "incremental" : "full");
+                info.setProperty("point", source.getPoint());
+                info.setProperty("created", Long.toString(started));
+                info.setProperty("keys", Integer.toString(list.size()));
+                if (since != null) {
+                    info.setProperty("since", since);
+                }
+                zip.putNextEntry(new ZipEntry(STATE_FILE));
+                info.store(zip, "Helma database snapshot");
+                zip.closeEntry();
+
+                zip.putNextEntry(new ZipEntry(MANIFEST));
+                Writer manifest = new OutputStreamWriter(zip, "UTF-8");
+                for (Iterator it = list.iterator(); it.hasNext(); ) {
+                    manifest.write((String) it.next());
+                    manifest.write('\n');
+                }
+                manifest.flush();
+                zip.closeEntry();
+
+                for (Iterator it = list.iterator(); it.hasNext(); ) {
+                    Entry entry = source.read((String) it.next(), since);
+                    if (entry == null) {
+                        continue;
+                    }
+                    ZipEntry zipEntry = new ZipEntry(entry.name);
+                    zipEntry.setTime(entry.time);
+                    zip.putNextEntry(zipEntry);
+                    zip.write(entry.data);
+                    zip.closeEntry();
+                    synchronized (this) {
+                        written++;
+                        bytes += entry.data.length;
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+
+            // remember the snapshot point for the next incremental snapshot
+            state.setProperty("point", source.getPoint());
+            state.setProperty("file", file.getAbsolutePath());
+            OutputStream out = new FileOutputStream(stateFile);
+            try {
+                state.store(out, "Last snapshot of this database");
+            } finally {
+                out.close();
+            }
+
+            synchronized (this) {
+                status = "done";
+            }
+            app.logEvent("Wrote " + (incremental ? "incremental" : "full") +
+                         " snapshot of " + written + " entries to " + file);
+        } catch (Exception x) {
+            app.logError("Error writing snapshot to " + file, x);
+            synchronized (this) {
+                status = "failed";
+                error = x.toString();
+            }
+        } finally {
+            if (source != null) {
+                source.release();
+            }
+            synchronized (this) {
+                finished = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Restore a database directory from a full snapshot followed by any
+     * number of incremental snapshots.
+     *
+     * @param dir the database directory
+     * @param archives the snapshot archives, starting with a full snapshot
+     * @return the number of files written
+     * @throws IOException if an archive couldn't be read or a file couldn't be written
+     */
+    public static int restore(File dir, File[] archives) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        Set manifest = null;
+        int count = 0;
+
+        for (int i = 0; i < archives.length; i++) {
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(
+                    new FileInputStream(archives[i])));
+            try {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (STATE_FILE.equals(name)) {
+                        Properties info = new Properties();
+                        info.load(zip);
+                        if (i == 0 && !"full".equals(info.getProperty("type"))) {
+                            throw new IOException(archives[i] + " is not a full snapshot");
+                        }
+                    } else if (MANIFEST.equals(name)) {
+                        manifest = new HashSet();
+                        BufferedReader reader = new BufferedReader(
+                                new InputStreamReader(zip, "UTF-8"));
+                        String key;
+                        while ((key = reader.readLine()) != null) {
+                            manifest.add(key);
+                        }
+                    } else if (name.indexOf('/') < 0 && name.indexOf('\\') < 0) {
+                        File target = new File(dir, name);
+                        File tmp = File.createTempFile(name + ".", ".tmp", dir);
+                        OutputStream out = new FileOutputStream(tmp);
+                        try {
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            while ((read = zip.read(buffer)) > -1) {
+                                out.write(buffer, 0, read);
+                            }
+                        } finally {
+                            out.close();
+                        }
+                        // the other format of a node, if any, is removed below
+                        removeOtherFormat(dir, name);
+                        if (target.exists()) {
+                            target.delete();
+                        }
+                        if (!tmp.renameTo(target)) {
+                            throw new IOException("Couldn't write " + target);
+                        }
+                        count++;
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        }
+
+        // delete nodes that didn't exist at the last snapshot point
+        if (manifest != null) {
+            String[] names = dir.list();
+            for (int i = 0; i < names.length; i++) {
+                String key = getKey(names[i]);
+                if (key != null && !manifest.contains(key)) {
+                    new File(dir, names[i]).delete();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the key of a database file, or null if it is no node, child page
+     * or id generator file.
+     */
+    static String getKey(String name) {
+        if (name.endsWith(".xml") || name.endsWith(".bin") || name.endsWith(".idx")) {
+            return name.substring(0, name.length() - 4);
+        }
+        return null;
+    }
+
+    private static void removeOtherFormat(File dir, String name) {
+        String key = getKey(name);
+        if (name.endsWith(".xml")) {
+            new File(dir, key + ".bin").delete();
+        } else if (name.endsWith(".bin")) {
+            new File(dir, key + ".xml").delete();
+        }
+    }
+
+    /**
+     * Format a file name for a snapshot of an application.
+     *
+     * @param app the application name
+     * @param incremental true for an incremental snapshot
+     * @return the file name
+     */
+    public static String getDefaultName(String app, boolean incremental) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        return app + "-" + format.format(new Date()) +
+               (incremental ? "-incremental" : "") + ".zip";
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args the database directory followed by the snapshot archives
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java helma.objectmodel.dom.DatabaseSnapshot " +
+                               "<dbdir> <full.zip> [<incremental.zip> ...]");
+            System.exit(1);
+        }
+        File[] archives = new File[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            archives[i - 1] = new File(args[i]);
+        }
+        try {
+            int count = restore(new File(args[0]), archives);
+            System.out.println("Restored " + count + " files to " + args[0]);
+        } catch (IOException x) {
+            System.err.println("Error restoring " + args[0] + ": " + x);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.dom;
+
+import helma.objectmodel.*;
+import helma.objectmodel.db.ChildPageStore;
+import helma.objectmodel.db.NodeManager;
+import helma.objectmodel.db.Node;
+import helma.framework.core.Application;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.xml.sax.SAXException;
+
+/**
+ * An embedded database that keeps all nodes in append-only segment files
+ * instead of one XML file per node. Nodes are stored in the same XML format
+ * used by {@link XmlDatabase}, a database can be converted using
+ * {@link LogDatabaseMigrator}. If <code>embeddedDbFormat = binary</code> is
+ * set, nodes are written using {@link BinaryNodeCodec}; records in either
+ * format can be read.
+ *
+ * To use this database, set
+ * <code>embeddedDbImpl = helma.objectmodel.dom.LogDatabase</code> in
+ * app.properties. The following settings are supported:
+ *
+ * <ul>
+ * <li><code>logdb.segmentSize</code> - size in MB after which a new segment
+ *     file is started (default 64)</li>
+ * <li><code>logdb.sync</code> - force each commit to disk before it returns
+ *     (default true)</li>
+ * <li><code>logdb.compactionThreshold</code> - ratio of live data below which
+ *     a segment is compacted (default 0.5)</li>
+ * <li><code>logdb.compactionInterval</code> - seconds between compaction runs,
+ *     0 to disable compaction (default 60)</li>
+ * </ul>
+ *
+ * Like with XmlDatabase, child lists longer than
+ * <code>embeddedDbChildPageSize</code> are stored in separate records.
+ *
+ * Snapshots written by {@link DatabaseSnapshot} contain the records as of
+ * the snapshot point. Compaction is suspended while a snapshot is written.
+ */
+public final class LogDatabase implements IDatabase, ChildPageStore,
+                                          DatabaseSnapshot.Snapshottable {
+
+    protected File dbHomeDir;
+    protected Application app;
+    protected NodeManager nmgr;
+    protected XmlIDGenerator idgen;
+    protected LogStore store;
+
+    // character encoding to use for node XML
+    protected String encoding = "UTF-8";
+
+    // write nodes using the binary codec instead of XML
+    protected boolean binary = false;
+
+    // maximum number of children stored inline or in one child page
+    protected int childPageSize = 1000;
+
+    private Compactor compactor;
+
+    /**
+     * Initializes the database from an application.
+     * @param app
+     * @throws DatabaseException
+     */
+    public void init(File dbHome, Application app) throws DatabaseException {
+        this.app = app;
+        nmgr = app.getNodeManager();
+        dbHomeDir = dbHome;
+
+        if (app.getCharset() != null) {
+            encoding = app.getCharset();
+        }
+
+        binary = "binary".equalsIgnoreCase(app.getProperty("embeddedDbFormat"));
+        childPageSize = (int) getLong("embeddedDbChildPageSize", 1000);
+
+        long segmentSize = getLong("logdb.segmentSize", 64) * 1024L * 1024L;
+        boolean sync = !"false".equalsIgnoreCase(app.getProperty("logdb.sync"));
+        store = new LogStore(dbHomeDir, segmentSize, sync);
+
+        try {
+            store.open();
+        } catch (IOException x) {
+            app.logError("Error opening log database in " + dbHomeDir, x);
+            throw new DatabaseException("Error opening log database in " + dbHomeDir);
+        }
+
+        // get the initial id generator value
+        long idBaseValue;
+        try {
+            idBaseValue = Long.parseLong(app.getProperty("idBaseValue", "1"));
+            // 0 and 1 are reserved for root nodes
+            idBaseValue = Math.max(1L, idBaseValue);
+        } catch (NumberFormatException ignore) {
+            idBaseValue = 1L;
+        }
+        idgen = new XmlIDGenerator(Math.max(idBaseValue, store.getIdCounter()));
+
+        ITransaction txn = null;
+
+        try {
+            txn = beginTransaction();
+
+            // create root nodes if they don't exist
+            Node node = null;
+
+            if (!store.contains("0")) {
+                node = new Node("root", "0", "Root", nmgr.safe);
+                node.setDbMapping(app.getDbMapping("root"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            if (!store.contains("1")) {
+                node = new Node("users", "1", null, nmgr.safe);
+                node.setDbMapping(app.getDbMapping("__userroot__"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            commitTransaction(txn);
+        } catch (Exception x) {
+            x.printStackTrace();
+
+            try {
+                abortTransaction(txn);
+            } catch (Exception ignore) {
+            }
+
+            throw (new DatabaseException("Error initializing db"));
+        }
+
+        long interval = getLong("logdb.compactionInterval", 60) * 1000L;
+        if (interval > 0) {
+            double threshold = 0.5;
+            try {
+                threshold = Double.parseDouble(app.getProperty("logdb.compactionThreshold", "0.5"));
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid logdb.compactionThreshold setting: " +
+                             app.getProperty("logdb.compactionThreshold"));
+            }
+            compactor = new Compactor(interval, threshold);
+            compactor.start();
+        }
+    }
+
+    /**
+     * Shut down the database
+     */
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.terminate();
+            compactor = null;
+        }
+        store.close();
+    }
+
+    /**
+     * Start a new transaction.
+     *
+     * @return the new tranaction object
+     * @throws DatabaseException
+     */
+    public ITransaction beginTransaction() throws DatabaseException {
+        return new LogTransaction();
+    }
+
+    /**
+     * Commit the given transaction, appending its changes to the log
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void commitTransaction(ITransaction txn) throws DatabaseException {
+        txn.commit();
+    }
+
+    /**
+     * Abort the given transaction
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void abortTransaction(ITransaction txn) throws DatabaseException {
+        txn.abort();
+    }
+
+    /**
+     * Get the id for the next new object to be stored. The counter is
+     * persisted with the next committed transaction.
+     *
+     * @return the id for the next new object to be stored
+     */
+    public String nextID() {
+        return idgen.newID();
+    }
+
+    /**
+     * Reserve a block of ids and write the new counter value to the log
+     * right away.
+     *
+     * @param count the number of ids to reserve
+     * @return the first id of the reserved block
+     * @throws IOException if the log couldn't be written
+     */
+    public long reserveIDs(int count) throws IOException {
+        synchronized (idgen) {
+            long first = idgen.reserve(count);
+            store.commit(new ArrayList(), new ArrayList(), idgen.getValue());
+            idgen.dirty = false;
+            return first;
+        }
+    }
+
+    /**
+     * Retrieves a Node from the database.
+     *
+     * @param txn the current transaction
+     * @param kstr the key
+     * @return the object associated with the given key
+     * @throws IOException if an I/O error occurred loading the object.
+     * @throws ObjectNotFoundException if no object is stored by this key.
+     */
+    public INode getNode(ITransaction txn, String kstr)
+                  throws IOException, ObjectNotFoundException {
+        byte[] data = store.get(kstr);
+
+        if (data == null) {
+            throw new ObjectNotFoundException("Object not found for key " + kstr);
+        }
+
+        if (BinaryNodeCodec.isBinary(data)) {
+            return BinaryNodeCodec.read(nmgr, data);
+        }
+
+        try {
+            XmlDatabaseReader reader = new XmlDatabaseReader(nmgr);
+            return reader.read(new ByteArrayInputStream(data));
+        } catch (ParserConfigurationException x) {
+            app.logError("Error reading node " + kstr, x);
+            throw new IOException(x.toString());
+        } catch (SAXException x) {
+            app.logError("Error reading node " + kstr, x);
+            throw new IOException(x.toString());
+        }
+    }
+
+    /**
+     * Save a node with the given key. The node is written to the log when
+     * the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void insertNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        if (store.contains(kstr)) {
+            throw new IOException("Object already exists for key " + kstr);
+        }
+
+        // apart from the above check insertNode() is equivalent to updateNode()
+        updateNode(txn, kstr, node);
+    }
+
+    /**
+     * Update a node with the given key. The node is written to the log when
+     * the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void updateNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        if (binary) {
+            ((LogTransaction) txn).add(kstr, BinaryNodeCodec.encode(node));
+            return;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        XmlWriter writer = new XmlWriter(out, encoding);
+
+        writer.setMaxLevels(1);
+        writer.write(node);
+        writer.close();
+
+        ((LogTransaction) txn).add(kstr, out.toByteArray());
+    }
+
+    /**
+     * Marks an element from the database as deleted
+     *
+     * @param txn
+     * @param kstr
+     * @throws IOException
+     */
+    public void deleteNode(ITransaction txn, String kstr)
+                    throws IOException {
+        ((LogTransaction) txn).add(kstr, null);
+    }
+
+    /**
+     * Get the maximum number of children stored in one child page.
+     *
+     * @return the child page size, 0 if child lists are stored inline
+     */
+    public int getChildPageSize() {
+        return childPageSize;
+    }
+
+    /**
+     * Read a child page record.
+     *
+     * @param key the page key
+     * @return the page data, or null if the page doesn't exist
+     * @throws IOException if the record couldn't be read
+     */
+    public byte[] readChildPage(String key) throws IOException {
+        return store.get(key);
+    }
+
+    /**
+     * Add a child page record to a transaction.
+     *
+     * @param txn the current transaction
+     * @param key the page key
+     * @param data the page data, or null to delete the page
+     */
+    public void writeChildPage(ITransaction txn, String key, byte[] data) {
+        ((LogTransaction) txn).add(key, data);
+    }
+
+    /**
+     * Return a map of statistics about the underlying log store.
+     *
+     * @return a map containing the number of keys, segments and commits
+     */
+    public Map getStatistics() {
+        return store.getStatistics();
+    }
+
+    /**
+     * Record the current state of the log for a snapshot.
+     *
+     * @return the snapshot source
+     * @throws IOException if the store is closed
+     */
+    public DatabaseSnapshot.Source openSnapshot() throws IOException {
+        return new LogSnapshot(store.snapshot());
+    }
+
+    /**
+     * Return the database directory.
+     */
+    public File getDirectory() {
+        return dbHomeDir;
+    }
+
+    private long getLong(String name, long defaultValue) {
+        String value = app.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid " + name + " setting: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    class LogTransaction implements ITransaction {
+
+        ArrayList keys = new ArrayList();
+        ArrayList values = new ArrayList();
+
+        void add(String key, byte[] value) {
+            keys.add(key);
+            values.add(value);
+        }
+
+        /**
+         * Complete the transaction by appending its changes to the log.
+         */
+        public void commit() throws DatabaseException {
+            if (keys.isEmpty() && !idgen.dirty) {
+                // nothing to write
+                return;
+            }
+            try {
+                store.commit(keys, values, idgen.getValue());
+                idgen.dirty = false;
+            } catch (IOException x) {
+                app.logError("Error committing transaction", x);
+                throw new DatabaseException(x.toString());
+            } finally {
+                keys.clear();
+                values.clear();
+            }
+        }
+
+        /**
+         * Rollback the transaction, forgetting the changed items
+         */
+        public void abort() throws DatabaseException {
+            keys.clear();
+            values.clear();
+        }
+
+        /**
+         * Adds a resource to the list of resources encompassed by this transaction
+         *
+         * @param res the resource to add
+         * @param status the status of the resource (ADDED|UPDATED|DELETED)
+         */
+        public void addResource(Object res, int status)
+               throws DatabaseException {
+            throw new DatabaseException("Resources are not supported by LogDatabase");
+        }
+    }
+
+    /**
+     * The records of the log at a snapshot point. The point is the log
+     * position at the time of the snapshot, records written before the
+     * point of a previous snapshot are skipped by incremental snapshots.
+     */
+    class LogSnapshot implements DatabaseSnapshot.Source {
+
+        final LogStore.Snapshot snapshot;
+        final long created = System.currentTimeMillis();
+
+        LogSnapshot(LogStore.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public String getPoint() {
+            return snapshot.segment + ":" + snapshot.position;
+        }
+
+        public List getKeys() {
+            List keys = new ArrayList(snapshot.index.keySet());
+            Collections.sort(keys);
+            keys.add("idgen");
+            return keys;
+        }
+
+        public DatabaseSnapshot.Entry read(String key, String since)
+                throws IOException {
+            if ("idgen".equals(key)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                XmlIDGenerator.saveIDGenerator(new XmlIDGenerator(snapshot.idCounter), out);
+                return new DatabaseSnapshot.Entry("idgen.xml", created, out.toByteArray());
+            }
+
+            LogStore.Location loc = (LogStore.Location) snapshot.index.get(key);
+            int colon = since == null ? -1 : since.indexOf(':');
+            if (colon > 0) {
+                try {
+                    long segment = Long.parseLong(since.substring(0, colon));
+                    long position = Long.parseLong(since.substring(colon + 1));
+                    if (!LogStore.Snapshot.isNewer(loc, segment, position)) {
+                        return null;
+                    }
+                } catch (NumberFormatException nfe) {
+                    // not written by this database, include the record
+                }
+            }
+
+            byte[] data = store.read(loc);
+            String name;
+            if (key.indexOf('-') > -1) {
+                name = key + ".idx";
+            } else if (BinaryNodeCodec.isBinary(data)) {
+                name = key + ".bin";
+            } else {
+                name = key + ".xml";
+            }
+            return new DatabaseSnapshot.Entry(name, created, data);
+        }
+
+        public void release() {
+            store.release(snapshot);
+        }
+    }
+
+    /**
+     * Background thread that periodically compacts segments.
+     */
+    class Compactor extends Thread {
+
+        final long interval;
+        final double threshold;
+        volatile boolean running = true;
+
+        Compactor(long interval, double threshold) {
+            super("LogDatabase-Compactor-" + app.getName());
+            setDaemon(true);
+            this.interval = interval;
+            this.threshold = threshold;
+        }
+
+        void terminate() {
+            // no need to interrupt the thread, it is woken up by notifyAll()
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            try {
+                join(10000);
+            } catch (InterruptedException ignore) {
+                // nothing to do
+            }
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    synchronized (this) {
+                        if (running) {
+                            wait(interval);
+                        }
+                    }
+                } catch (InterruptedException ir) {
+                    break;
+                }
+                if (!running) {
+                    break;
+                }
+                try {
+                    int count = store.compact(threshold);
+                    if (count > 0 && app.debug()) {
+                        app.logEvent("Compacted " + count + " log database segments");
+                    }
+                } catch (Exception x) {
+                    if (running) {
+                        app.logError("Error compacting log database", x);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.dom;
+
+import helma.objectmodel.ObjectNotFoundException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts an embedded database from the one-file-per-node layout of
+ * {@link XmlDatabase} to the segment files used by {@link LogDatabase}.
+ * The node and child page files are copied as they are, the XML database
+ * is left untouched. The application must not be running during the migration.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java -cp lib/helma.jar helma.objectmodel.dom.LogDatabaseMigrator &lt;xmldir&gt; [&lt;logdir&gt;]
+ * </pre>
+ *
+ * If no target directory is given, the segment files are created in the
+ * XML database directory.
+ */
+public class LogDatabaseMigrator {
+
+    // number of nodes written per transaction
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Copy all nodes of an XML database to an empty log database.
+     *
+     * @param xmlDir the directory of the XML database
+     * @param logDir the directory of the new log database
+     * @param segmentSize the maximum size of a segment file in bytes
+     * @return the number of nodes copied
+     * @throws IOException if reading or writing fails, or if the log
+     *                     database already contains data
+     */
+    public static int migrate(File xmlDir, File logDir, long segmentSize)
+            throws IOException {
+        if (!xmlDir.isDirectory()) {
+            throw new IOException("Not a directory: " + xmlDir);
+        }
+
+        long counter = 1;
+        try {
+            counter = XmlIDGenerator.getIDGenerator(new File(xmlDir, "idgen.xml")).getValue();
+        } catch (ObjectNotFoundException notfound) {
+            System.err.println("No idgen.xml found in " + xmlDir + ", using id counter 1");
+        }
+
+        LogStore store = new LogStore(logDir, segmentSize, false);
+        store.open();
+        int count = 0;
+
+        try {
+            if (store.size() > 0) {
+                throw new IOException("Log database in " + logDir + " is not empty");
+            }
+
+            String[] names = xmlDir.list();
+            List keys = new ArrayList(BATCH_SIZE);
+            List values = new ArrayList(BATCH_SIZE);
+
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                if (!(name.endsWith(".xml") || name.endsWith(".bin") ||
+                        name.endsWith(".idx")) || "idgen.xml".equals(name)) {
+                    continue;
+                }
+                keys.add(name.substring(0, name.length() - 4));
+                values.add(readFile(new File(xmlDir, name)));
+                count++;
+
+                if (keys.size() >= BATCH_SIZE) {
+                    store.commit(keys, values, counter);
+                    keys.clear();
+                    values.clear();
+                }
+            }
+            // always write a final commit to persist the id counter
+            store.commit(keys, values, counter);
+        } finally {
+            store.close();
+        }
+
+        return count;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args the XML database directory and optionally the target directory
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java helma.objectmodel.dom.LogDatabaseMigrator " +
+                               "<xmldir> [<logdir>]");
+            System.exit(1);
+        }
+
+        File xmlDir = new File(args[0]);
+        File logDir = args.length > 1 ? new File(args[1]) : xmlDir;
+        long start = System.currentTimeMillis();
+
+        try {
+            int count = migrate(xmlDir, logDir, 64 * 1024L * 1024L);
+            System.out.println("Migrated " + count + " nodes to " + logDir + " in " +
+                               (System.currentTimeMillis() - start) + " millis");
+        } catch (IOException x) {
+            System.err.println("Error migrating " + xmlDir + ": " + x);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.dom;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only key/value store made of numbered segment files. Records
+ * are only ever appended to the newest segment; an in-memory index maps each
+ * key to the location of its latest value. Each transaction is written as a
+ * run of put and delete records followed by a commit record, so that a
+ * transaction torn by a crash is discarded when the log is replayed on
+ * startup. The commit record also carries the value of the id generator.
+ *
+ * Segments with a low ratio of live data are compacted by copying their
+ * live records to the newest segment and deleting the old file.
+ *
+ * Record layout, all records ending with a CRC32 over the preceding fields:
+ *
+ * <pre>
+ * put:    byte 1, int keyLength, key (UTF-8), int dataLength, data, int crc
+ * delete: byte 2, int keyLength, key (UTF-8), int crc
+ * commit: byte 3, long idCounter, int recordCount, int crc
+ * </pre>
+ */
+final class LogStore {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte COMMIT = 3;
+
+    // segment file header: magic number "HLOG" and format version
+    static final int MAGIC = 0x484c4f47;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    static final String SUFFIX = ".log";
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final boolean sync;
+
+    // key -> Location of the current value
+    private final ConcurrentHashMap index = new ConcurrentHashMap();
+
+    // segment id -> Segment, guarded by this store's monitor
+    private final TreeMap segments = new TreeMap();
+    private Segment active;
+
+    // highest id generator value found in a commit record
+    private long idCounter = 0;
+
+    // number of open snapshots, and compacted segments kept for them
+    private int snapshots = 0;
+    private final List retired = new ArrayList();
+
+    // statistics, guarded by this store's monitor
+    private long commits = 0;
+    private long compactions = 0;
+
+    /**
+     * Create a store in the given directory.
+     *
+     * @param dir the directory holding the segment files
+     * @param maxSegmentSize the size in bytes after which a new segment is started
+     * @param sync true to force changes to disk before commit returns
+     */
+    LogStore(File dir, long maxSegmentSize, boolean sync) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.sync = sync;
+    }
+
+    /**
+     * Open the store, replaying all segments to rebuild the index.
+     */
+    synchronized void open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+
+        File[] files = dir.listFiles();
+        TreeMap found = new TreeMap();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    found.put(new Long(id), files[i]);
+                } catch (NumberFormatException nfe) {
+                    // not a segment file
+                }
+            }
+        }
+
+        for (Iterator i = found.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry e = (Map.Entry) i.next();
+            long id = ((Long) e.getKey()).longValue();
+            Segment seg = new Segment(id, (File) e.getValue());
+            segments.put(e.getKey(), seg);
+            replay(seg);
+        }
+
+        if (segments.isEmpty()) {
+            active = createSegment(1);
+        } else {
+            active = (Segment) segments.get(segments.lastKey());
+        }
+    }
+
+    /**
+     * Close all segment files.
+     */
+    synchronized void close() {
+        if (active != null) {
+            try {
+                active.sync();
+            } catch (IOException ignore) {
+                // nothing to do
+            }
+        }
+        for (Iterator i = segments.values().iterator(); i.hasNext(); ) {
+            ((Segment) i.next()).close();
+        }
+        for (Iterator i = retired.iterator(); i.hasNext(); ) {
+            Segment seg = (Segment) i.next();
+            seg.close();
+            seg.file.delete();
+        }
+        segments.clear();
+        retired.clear();
+        index.clear();
+        active = null;
+    }
+
+    /**
+     * Get the value stored for a key.
+     *
+     * @param key the key
+     * @return the value, or null if the key doesn't exist
+     */
+    byte[] get(String key) throws IOException {
+        while (true) {
+            Location loc = (Location) index.get(key);
+            if (loc == null) {
+                return null;
+            }
+            try {
+                return loc.segment.read(loc.offset, loc.length);
+            } catch (ClosedChannelException closed) {
+                // segment was compacted away, retry if the key has moved
+                if (index.get(key) == loc) {
+                    throw closed;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a key exists in the store.
+     */
+    boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Return the number of keys in the store.
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Return the highest id generator value recorded in the log.
+     */
+    synchronized long getIdCounter() {
+        return idCounter;
+    }
+
+    /**
+     * Append a transaction to the log and apply it to the index. Values of
+     * null denote deletions. The transaction is durable when this method
+     * returns if the store was opened with sync enabled.
+     *
+     * @param keys the keys written by the transaction
+     * @param values the values written, or null for deleted keys
+     * @param idValue the current id generator value
+     */
+    void commit(List keys, List values, long idValue) throws IOException {
+        int count = keys.size();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+        int[] offsets = new int[count];
+        int[] sizes = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            int start = out.size();
+            offsets[i] = writeRecord(out, (String) keys.get(i), (byte[]) values.get(i));
+            sizes[i] = out.size() - start;
+        }
+        writeCommit(out, idValue, count);
+        out.flush();
+
+        synchronized (this) {
+            if (active == null) {
+                throw new IOException("Log store " + dir + " is closed");
+            }
+            Segment seg = active;
+            if (seg.size > HEADER_SIZE && seg.size + bout.size() > maxSegmentSize) {
+                seg = active = createSegment(seg.id + 1);
+            }
+            long base = seg.append(bout.toByteArray());
+            if (sync) {
+                seg.sync();
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] value = (byte[]) values.get(i);
+                if (value == null) {
+                    remove((String) keys.get(i));
+                    seg.deadBytes += sizes[i];
+                } else {
+                    put((String) keys.get(i),
+                        new Location(seg, base + offsets[i], value.length, sizes[i]));
+                }
+            }
+            idCounter = Math.max(idCounter, idValue);
+            commits++;
+        }
+    }
+
+    /**
+     * Compact all segments except the active one whose share of live data
+     * is below the given ratio.
+     *
+     * @param threshold the live data ratio below which segments are compacted
+     * @return the number of segments compacted
+     */
+    int compact(double threshold) throws IOException {
+        List candidates = new ArrayList();
+        synchronized (this) {
+            if (snapshots > 0) {
+                // don't move records while a snapshot is being read
+                return 0;
+            }
+            for (Iterator i = segments.values().iterator(); i.hasNext(); ) {
+                Segment seg = (Segment) i.next();
+                long data = seg.size - HEADER_SIZE;
+                if (seg != active && (data == 0 ||
+                        (double) (data - seg.deadBytes) / data < threshold)) {
+                    candidates.add(seg);
+                }
+            }
+        }
+        for (Iterator i = candidates.iterator(); i.hasNext(); ) {
+            compact((Segment) i.next());
+        }
+        return candidates.size();
+    }
+
+    /**
+     * Copy the live records of a segment to the active segment and
+     * delete it.
+     */
+    private void compact(Segment seg) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(seg.file), 65536));
+        try {
+            in.skipBytes(HEADER_SIZE);
+            long pos = HEADER_SIZE;
+            List keys = new ArrayList();
+            List values = new ArrayList();
+            List positions = new ArrayList();
+            int batchBytes = 0;
+
+            while (pos < seg.size) {
+                byte type = in.readByte();
+                if (type == COMMIT) {
+                    in.skipBytes(16);
+                    pos += 17;
+                    continue;
+                }
+                byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+                String key = new String(keyBytes, "UTF-8");
+                byte[] data = null;
+                long dataPos = -1;
+                if (type == PUT) {
+                    data = new byte[in.readInt()];
+                    dataPos = pos + 9 + keyBytes.length;
+                    in.readFully(data);
+                }
+                in.skipBytes(4);
+                pos += 9 + keyBytes.length + (data == null ? 0 : 4 + data.length);
+
+                if (isLive(seg, key, dataPos)) {
+                    keys.add(key);
+                    values.add(data);
+                    positions.add(new Long(dataPos));
+                    batchBytes += keyBytes.length + (data == null ? 0 : data.length);
+                }
+                if (keys.size() >= 1000 || batchBytes >= 4 * 1024 * 1024) {
+                    copyLive(seg, keys, values, positions);
+                    batchBytes = 0;
+                }
+            }
+            copyLive(seg, keys, values, positions);
+        } finally {
+            in.close();
+        }
+
+        synchronized (this) {
+            segments.remove(new Long(seg.id));
+            compactions++;
+            if (snapshots > 0) {
+                // an open snapshot may still read from this segment
+                retired.add(seg);
+                return;
+            }
+            seg.close();
+            if (!seg.file.delete()) {
+                throw new IOException("Couldn't delete compacted segment " + seg.file);
+            }
+        }
+    }
+
+    /**
+     * Record the current state of the store. Segments are not deleted by
+     * compaction until the snapshot is released.
+     *
+     * @return the snapshot
+     */
+    synchronized Snapshot snapshot() throws IOException {
+        if (active == null) {
+            throw new IOException("Log store " + dir + " is closed");
+        }
+        snapshots++;
+        return new Snapshot(new HashMap(index), idCounter, active.id, active.size);
+    }
+
+    /**
+     * Release a snapshot, deleting segments compacted while it was open.
+     */
+    synchronized void release(Snapshot snapshot) {
+        if (--snapshots > 0) {
+            return;
+        }
+        for (Iterator i = retired.iterator(); i.hasNext(); ) {
+            Segment seg = (Segment) i.next();
+            seg.close();
+            seg.file.delete();
+        }
+        retired.clear();
+    }
+
+    /**
+     * Read a value from its location.
+     */
+    byte[] read(Location loc) throws IOException {
+        return loc.segment.read(loc.offset, loc.length);
+    }
+
+    // check if a record read from a segment being compacted must be kept
+    private synchronized boolean isLive(Segment seg, String key, long dataPos) {
+        Location loc = (Location) index.get(key);
+        if (dataPos < 0) {
+            // a deletion must be kept as long as older segments may still
+            // contain a value for the key
+            return loc == null && seg.id > ((Long) segments.firstKey()).longValue();
+        }
+        return loc != null && loc.segment == seg && loc.offset == dataPos;
+    }
+
+    // append the records still live to the active segment as a transaction
+    private void copyLive(Segment seg, List keys, List values, List positions)
+            throws IOException {
+        synchronized (this) {
+            // drop records that were overwritten in the meantime
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                if (!isLive(seg, (String) keys.get(i), ((Long) positions.get(i)).longValue())) {
+                    keys.remove(i);
+                    values.remove(i);
+                }
+            }
+            if (!keys.isEmpty()) {
+                commit(keys, values, idCounter);
+            }
+        }
+        keys.clear();
+        values.clear();
+        positions.clear();
+    }
+
+    /**
+     * Return a map of statistics about this store.
+     */
+    synchronized Map getStatistics() {
+        Map stats = new HashMap();
+        long size = 0;
+        long dead = 0;
+        for (Iterator i = segments.values().iterator(); i.hasNext(); ) {
+            Segment seg = (Segment) i.next();
+            size += seg.size;
+            dead += seg.deadBytes;
+        }
+        stats.put("keys", new Integer(index.size()));
+        stats.put("segments", new Integer(segments.size()));
+        stats.put("size", new Long(size));
+        stats.put("deadBytes", new Long(dead));
+        stats.put("commits", new Long(commits));
+        stats.put("compactions", new Long(compactions));
+        return stats;
+    }
+
+    // must be called holding the lock
+    private void put(String key, Location loc) {
+        Location old = (Location) index.put(key, loc);
+        if (old != null) {
+            old.segment.deadBytes += old.recordSize;
+        }
+    }
+
+    // must be called holding the lock
+    private void remove(String key) {
+        Location old = (Location) index.remove(key);
+        if (old != null) {
+            old.segment.deadBytes += old.recordSize;
+        }
+    }
+
+    /**
+     * Read a segment and apply its committed transactions to the index.
+     * Anything after the last complete commit record is cut off.
+     */
+    private void replay(Segment seg) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(seg.file), 65536));
+        long committed = HEADER_SIZE;
+        try {
+            if (seg.size < HEADER_SIZE || in.readInt() != MAGIC) {
+                throw new IOException("Not a log segment: " + seg.file);
+            }
+            in.readInt();
+
+            long pos = HEADER_SIZE;
+            List pending = new ArrayList();
+            CRC32 crc = new CRC32();
+
+            while (pos < seg.size) {
+                crc.reset();
+                byte type = in.readByte();
+                crc.update(type);
+                if (type == COMMIT) {
+                    long idValue = in.readLong();
+                    int count = in.readInt();
+                    updateLong(crc, idValue);
+                    updateInt(crc, count);
+                    if (in.readInt() != (int) crc.getValue() || count != pending.size()) {
+                        break;
+                    }
+                    pos += 17;
+                    for (Iterator i = pending.iterator(); i.hasNext(); ) {
+                        Object[] op = (Object[]) i.next();
+                        if (op[1] == null) {
+                            remove((String) op[0]);
+                            seg.deadBytes += ((Integer) op[2]).intValue();
+                        } else {
+                            put((String) op[0], (Location) op[1]);
+                        }
+                    }
+                    pending.clear();
+                    idCounter = Math.max(idCounter, idValue);
+                    committed = pos;
+                } else if (type == PUT || type == DELETE) {
+                    int keyLength = in.readInt();
+                    if (keyLength < 0 || keyLength > seg.size - pos) {
+                        break;
+                    }
+                    byte[] keyBytes = new byte[keyLength];
+                    in.readFully(keyBytes);
+                    crc.update(keyBytes);
+                    int recordSize = 9 + keyLength;
+                    Location loc = null;
+                    if (type == PUT) {
+                        int dataLength = in.readInt();
+                        if (dataLength < 0 || dataLength > seg.size - pos) {
+                            break;
+                        }
+                        byte[] data = new byte[dataLength];
+                        in.readFully(data);
+                        crc.update(data);
+                        recordSize += 4 + dataLength;
+                        loc = new Location(seg, pos + 9 + keyLength, dataLength, recordSize);
+                    }
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    pending.add(new Object[] {new String(keyBytes, "UTF-8"), loc,
+                                              new Integer(recordSize)});
+                    pos += recordSize;
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException eof) {
+            // torn write at the end of the segment
+        } finally {
+            in.close();
+        }
+
+        if (committed < seg.size) {
+            // discard the incomplete transaction at the end of the log
+            seg.truncate(committed);
+            seg.size = committed;
+        }
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = new File(dir, formatId(id) + SUFFIX);
+        Segment seg = new Segment(id, file);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        seg.append(bout.toByteArray());
+        segments.put(new Long(id), seg);
+        return seg;
+    }
+
+    private static String formatId(long id) {
+        String str = Long.toString(id);
+        StringBuffer b = new StringBuffer(10);
+        for (int i = str.length(); i < 10; i++) {
+            b.append('0');
+        }
+        return b.append(str).toString();
+    }
+
+    // write a put or delete record, returning the offset of the value
+    private static int writeRecord(DataOutputStream out, String key, byte[] value)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        byte type = value == null ? DELETE : PUT;
+        byte[] keyBytes = key.getBytes("UTF-8");
+        out.writeByte(type);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        crc.update(type);
+        crc.update(keyBytes);
+        int offset = -1;
+        if (value != null) {
+            out.writeInt(value.length);
+            offset = out.size();
+            out.write(value);
+            crc.update(value);
+        }
+        out.writeInt((int) crc.getValue());
+        return offset;
+    }
+
+    private static void writeCommit(DataOutputStream out, long idValue, int count)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(COMMIT);
+        updateLong(crc, idValue);
+        updateInt(crc, count);
+        out.writeByte(COMMIT);
+        out.writeLong(idValue);
+        out.writeInt(count);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void updateLong(CRC32 crc, long value) {
+        updateInt(crc, (int) (value >>> 32));
+        updateInt(crc, (int) value);
+    }
+
+    private static void updateInt(CRC32 crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    /**
+     * A segment file of the log. All I/O goes through a RandomAccessFile
+     * under the segment's monitor rather than a FileChannel, because an
+     * interrupted request thread (see Transactor.kill()) would close a
+     * channel for all other threads as well.
+     */
+    static final class Segment {
+        final long id;
+        final File file;
+        private final RandomAccessFile raf;
+        private boolean closed = false;
+        // current length of the file, guarded by the store's monitor
+        long size;
+        // bytes of records that have been overwritten or deleted
+        long deadBytes = 0;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.size = raf.length();
+        }
+
+        // append bytes, returning the position they were written at
+        synchronized long append(byte[] bytes) throws IOException {
+            checkOpen();
+            long pos = size;
+            raf.seek(pos);
+            raf.write(bytes);
+            size += bytes.length;
+            return pos;
+        }
+
+        synchronized byte[] read(long offset, int length) throws IOException {
+            checkOpen();
+            byte[] bytes = new byte[length];
+            raf.seek(offset);
+            try {
+                raf.readFully(bytes);
+            } catch (EOFException eof) {
+                throw new EOFException("Unexpected end of segment " + file);
+            }
+            return bytes;
+        }
+
+        // force written data to disk
+        synchronized void sync() throws IOException {
+            checkOpen();
+            raf.getFD().sync();
+        }
+
+        synchronized void truncate(long length) throws IOException {
+            checkOpen();
+            raf.setLength(length);
+        }
+
+        synchronized void close() {
+            closed = true;
+            try {
+                raf.close();
+            } catch (IOException ignore) {
+                // nothing to do
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * The index of a store at some point in time.
+     */
+    static final class Snapshot {
+        // key -> Location
+        final Map index;
+        final long idCounter;
+        final long segment;
+        final long position;
+
+        Snapshot(Map index, long idCounter, long segment, long position) {
+            this.index = index;
+            this.idCounter = idCounter;
+            this.segment = segment;
+            this.position = position;
+        }
+
+        // check whether a value was written after the given log position
+        static boolean isNewer(Location loc, long segment, long position) {
+            return loc.segment.id > segment ||
+                   (loc.segment.id == segment && loc.offset >= position);
+        }
+    }
+
+    /**
+     * The location of a value in the log.
+     */
+    static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int recordSize;
+
+        Location(Segment segment, long offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.objectmodel.dom;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log used by {@link XmlDatabase} to make commits durable. Before a
+ * transaction's files are renamed to their final names, their contents and
+ * the names of deleted files are appended to the log. Transactions that
+ * commit concurrently are collected into a group which is written by one
+ * thread and forced to disk with a single fsync.
+ *
+ * On startup, complete records are replayed and an incomplete trailing
+ * record is discarded. The log is truncated after a checkpoint has forced
+ * all files written since the previous checkpoint to disk.
+ *
+ * <pre>
+ * record: magic, entryCount, entry*, crc
+ * entry:  1, name, length, data | 2, name
+ * </pre>
+ */
+final class XmlCommitLog {
+
+    static final int MAGIC = 0x48434c47;  // "HCLG"
+    static final byte WRITE = 1;
+    static final byte DELETE = 2;
+
+    private final File dir;
+    private final File file;
+    private final long window;
+    private final long checkpointSize;
+
+    // the log is written through a RandomAccessFile rather than a
+    // FileChannel, as interrupting a request thread (see Transactor.kill())
+    // would close a channel for all later commits
+    private RandomAccessFile raf;
+
+    // group commit state, guarded by this
+    private ArrayList queue = new ArrayList();
+    private boolean flushing = false;
+    private int pending = 0;
+    private HashSet dirtyFiles = new HashSet();
+
+    // statistics, guarded by this
+    private long commits = 0;
+    private long groups = 0;
+    private long checkpoints = 0;
+
+    /**
+     * Create a commit log for a database directory.
+     *
+     * @param dir the database directory
+     * @param window milliseconds to wait for other transactions before a group is written
+     * @param checkpointSize log size in bytes after which a checkpoint is made
+     */
+    XmlCommitLog(File dir, long window, long checkpointSize) {
+        this.dir = dir;
+        this.file = new File(dir, "commit.log");
+        this.window = window;
+        this.checkpointSize = checkpointSize;
+    }
+
+    /**
+     * Open the log and read the changes of all complete records in it.
+     * The caller must apply the returned changes and then call
+     * {@link #checkpoint()} before committing any transactions.
+     *
+     * @return map from file names to their contents, or null for deleted
+     *         files, in the order of their last change
+     * @throws IOException if the log couldn't be opened
+     */
+    synchronized Map open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        LinkedHashMap changes = new LinkedHashMap();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            while (true) {
+                LinkedHashMap record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                for (Iterator it = record.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    // keep the order of the last change
+                    changes.remove(entry.getKey());
+                    changes.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Append the changes of a transaction to the log and wait until they
+     * are on disk. The changes are written along with those of other
+     * transactions committing at the same time. The caller must rename its
+     * files and then call {@link #applied} once this method returns.
+     *
+     * @param writeFiles the transaction's written files
+     * @param deleteFiles the transaction's deleted files
+     * @throws IOException if the log couldn't be written
+     */
+    void commit(List writeFiles, List deleteFiles) throws IOException {
+        // encode the record in the committing thread
+        Request request = new Request(encode(writeFiles, deleteFiles));
+
+        synchronized (this) {
+            queue.add(request);
+            while (!request.done && flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException ir) {
+                    // keep waiting, the request may already be written
+                }
+            }
+            if (request.done) {
+                if (request.error != null) {
+                    throw request.error;
+                }
+                return;
+            }
+            // no group is being written, so this thread writes the next one
+            flushing = true;
+        }
+
+        List group = null;
+        IOException error = null;
+        boolean written = false;
+        try {
+            if (window > 0) {
+                try {
+                    Thread.sleep(window);
+                } catch (InterruptedException ir) {
+                    // write what we have
+                }
+            }
+
+            synchronized (this) {
+                group = queue;
+                queue = new ArrayList();
+            }
+            if (raf.length() > checkpointSize) {
+                synchronized (this) {
+                    checkpointLocked();
+                }
+            }
+            write(group);
+            written = true;
+        } catch (IOException x) {
+            error = x;
+        } finally {
+            // release the waiting transactions even if this thread is stopped
+            synchronized (this) {
+                if (group == null) {
+                    group = queue;
+                    queue = new ArrayList();
+                }
+                if (!written && error == null) {
+                    error = new IOException("Commit log group was not written");
+                }
+                for (Iterator it = group.iterator(); it.hasNext(); ) {
+                    Request r = (Request) it.next();
+                    r.done = true;
+                    r.error = error;
+                    if (written) {
+                        pending++;
+                        commits++;
+                    }
+                }
+                if (written) {
+                    groups++;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Notify the log that the files of a committed transaction have been
+     * renamed to their final names.
+     *
+     * @param writeFiles the transaction's written files
+     */
+    synchronized void applied(List writeFiles) {
+        for (Iterator it = writeFiles.iterator(); it.hasNext(); ) {
+            written(((XmlDatabase.Resource) it.next()).file);
+        }
+        pending--;
+        notifyAll();
+    }
+
+    /**
+     * Remember a file to be forced to disk at the next checkpoint.
+     *
+     * @param f the file
+     */
+    synchronized void written(File f) {
+        dirtyFiles.add(f);
+    }
+
+    /**
+     * Force all files written since the last checkpoint to disk and
+     * truncate the log.
+     *
+     * @throws IOException if a file couldn't be forced to disk
+     */
+    synchronized void checkpoint() throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException ir) {
+                return;
+            }
+        }
+        checkpointLocked();
+    }
+
+    /**
+     * Write a checkpoint and close the log.
+     */
+    synchronized void close() {
+        try {
+            checkpoint();
+        } catch (IOException x) {
+            // the log is kept and replayed on the next start
+        }
+        try {
+            raf.close();
+        } catch (IOException ignore) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Return a map of statistics about the commit log.
+     */
+    synchronized Map getStatistics() {
+        Map stats = new LinkedHashMap();
+        stats.put("commits", new Long(commits));
+        stats.put("groups", new Long(groups));
+        stats.put("checkpoints", new Long(checkpoints));
+        return stats;
+    }
+
+    // must be called holding the lock on this
+    private void checkpointLocked() throws IOException {
+        // wait until all written groups have been applied
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ir) {
+                return;
+            }
+        }
+        for (Iterator it = dirtyFiles.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+            if (f.exists()) {
+                RandomAccessFile r = new RandomAccessFile(f, "rw");
+                try {
+                    r.getFD().sync();
+                } finally {
+                    r.close();
+                }
+            }
+        }
+        forceDirectory();
+        dirtyFiles.clear();
+        raf.setLength(0);
+        raf.getFD().sync();
+        checkpoints++;
+    }
+
+    private void forceDirectory() {
+        // make renames and deletions durable, not supported on all platforms
+        try {
+            FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                dirChannel.force(true);
+            } finally {
+                dirChannel.close();
+            }
+        } catch (IOException ignore) {
+            // not supported
+        }
+    }
+
+    private void write(List group) throws IOException {
+        int length = 0;
+        for (Iterator it = group.iterator(); it.hasNext(); ) {
+            length += ((Request) it.next()).record.length;
+        }
+        byte[] buffer = new byte[length];
+        int position = 0;
+        for (Iterator it = group.iterator(); it.hasNext(); ) {
+            byte[] record = ((Request) it.next()).record;
+            System.arraycopy(record, 0, buffer, position, record.length);
+            position += record.length;
+        }
+        long start = raf.length();
+        try {
+            raf.seek(start);
+            raf.write(buffer);
+            raf.getFD().sync();
+        } catch (IOException x) {
+            // don't leave a partial record in front of the next group
+            try {
+                raf.setLength(start);
+            } catch (IOException ignore) {
+                // the partial record stops replay
+            }
+            throw x;
+        }
+    }
+
+    private byte[] encode(List writeFiles, List deleteFiles) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(MAGIC);
+        out.writeInt(writeFiles.size() + deleteFiles.size());
+        for (Iterator it = writeFiles.iterator(); it.hasNext(); ) {
+            XmlDatabase.Resource res = (XmlDatabase.Resource) it.next();
+            byte[] data = readFile(res.tmpfile);
+            out.writeByte(WRITE);
+            out.writeUTF(res.file.getName());
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        for (Iterator it = deleteFiles.iterator(); it.hasNext(); ) {
+            XmlDatabase.Resource res = (XmlDatabase.Resource) it.next();
+            out.writeByte(DELETE);
+            out.writeUTF(res.file.getName());
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bout.toByteArray(), 4, bout.size() - 4);
+        out.writeLong(crc.getValue());
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    // read a record, returning null at the end of the log or at an incomplete record
+    private LinkedHashMap readRecord(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+            DataOutputStream copy = new DataOutputStream(bout);
+            LinkedHashMap entries = new LinkedHashMap();
+            int count = in.readInt();
+            copy.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String name = in.readUTF();
+                copy.writeByte(type);
+                copy.writeUTF(name);
+                if (type == WRITE) {
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        return null;
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    copy.writeInt(length);
+                    copy.write(data);
+                    entries.put(name, data);
+                } else if (type == DELETE) {
+                    entries.put(name, null);
+                } else {
+                    return null;
+                }
+            }
+            copy.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bout.toByteArray());
+            if (in.readLong() != crc.getValue()) {
+                return null;
+            }
+            return entries;
+        } catch (EOFException eof) {
+            return null;
+        } catch (UTFDataFormatException x) {
+            return null;
+        }
+    }
+
+    static byte[] readFile(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            byte[] data = new byte[(int) f.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    static class Request {
+        final byte[] record;
+        boolean done = false;
+        IOException error = null;
+
+        Request(byte[] record) {
+            this.record = record;
+        }
+    }
+}
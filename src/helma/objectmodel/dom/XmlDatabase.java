@@ -17,6 +17,7 @@
 package helma.objectmodel.dom;
 
 import helma.objectmodel.*;
+import helma.objectmodel.db.ChildPageStore;
 import helma.objectmodel.db.NodeManager;
 import helma.objectmodel.db.Node;
 import helma.framework.core.Application;
@@ -24,13 +25,49 @@ import helma.framework.core.Application;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.xml.sax.SAXException;
 
 /**
- * A simple XML-database
+ * A simple XML-database. Each node is stored in its own file. If
+ * <code>embeddedDbFormat = binary</code> is set in app.properties, nodes
+ * are written as <code>&lt;id&gt;.bin</code> files using {@link BinaryNodeCodec}
+ * instead of <code>&lt;id&gt;.xml</code>. Existing files of either format are
+ * read, and converted to the configured format when the node is next updated.
+ *
+ * Child lists longer than <code>embeddedDbChildPageSize</code> (default 1000,
+ * 0 to disable) are stored in separate <code>&lt;id&gt;-&lt;page&gt;.idx</code>
+ * files, see {@link helma.objectmodel.db.PagedSubnodeList}.
+ *
+ * By default, committed files are renamed into place without forcing them to
+ * disk. If <code>xmldb.sync = true</code> is set, commits are first written
+ * to a commit log that is replayed after a crash, see {@link XmlCommitLog}.
+ * Concurrent commits share one log write and fsync. The following settings
+ * are supported:
+ *
+ * <ul>
+ * <li><code>xmldb.groupCommitWindow</code> - milliseconds a commit waits for
+ *     other commits to join its group (default 0, groups are then formed by
+ *     commits arriving while the previous group is written)</li>
+ * <li><code>xmldb.checkpointSize</code> - size of the commit log in MB after
+ *     which committed files are forced to disk and the log is truncated
+ *     (default 16)</li>
+ * </ul>
+ *
+ * Snapshots written by {@link DatabaseSnapshot} contain the files as of the
+ * snapshot point. Files replaced or deleted by later commits before they
+ * have been archived are moved to the <code>snapshot.tmp</code> directory.
  */
-public final class XmlDatabase implements IDatabase {
+public final class XmlDatabase implements IDatabase, ChildPageStore,
+                                          DatabaseSnapshot.Snapshottable {
 
     protected File dbHomeDir;
     protected Application app;
@@ -41,6 +78,21 @@ public final class XmlDatabase implements IDatabase {
     // use standard encoding by default.
     protected String encoding = null;
 
+    // write nodes using the binary codec instead of XML
+    protected boolean binary = false;
+
+    // maximum number of children stored inline or in one child page
+    protected int childPageSize = 1000;
+
+    // commit log, or null if commits aren't forced to disk
+    protected XmlCommitLog commitLog = null;
+
+    // commits hold the read lock, opening a snapshot takes the write lock
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    // the snapshot currently being written, or null
+    private volatile XmlSnapshot snapshot = null;
+
     /**
      * Initializes the database from an application.
      * @param app
@@ -65,7 +117,30 @@ public final class XmlDatabase implements IDatabase {
             copyStylesheet(stylesheet);
         }
 
+        // remove files preserved for a snapshot that was interrupted
+        clearDirectory(new File(dbHomeDir, XmlSnapshot.DIRECTORY));
+
         this.encoding = app.getCharset();
+        this.binary = "binary".equalsIgnoreCase(app.getProperty("embeddedDbFormat"));
+
+        try {
+            childPageSize = Integer.parseInt(app.getProperty("embeddedDbChildPageSize", "1000"));
+        } catch (NumberFormatException nfe) {
+            app.logError("Invalid embeddedDbChildPageSize setting: " +
+                         app.getProperty("embeddedDbChildPageSize"));
+        }
+
+        if ("true".equalsIgnoreCase(app.getProperty("xmldb.sync"))) {
+            commitLog = new XmlCommitLog(dbHomeDir, getLong("xmldb.groupCommitWindow", 0),
+                    getLong("xmldb.checkpointSize", 16) * 1024L * 1024L);
+            try {
+                recover(commitLog.open());
+                commitLog.checkpoint();
+            } catch (IOException x) {
+                app.logError("Error recovering commit log in " + dbHomeDir, x);
+                throw new DatabaseException("Error recovering commit log in " + dbHomeDir);
+            }
+        }
 
         // get the initial id generator value
         long idBaseValue;
@@ -161,7 +236,74 @@ public final class XmlDatabase implements IDatabase {
      * Shut down the database
      */
     public void shutdown() {
-        // nothing to do
+        if (commitLog != null) {
+            commitLog.close();
+            commitLog = null;
+        }
+    }
+
+    /**
+     * Apply the changes read from the commit log after a crash.
+     *
+     * @param changes map from file names to contents, null for deleted files
+     * @throws IOException if a file couldn't be written
+     */
+    private void recover(Map changes) throws IOException {
+        for (Iterator it = changes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            File file = new File(dbHomeDir, (String) entry.getKey());
+            byte[] data = (byte[]) entry.getValue();
+
+            if (data == null) {
+                file.delete();
+                continue;
+            }
+
+            File tmp = File.createTempFile(file.getName() + ".", ".tmp", dbHomeDir);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+
+            if ("idgen.xml".equals(file.getName()) && file.exists()) {
+                // concurrent commits may have logged the counter out of order
+                try {
+                    if (XmlIDGenerator.getIDGenerator(tmp).getValue() <
+                            XmlIDGenerator.getIDGenerator(file).getValue()) {
+                        tmp.delete();
+                        continue;
+                    }
+                } catch (ObjectNotFoundException notfound) {
+                    // use the logged version
+                }
+            }
+
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Error recovering " + file);
+            }
+            commitLog.written(file);
+        }
+
+        if (!changes.isEmpty()) {
+            app.logEvent("Recovered " + changes.size() + " files from commit log in " + dbHomeDir);
+        }
+    }
+
+    private long getLong(String name, long defaultValue) {
+        String value = app.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid " + name + " setting: " + value);
+            }
+        }
+        return defaultValue;
     }
 
     /**
@@ -181,12 +323,16 @@ public final class XmlDatabase implements IDatabase {
      * @throws DatabaseException
      */
     public void commitTransaction(ITransaction txn) throws DatabaseException {
-        if (idgen.dirty) {
-            try {
-                saveIDGenerator(txn);
-                idgen.dirty = false;
-            } catch (IOException x) {
-                throw new DatabaseException(x.toString());
+        // hold the generator's lock like reserveIDs() so a concurrent
+        // reservation isn't marked as saved before it is written
+        synchronized (idgen) {
+            if (idgen.dirty) {
+                try {
+                    saveIDGenerator(txn);
+                    idgen.dirty = false;
+                } catch (IOException x) {
+                    throw new DatabaseException(x.toString());
+                }
             }
         }
         txn.commit();
@@ -216,6 +362,61 @@ public final class XmlDatabase implements IDatabase {
         return idgen.newID();
     }
 
+    /**
+     * Reserve a block of ids and write the new counter value to idgen.xml
+     * right away, outside of any transaction.
+     *
+     * @param count the number of ids to reserve
+     * @return the first id of the reserved block
+     * @throws IOException if idgen.xml couldn't be written
+     * @throws ObjectNotFoundException
+     */
+    public long reserveIDs(int count) throws IOException, ObjectNotFoundException {
+        if (idgen == null) {
+            getIDGenerator(null);
+        }
+
+        synchronized (idgen) {
+            long first = idgen.reserve(count);
+
+            if (commitLog != null) {
+                // write the counter through the commit log to make it durable
+                ITransaction txn = beginTransaction();
+                saveIDGenerator(txn);
+                try {
+                    txn.commit();
+                } catch (DatabaseException x) {
+                    throw new IOException(x.getMessage());
+                }
+                idgen.dirty = false;
+                return first;
+            }
+
+            File tmp = File.createTempFile("idgen.xml.", ".tmp", dbHomeDir);
+
+            XmlIDGenerator.saveIDGenerator(idgen, tmp);
+
+            File file = new File(dbHomeDir, "idgen.xml");
+            snapshotLock.readLock().lock();
+            try {
+                preserve(file);
+                if (!tmp.renameTo(file)) {
+                    // Java/Windows quirk: can't rename onto an existing file
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Error writing " + file);
+                    }
+                }
+                file.setLastModified(System.currentTimeMillis());
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+            idgen.dirty = false;
+
+            return first;
+        }
+    }
+
     /**
      * Get the id-generator for this database.
      *
@@ -263,12 +464,24 @@ public final class XmlDatabase implements IDatabase {
      */
     public INode getNode(ITransaction txn, String kstr)
                   throws IOException, ObjectNotFoundException {
+        File bin = new File(dbHomeDir, kstr + ".bin");
         File f = new File(dbHomeDir, kstr + ".xml");
 
-        if (!f.exists()) {
+        // a node may be stored in either format depending on the
+        // embeddedDbFormat setting at the time it was last written
+        if (!bin.exists() && !f.exists()) {
             throw new ObjectNotFoundException("Object not found for key " + kstr);
         }
 
+        if (bin.exists()) {
+            InputStream in = new BufferedInputStream(new FileInputStream(bin));
+            try {
+                return BinaryNodeCodec.read(nmgr, in);
+            } finally {
+                in.close();
+            }
+        }
+
        try {
             XmlDatabaseReader reader = new XmlDatabaseReader(nmgr);
             Node node = reader.read(f);
@@ -295,7 +508,7 @@ public final class XmlDatabase implements IDatabase {
                 throws IOException {
         File f = new File(dbHomeDir, kstr + ".xml");
 
-        if (f.exists()) {
+        if (f.exists() || new File(dbHomeDir, kstr + ".bin").exists()) {
             throw new IOException("Object already exists for key " + kstr);
         }
 
@@ -314,25 +527,42 @@ public final class XmlDatabase implements IDatabase {
      */
     public void updateNode(ITransaction txn, String kstr, INode node)
                 throws IOException {
-        XmlWriter writer = null;
-        File tmp = File.createTempFile(kstr + ".xml.", ".tmp", dbHomeDir);
+        String suffix = binary ? ".bin" : ".xml";
+        File tmp = File.createTempFile(kstr + suffix + ".", ".tmp", dbHomeDir);
 
-        if (encoding != null) {
-            writer = new XmlWriter(tmp, encoding);
+        if (binary) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                BinaryNodeCodec.write(node, out);
+            } finally {
+                out.close();
+            }
         } else {
-            writer = new XmlWriter(tmp);
-        }
+            XmlWriter writer = null;
 
-        writer.setMaxLevels(1);
-        writer.write(node);
-        writer.close();
+            if (encoding != null) {
+                writer = new XmlWriter(tmp, encoding);
+            } else {
+                writer = new XmlWriter(tmp);
+            }
+
+            writer.setMaxLevels(1);
+            writer.write(node);
+            writer.close();
+        }
 
-        File file = new File(dbHomeDir, kstr+".xml");
+        File file = new File(dbHomeDir, kstr + suffix);
         if (file.exists() && !file.canWrite()) {
             throw new IOException("No write permission for "+file);
         }
         Resource res = new Resource(file, tmp);
         txn.addResource(res, ITransaction.ADDED);
+
+        // remove the node's file in the other format, if any
+        File other = new File(dbHomeDir, kstr + (binary ? ".xml" : ".bin"));
+        if (other.exists()) {
+            txn.addResource(new Resource(other, null), ITransaction.DELETED);
+        }
     }
 
     /**
@@ -346,6 +576,118 @@ public final class XmlDatabase implements IDatabase {
                     throws IOException {
         Resource res = new Resource(new File(dbHomeDir, kstr+".xml"), null);
         txn.addResource(res, ITransaction.DELETED);
+        res = new Resource(new File(dbHomeDir, kstr+".bin"), null);
+        txn.addResource(res, ITransaction.DELETED);
+    }
+
+    /**
+     * Get the maximum number of children stored in one child page.
+     *
+     * @return the child page size, 0 if child lists are stored inline
+     */
+    public int getChildPageSize() {
+        return childPageSize;
+    }
+
+    /**
+     * Read a child page file.
+     *
+     * @param key the page key
+     * @return the page data, or null if the page doesn't exist
+     * @throws IOException if the file couldn't be read
+     */
+    public byte[] readChildPage(String key) throws IOException {
+        File file = new File(dbHomeDir, key + ".idx");
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a child page to a temporary file which is copied to its final
+     * name when the transaction is committed, or mark it as deleted.
+     *
+     * @param txn the current transaction
+     * @param key the page key
+     * @param data the page data, or null to delete the page
+     * @throws IOException if the file couldn't be written
+     */
+    public void writeChildPage(ITransaction txn, String key, byte[] data)
+                throws IOException {
+        File file = new File(dbHomeDir, key + ".idx");
+        if (data == null) {
+            txn.addResource(new Resource(file, null), ITransaction.DELETED);
+            return;
+        }
+        File tmp = File.createTempFile(key + ".idx.", ".tmp", dbHomeDir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        txn.addResource(new Resource(file, tmp), ITransaction.ADDED);
+    }
+
+    /**
+     * Fence commits and record the files of the database for a snapshot.
+     *
+     * @return the snapshot source
+     * @throws IOException if a snapshot is already being written
+     */
+    public DatabaseSnapshot.Source openSnapshot() throws IOException {
+        snapshotLock.writeLock().lock();
+        try {
+            if (snapshot != null) {
+                throw new IOException("A snapshot of " + dbHomeDir + " is already being written");
+            }
+            Map names = new HashMap();
+            String[] list = dbHomeDir.list();
+            for (int i = 0; i < list.length; i++) {
+                String key = DatabaseSnapshot.getKey(list[i]);
+                // if a node exists in both formats, the binary file is read
+                if (key != null && !(names.containsKey(key) && list[i].endsWith(".xml"))) {
+                    names.put(key, list[i]);
+                }
+            }
+            snapshot = new XmlSnapshot(names, System.currentTimeMillis());
+            return snapshot;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the database directory.
+     */
+    public File getDirectory() {
+        return dbHomeDir;
+    }
+
+    // keep the snapshot version of a file that is about to be replaced or deleted
+    private void preserve(File file) {
+        XmlSnapshot current = snapshot;
+        if (current != null) {
+            current.preserve(file);
+        }
+    }
+
+    private static void clearDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+            dir.delete();
+        }
     }
 
     /**
@@ -375,39 +717,73 @@ public final class XmlDatabase implements IDatabase {
          * Complete the transaction by making its changes persistent.
          */
         public void commit() throws DatabaseException {
-            // move through updated/created files and persist them
-            int l = writeFiles.size();
-            for (int i=0; i<l; i++) {
-                Resource res = (Resource) writeFiles.get(i);
+            snapshotLock.readLock().lock();
+            try {
+                commitFiles();
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+        }
+
+        private void commitFiles() throws DatabaseException {
+            boolean logged = false;
+            if (commitLog != null && (!writeFiles.isEmpty() || !deleteFiles.isEmpty())) {
+                // make the changes durable before touching the actual files
                 try {
-                    // because of a Java/Windows quirk, we have to delete
-                    // the existing file before trying to overwrite it
-                    if (res.file.exists()) {
-                        res.file.delete();
-                    }
-                    // move temporary file to permanent name
-                    if (res.tmpfile.renameTo(res.file)) {
-                        // success - delete tmp file
-                        res.tmpfile.delete();
-                    } else {
-                        // error - leave tmp file and print a message
-                        app.logError("*** Error committing "+res.file);
-                        app.logError("*** Committed version is in "+res.tmpfile);
-                    }
-                } catch (SecurityException ignore) {
-                    // shouldn't happen
+                    commitLog.commit(writeFiles, deleteFiles);
+                    logged = true;
+                } catch (IOException x) {
+                    app.logError("Error writing commit log", x);
+                    abort();
+                    throw new DatabaseException(x.toString());
                 }
             }
 
-            // move through deleted files and delete them
-            l = deleteFiles.size();
-            for (int i=0; i<l; i++) {
-                Resource res = (Resource) deleteFiles.get(i);
-                // delete files enlisted as deleted
-                try {
-                    res.file.delete();
-                } catch (SecurityException ignore) {
-                    // shouldn't happen
+            try {
+                // move through updated/created files and persist them
+                long now = System.currentTimeMillis();
+                int l = writeFiles.size();
+                for (int i=0; i<l; i++) {
+                    Resource res = (Resource) writeFiles.get(i);
+                    preserve(res.file);
+                    try {
+                        // because of a Java/Windows quirk, we have to delete
+                        // the existing file before trying to overwrite it
+                        if (res.file.exists()) {
+                            res.file.delete();
+                        }
+                        // move temporary file to permanent name
+                        if (res.tmpfile.renameTo(res.file)) {
+                            // success - delete tmp file
+                            res.tmpfile.delete();
+                            // incremental snapshots compare against the commit time
+                            res.file.setLastModified(now);
+                        } else {
+                            // error - leave tmp file and print a message
+                            app.logError("*** Error committing "+res.file);
+                            app.logError("*** Committed version is in "+res.tmpfile);
+                        }
+                    } catch (SecurityException ignore) {
+                        // shouldn't happen
+                    }
+                }
+
+                // move through deleted files and delete them
+                l = deleteFiles.size();
+                for (int i=0; i<l; i++) {
+                    Resource res = (Resource) deleteFiles.get(i);
+                    preserve(res.file);
+                    // delete files enlisted as deleted
+                    try {
+                        res.file.delete();
+                    } catch (SecurityException ignore) {
+                        // shouldn't happen
+                    }
+                }
+            } finally {
+                // a checkpoint waits for every logged transaction to be applied
+                if (logged) {
+                    commitLog.applied(writeFiles);
                 }
             }
             // clear registered resources
@@ -452,6 +828,100 @@ public final class XmlDatabase implements IDatabase {
 
     }
 
+    /**
+     * The files of the database at a snapshot point. Files are read by the
+     * snapshot thread after the fence has been lifted; a commit replacing or
+     * deleting a file that hasn't been read yet moves it aside first.
+     */
+    class XmlSnapshot implements DatabaseSnapshot.Source {
+
+        static final String DIRECTORY = "snapshot.tmp";
+
+        // key -> file name of the files not read yet
+        final Map names;
+        final List keys;
+        final long point;
+        final File dir = new File(dbHomeDir, DIRECTORY);
+        final Set preserved = new HashSet();
+        boolean released = false;
+        IOException error = null;
+
+        XmlSnapshot(Map names, long point) {
+            this.names = names;
+            this.keys = new ArrayList(names.keySet());
+            Collections.sort(keys);
+            this.point = point;
+        }
+
+        public String getPoint() {
+            return Long.toString(point);
+        }
+
+        public List getKeys() {
+            return keys;
+        }
+
+        public synchronized DatabaseSnapshot.Entry read(String key, String since)
+                throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            String name = (String) names.remove(key);
+            if (name == null) {
+                return null;
+            }
+            File file = preserved.contains(name) ? new File(dir, name)
+                                                 : new File(dbHomeDir, name);
+            long modified = file.lastModified();
+            if (modified == 0) {
+                throw new IOException("Missing file " + file);
+            }
+            if (since != null) {
+                try {
+                    // allow for file systems with a time resolution of seconds
+                    if (modified < Long.parseLong(since) - 2000) {
+                        return null;
+                    }
+                } catch (NumberFormatException nfe) {
+                    // not written by this database, include the file
+                }
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] data = new byte[(int) file.length()];
+                in.readFully(data);
+                return new DatabaseSnapshot.Entry(name, modified, data);
+            } finally {
+                in.close();
+            }
+        }
+
+        synchronized void preserve(File file) {
+            String name = file.getName();
+            if (released || !name.equals(names.get(DatabaseSnapshot.getKey(name))) ||
+                    preserved.contains(name) || !file.exists()) {
+                return;
+            }
+            if (!dir.exists() && !dir.mkdir()) {
+                error = new IOException("Can't create directory " + dir);
+            } else if (!file.renameTo(new File(dir, name))) {
+                // the snapshot can't be consistent anymore
+                error = new IOException("Couldn't move " + file + " to " + dir);
+            } else {
+                preserved.add(name);
+            }
+        }
+
+        public void release() {
+            synchronized (this) {
+                released = true;
+                names.clear();
+                clearDirectory(dir);
+            }
+            snapshot = null;
+        }
+    }
+
     /**
      * A holder class for two files, the temporary file and the permanent one
      */
@@ -26,6 +26,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -71,6 +72,24 @@ public final class XmlDatabaseReader extends DefaultHandler implements XmlConsta
         return currentNode;
     }
 
+    /**
+     * read a node from a stream with xml-content.
+     */
+    public Node read(InputStream in)
+              throws ParserConfigurationException, SAXException, IOException {
+        if (nmgr == null) {
+            throw new RuntimeException("can't create a new Node without a NodeManager");
+        }
+
+        SAXParser parser = factory.newSAXParser();
+
+        currentNode = null;
+
+        parser.parse(in, this);
+
+        return currentNode;
+    }
+
     /**
      *
      *
@@ -110,6 +129,19 @@ public final class XmlDatabaseReader extends DefaultHandler implements XmlConsta
             return;
         }
 
+        if ("hop:childpage".equals(qName)) {
+            // a page of a child list stored separately
+            if (subnodes == null) {
+                subnodes = currentNode.createSubnodeList();
+            }
+            if (!(subnodes instanceof PagedSubnodeList)) {
+                throw new RuntimeException("Database doesn't support child pages: " + currentNode);
+            }
+            ((PagedSubnodeList) subnodes).addPage(Integer.parseInt(atts.getValue("id")),
+                                                  Integer.parseInt(atts.getValue("size")));
+            return;
+        }
+
         // find out what kind of element this is by looking at
         // the number and names of attributes.
         String idref = atts.getValue("idref");
@@ -57,6 +57,18 @@ public class XmlIDGenerator {
         return Long.toString(counter);
     }
 
+    /**
+     * Reserve a block of ids, returning the first one. The caller is
+     * responsible for persisting the new counter value.
+     */
+    public synchronized long reserve(int count) {
+        long first = counter + 1L;
+        counter += count;
+        dirty = true;
+
+        return first;
+    }
+
     /**
      * Set the counter to a new value
      */
@@ -113,7 +125,19 @@ public class XmlIDGenerator {
      */
     public static void saveIDGenerator(XmlIDGenerator idgen, File file)
             throws IOException {
-        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(file));
+        saveIDGenerator(idgen, new FileOutputStream(file));
+    }
+
+    /**
+     * Save an id generator to a stream. The stream is closed.
+     *
+     * @param idgen
+     * @param stream
+     * @throws IOException
+     */
+    public static void saveIDGenerator(XmlIDGenerator idgen, OutputStream stream)
+            throws IOException {
+        OutputStreamWriter out = new OutputStreamWriter(stream);
 
         out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
         out.write("<!-- printed by helma object publisher     -->\n");
@@ -22,6 +22,8 @@ import helma.objectmodel.IProperty;
 import helma.objectmodel.INodeState;
 import helma.objectmodel.db.DbMapping;
 import helma.objectmodel.db.Node;
+import helma.objectmodel.db.PagedSubnodeList;
+import helma.objectmodel.db.SubnodeList;
 import helma.util.HtmlEncoder;
 
 import java.io.*;
@@ -400,6 +402,13 @@ public class XmlWriter extends OutputStreamWriter implements XmlConstants {
             if ((smap != null) && smap.isRelational()) {
                 return;
             }
+
+            SubnodeList subnodes = dbNode.getSubnodeList();
+            if (subnodes instanceof PagedSubnodeList &&
+                    ((PagedSubnodeList) subnodes).isPaged()) {
+                writeChildPages((PagedSubnodeList) subnodes);
+                return;
+            }
         }
 
         Enumeration e = node.getSubnodes();
@@ -411,6 +420,26 @@ public class XmlWriter extends OutputStreamWriter implements XmlConstants {
         }
     }
 
+    /**
+     * write the page directory of a child list stored in separate pages.
+     * e.g. <hop:childpage id="3" size="1000"/>
+     */
+    private void writeChildPages(PagedSubnodeList subnodes) throws IOException {
+        synchronized (subnodes) {
+            int l = subnodes.countPages();
+            for (int i = 0; i < l; i++) {
+                write(prefix.toString());
+                write(indent);
+                write("<hop:childpage id=\"");
+                write(Integer.toString(subnodes.getPageId(i)));
+                write("\" size=\"");
+                write(Integer.toString(subnodes.getPageLength(i)));
+                write("\"/>");
+                write(LINESEPARATOR);
+            }
+        }
+    }
+
     /**
      * write an opening tag for a node. Include id and prototype, use a
      * name if parameter is non-empty.
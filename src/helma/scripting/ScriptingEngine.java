@@ -140,6 +140,17 @@ public interface ScriptingEngine {
      */
     public boolean hasFunction(Object thisObject, String functionName, boolean resolve);
 
+    /**
+     * Return true if a function by that name is defined by a prototype,
+     * regardless of the functions defined on individual objects. The result
+     * only changes when the application's code version changes.
+     * @param prototypeName the prototype name
+     * @param functionName the function name
+     * @return true if the function is defined by the prototype
+     * @see helma.framework.core.Application#getCodeVersion()
+     */
+    public boolean hasPrototypeFunction(String prototypeName, String functionName);
+
     /**
      * Return true if a property by that name is defined for that object.
      * @param thisObject the object
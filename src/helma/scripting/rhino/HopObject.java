@@ -740,7 +740,13 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
                     }
                 }
             }
+            // functions of prototype objects are cached by their code version
+            boolean functionChanged = value instanceof Function ||
+                    super.get(name, this) instanceof Function;
             super.put(name, start, value);
+            if (functionChanged) {
+                core.app.incrementCodeVersion();
+            }
         } else if (super.has(name, start)) {
             // if property is defined as ScriptableObject slot
             // (e.g. via __defineGetter__/__defineSetter__)
@@ -815,6 +821,10 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         if ((proxy != null)) {
             INode node = getNode();
             node.unset(name);
+        } else if (super.get(name, this) instanceof Function) {
+            super.delete(name);
+            core.app.incrementCodeVersion();
+            return;
         }
         super.delete(name);
     }
@@ -57,7 +57,7 @@ public final class RhinoCore implements ScopeProvider {
     public final Application app;
 
     // our context factory
-    ContextFactory contextFactory;
+    HelmaContextFactory contextFactory;
 
     // the global object
     GlobalObject global;
@@ -102,6 +102,13 @@ public final class RhinoCore implements ScopeProvider {
     // as the app remains unchanged
     long updateSnooze = 500;
 
+    // the application's code reload count when prototypes were last
+    // checked in frozen mode, or -1
+    volatile long frozenReloads = -1;
+
+    // compiles scripts to classes and caches them on disk
+    ScriptCache scriptCache;
+
     /**
      *  Create a Rhino evaluator for the given application and request evaluator.
      */
@@ -146,6 +153,7 @@ public final class RhinoCore implements ScopeProvider {
         }
         wrapper = new WrapMaker();
         wrapper.setJavaPrimitiveWrap(false);
+        scriptCache = new ScriptCache(this);
 
         Context context = contextFactory.enterContext();
 
@@ -301,6 +309,7 @@ public final class RhinoCore implements ScopeProvider {
             }
         });
         type.commitCompilation();
+        app.incrementCodeVersion();
     }
 
     /**
@@ -338,18 +347,51 @@ public final class RhinoCore implements ScopeProvider {
      *  engine know it should update its prototype information. The update policy
      *  here is to check for update those prototypes which already have been compiled
      *  before. Others will be updated/compiled on demand.
+     *
+     *  If the application is frozen, prototypes are only checked after a code
+     *  reload has been requested, and all of them are compiled right away so
+     *  requests don't have to wait for this core's lock.
      */
-    public synchronized void updatePrototypes() throws IOException {
-        if ((System.currentTimeMillis() - lastUpdate) < 1000L + updateSnooze) {
+    public void updatePrototypes() throws IOException {
+        if (app.isFrozen() && frozenReloads == app.getCodeReloads()) {
+            app.countCodeCheck(-1);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            checkPrototypes();
+        } finally {
+            app.countCodeCheck(System.nanoTime() - start);
+        }
+    }
+
+    private synchronized void checkPrototypes() throws IOException {
+        boolean frozen = app.isFrozen();
+        long reloads = app.getCodeReloads();
+
+        if (frozen) {
+            if (frozenReloads == reloads) {
+                // another thread did the check while we were waiting
+                return;
+            }
+        } else if ((System.currentTimeMillis() - lastUpdate) < 1000L + updateSnooze) {
             return;
         }
 
         // init prototypes and/or update prototype checksums
-        app.typemgr.checkPrototypes();
+        app.typemgr.checkPrototypes(frozen);
 
         // get a collection of all prototypes (code directories)
         Collection protos = app.getPrototypes();
 
+        // remove class files of scripts changed or removed since the last run
+        scriptCache.prune(protos);
+
+        // when going into frozen mode, compile everything in parallel
+        if (frozen && frozenReloads == -1) {
+            scriptCache.precompile(protos);
+        }
+
         // in order to respect inter-prototype dependencies, we try to update
         // the global prototype before all other prototypes, and parent
         // prototypes before their descendants.
@@ -373,8 +415,11 @@ public final class RhinoCore implements ScopeProvider {
 
             if (type == null) {
                 // a prototype we don't know anything about yet. Init local update info.
-                initPrototype(proto);
-            } else if (type.lastUpdate > -1) {
+                type = initPrototype(proto);
+                if (frozen) {
+                    updatePrototype(type, checked);
+                }
+            } else if (frozen || type.lastUpdate > -1) {
                 // only need to update prototype if it has already been initialized.
                 // otherwise, this will be done on demand.
                 updatePrototype(type, checked);
@@ -385,6 +430,8 @@ public final class RhinoCore implements ScopeProvider {
         // max updateSnooze is 4 seconds, reached after 66.6 idle minutes
         long newSnooze = (lastUpdate - app.typemgr.getLastCodeUpdate()) / 1000;
         updateSnooze = Math.min(4000, Math.max(0, newSnooze));
+        frozenReloads = frozen ? reloads : -1;
+        scriptCache.clear();
     }
 
     /**
@@ -860,6 +907,7 @@ public final class RhinoCore implements ScopeProvider {
                 return null;
             }
         });
+        app.incrementCodeVersion();
     }
 
     ////////////////////////////////////////////////
@@ -867,7 +915,6 @@ public final class RhinoCore implements ScopeProvider {
     ////////////////////////////////////////////////
     private synchronized void evaluate(Context cx, TypeInfo type, Resource code) {
         String sourceName = code.getName();
-        Reader reader = null;
 
         Resource previousCurrentResource = app.getCurrentCodeResource();
         app.setCurrentCodeResource(code);
@@ -876,20 +923,11 @@ public final class RhinoCore implements ScopeProvider {
 
         try {
             Scriptable op = type.objProto;
-            // do the update, evaluating the file
-            if (sourceName.endsWith(".js")) {
-                reader = encoding == null ?
-                        new InputStreamReader(code.getInputStream()) :
-                        new InputStreamReader(code.getInputStream(), encoding);
-                cx.evaluateReader(op, reader, sourceName, 1, null);
-            } else if (sourceName.endsWith(".hac")) {
-                reader = new StringReader(HacHspConverter.convertHac(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
-            } else if (sourceName.endsWith(".hsp")) {
-                reader = new StringReader(HacHspConverter.convertHsp(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
-                reader = new StringReader(HacHspConverter.convertHspAsString(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
+            // do the update, compiling and evaluating the file
+            String[] sources = ScriptCache.getSources(code, encoding);
+            int lineno = ScriptCache.getLineNumber(code);
+            for (int i = 0; i < sources.length; i++) {
+                scriptCache.compile(cx, sources[i], sourceName, lineno, i).exec(cx, op);
             }
 
         } catch (Exception e) {
@@ -908,13 +946,6 @@ public final class RhinoCore implements ScopeProvider {
             }
         } finally {
             app.setCurrentCodeResource(previousCurrentResource);
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ignore) {
-                    // shouldn't happen
-                }
-            }
         }
     }
 
@@ -1199,12 +1230,8 @@ public final class RhinoCore implements ScopeProvider {
         final boolean strictVars = "true".equalsIgnoreCase(app.getProperty("strictVars"));
 
         protected void onContextCreated(Context cx) {
-            cx.setWrapFactory(wrapper);
-            cx.setOptimizationLevel(optLevel);
-            cx.setInstructionObserverThreshold(10000);
-            if (Context.isValidLanguageVersion(languageVersion)) {
-                cx.setLanguageVersion(languageVersion);
-            } else {
+            initContext(cx);
+            if (!Context.isValidLanguageVersion(languageVersion)) {
                 app.logError("Unsupported rhino.languageVersion: " + languageVersion);
             }
             // Set up visual debugger if rhino.debug = true
@@ -1213,6 +1240,19 @@ public final class RhinoCore implements ScopeProvider {
             super.onContextCreated(cx);
         }
 
+        /**
+         * Apply the application's settings to a context. This is called for
+         * new contexts and again whenever a context is reused for a request.
+         */
+        void initContext(Context cx) {
+            cx.setWrapFactory(wrapper);
+            cx.setOptimizationLevel(optLevel);
+            cx.setInstructionObserverThreshold(10000);
+            if (Context.isValidLanguageVersion(languageVersion)) {
+                cx.setLanguageVersion(languageVersion);
+            }
+        }
+
         protected boolean hasFeature(Context cx, int featureIndex) {
             switch (featureIndex) {
                 case Context.FEATURE_DYNAMIC_SCOPE:
@@ -31,6 +31,7 @@ import helma.scripting.rhino.debug.Tracer;
 import helma.scripting.rhino.debug.Profiler;
 import helma.util.StringUtils;
 import org.mozilla.javascript.*;
+import org.mozilla.javascript.debug.Debugger;
 import org.mozilla.javascript.serialize.ScriptableOutputStream;
 import org.mozilla.javascript.serialize.ScriptableInputStream;
 
@@ -51,6 +52,13 @@ public class RhinoEngine implements ScriptingEngine {
     // The Rhino context
     Context context;
 
+    // the thread that entered the context, or null if it has been exited
+    private volatile Thread contextThread;
+
+    // the debugger installed when the context was created
+    private Debugger contextDebugger;
+    private Object contextDebuggerData;
+
     // the per-thread global object
     GlobalObject global;
 
@@ -63,6 +71,10 @@ public class RhinoEngine implements ScriptingEngine {
     // the global vars set by extensions
     HashMap extensionGlobals;
 
+    // the wrappers of the global vars set for the last request, so objects
+    // that don't change from one request to the next are only wrapped once
+    final HashMap globalWrappers = new HashMap();
+
     // the thread currently running this engine
     volatile Thread thread;
 
@@ -85,6 +97,8 @@ public class RhinoEngine implements ScriptingEngine {
         initRhinoCore(app);
 
         context = core.contextFactory.enterContext();
+        contextDebugger = context.getDebugger();
+        contextDebuggerData = context.getDebuggerContextData();
 
         try {
             extensionGlobals = new HashMap();
@@ -160,12 +174,38 @@ public class RhinoEngine implements ScriptingEngine {
         // (chicken and egg problem, kind of)
         thread = Thread.currentThread();
         global = new GlobalObject(core, app, true);
-        context = core.contextFactory.enterContext();
+        // reuse the context of the last request unless a thread abandoned
+        // after a request timeout is still in it. The abandoned thread may
+        // also still use the wrappers of the last request's globals.
+        if (contextThread != null) {
+            context = null;
+            globalWrappers.clear();
+        }
+        boolean reused = context != null;
+        try {
+            context = core.contextFactory.enterContext(context);
+        } catch (IllegalStateException x) {
+            // the context is still associated with some other thread
+            context = core.contextFactory.enterContext();
+            globalWrappers.clear();
+            reused = false;
+        }
+        contextThread = thread;
+
+        if (reused) {
+            // the last request may have left its own settings and debugger
+            core.contextFactory.initContext(context);
+        } else {
+            contextDebugger = context.getDebugger();
+            contextDebuggerData = context.getDebuggerContextData();
+        }
 
         if (core.hasTracer) {
             context.setDebugger(new Tracer(getResponse()), null);
         } else if (useProfiler()) {
             context.setDebugger(new Profiler(), null);
+        } else {
+            context.setDebugger(contextDebugger, contextDebuggerData);
         }
 
         // register the engine with the current thread
@@ -200,7 +240,18 @@ public class RhinoEngine implements ScriptingEngine {
                 scriptable = new PathWrapper((RequestPath) v, core);
                 scriptable.setPrototype(core.pathProto);
             } else {
-                scriptable = Context.toObject(v, global);
+                Scriptable wrapper = (Scriptable) globalWrappers.get(k);
+                if (wrapper instanceof Wrapper && ((Wrapper) wrapper).unwrap() == v) {
+                    // move wrappers created in the last request's scope over
+                    Scriptable parent = wrapper.getParentScope();
+                    if (parent instanceof GlobalObject && ((GlobalObject) parent).isThreadScope) {
+                        wrapper.setParentScope(global);
+                    }
+                    scriptable = wrapper;
+                } else {
+                    scriptable = Context.toObject(v, global);
+                    globalWrappers.put(k, scriptable);
+                }
             }
 
             global.put(k, global, scriptable);
@@ -228,6 +279,9 @@ public class RhinoEngine implements ScriptingEngine {
         // unregister the engine threadlocal
         engines.set(null);
         Context.exit();
+        if (contextThread == Thread.currentThread()) {
+            contextThread = null;
+        }
         thread = null;
         global = null;
     }
@@ -409,6 +463,13 @@ public class RhinoEngine implements ScriptingEngine {
         return ScriptableObject.getProperty(op, fname) instanceof Callable;
     }
 
+    /**
+     * Check if a function with the given name is defined by a prototype.
+     */
+    public boolean hasPrototypeFunction(String protoname, String fname) {
+        return core.hasFunction(protoname, fname.replace('.', '_'));
+    }
+
     /**
      * Check if an object has a value property defined with that name.
      */
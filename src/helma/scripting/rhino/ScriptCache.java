@@ -0,0 +1,462 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+
+package helma.scripting.rhino;
+
+import helma.framework.core.Application;
+import helma.framework.core.Prototype;
+import helma.framework.repository.Resource;
+import org.mozilla.classfile.ClassFileWriter;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles the script resources of an application to Java classes and keeps
+ * the class files in a directory, so that unchanged scripts don't have to be
+ * compiled again when the application is restarted. Cached class files are
+ * keyed by a digest of the script source and name, the optimization level,
+ * the language version and the Rhino version.
+ *
+ * Since keys change with the script source, class files of changed scripts
+ * are deleted when the new version is compiled, and files that don't belong
+ * to any of the application's current scripts are deleted when the code is
+ * first checked after startup.
+ *
+ * The cache is only used with an optimization level of 0 or higher, since
+ * interpreted scripts are not compiled to classes. It is enabled through the
+ * following app.properties entries:
+ *
+ * <ul>
+ * <li><code>rhino.cache</code> - set to true to cache compiled scripts in
+ *     <code>scriptcache/&lt;appname&gt;</code> in the Helma home directory, or
+ *     to the path of the cache directory</li>
+ * <li><code>rhino.compileThreads</code> - number of threads used to compile
+ *     all prototypes at once in frozen mode (defaults to the number of
+ *     processors)</li>
+ * </ul>
+ */
+final class ScriptCache {
+
+    static final String CLASS_PREFIX = "helma.scripting.rhino.gen.Script_";
+
+    private final RhinoCore core;
+    private final Application app;
+    private final File dir;
+    private final int threads;
+
+    // class files compiled in advance, keyed by cache key
+    private final Map precompiled = Collections.synchronizedMap(new HashMap());
+
+    // the cache key last used for each source, keyed by source name and index
+    private final Map keys = new HashMap();
+
+    // true once stale class files have been removed from the cache directory
+    private boolean pruned = false;
+
+    // number of scripts compiled, guarded by this
+    private long compiled = 0;
+
+    ScriptCache(RhinoCore core) {
+        this.core = core;
+        this.app = core.app;
+
+        String cache = app.getProperty("rhino.cache");
+        if (cache == null || "false".equalsIgnoreCase(cache)) {
+            dir = null;
+        } else if ("true".equalsIgnoreCase(cache)) {
+            dir = new File(new File(app.getServerDir(), "scriptcache"), app.getName());
+        } else {
+            dir = new File(cache);
+        }
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            app.logError("Can't create script cache directory " + dir);
+        }
+
+        int n = Runtime.getRuntime().availableProcessors();
+        String t = app.getProperty("rhino.compileThreads");
+        if (t != null) {
+            try {
+                n = Integer.parseInt(t.trim());
+            } catch (NumberFormatException nfe) {
+                app.logError("Invalid rhino.compileThreads setting: " + t);
+            }
+        }
+        threads = Math.max(1, n);
+    }
+
+    /**
+     * Get the JavaScript sources of a code resource. Actions and templates
+     * are converted to functions.
+     *
+     * @param code the code resource
+     * @param encoding the source encoding, or null
+     * @return the sources to evaluate
+     */
+    static String[] getSources(Resource code, String encoding) throws IOException {
+        String name = code.getName();
+        if (name.endsWith(".js")) {
+            return new String[] {code.getContent(encoding)};
+        } else if (name.endsWith(".hac")) {
+            return new String[] {HacHspConverter.convertHac(code, encoding)};
+        } else if (name.endsWith(".hsp")) {
+            return new String[] {HacHspConverter.convertHsp(code, encoding),
+                                 HacHspConverter.convertHspAsString(code, encoding)};
+        }
+        return new String[0];
+    }
+
+    /**
+     * Get the first line number of a code resource's sources.
+     */
+    static int getLineNumber(Resource code) {
+        return code.getName().endsWith(".js") ? 1 : 0;
+    }
+
+    /**
+     * Compile a script, using the cached or precompiled class files if
+     * available.
+     *
+     * @param cx the current context
+     * @param source the script source
+     * @param sourceName the source name
+     * @param lineno the first line number
+     * @param index the index of the source within its code resource
+     * @return the compiled script
+     */
+    Script compile(Context cx, String source, String sourceName, int lineno, int index) {
+        if (!isCompiling(cx)) {
+            return cx.compileString(source, sourceName, lineno, null);
+        }
+
+        String key = getKey(cx, source, sourceName, lineno);
+        replaced(sourceName + "#" + index, key);
+        Object[] classFiles = (Object[]) precompiled.remove(key);
+        if (classFiles == null) {
+            classFiles = getClassFiles(cx, key, source, sourceName, lineno);
+        }
+        if (classFiles == null) {
+            // too large to be compiled to a class
+            return cx.compileString(source, sourceName, lineno, null);
+        }
+
+        try {
+            GeneratedClassLoader loader =
+                    cx.createClassLoader(cx.getApplicationClassLoader());
+            Class scriptClass = null;
+            for (int i = 0; i < classFiles.length; i += 2) {
+                Class c = loader.defineClass((String) classFiles[i], (byte[]) classFiles[i + 1]);
+                loader.linkClass(c);
+                if (i == 0) {
+                    scriptClass = c;
+                }
+            }
+            return (Script) scriptClass.newInstance();
+        } catch (Exception x) {
+            app.logError("Error loading compiled script " + sourceName, x);
+            return cx.compileString(source, sourceName, lineno, null);
+        }
+    }
+
+    /**
+     * Compile the code resources of the given prototypes on a pool of
+     * threads. The class files are kept until the scripts are evaluated
+     * through {@link #compile}, or until {@link #clear} is called.
+     *
+     * @param protos the prototypes to compile
+     */
+    void precompile(Collection protos) {
+        if (precompiled.size() > 0 || !isCompiling(null)) {
+            return;
+        }
+
+        final String encoding = app.getProperty("sourceCharset");
+        List tasks = new ArrayList();
+        for (Iterator i = protos.iterator(); i.hasNext(); ) {
+            Prototype proto = (Prototype) i.next();
+            // make sure the prototype knows about all its resources
+            proto.checkForUpdates();
+            for (Iterator c = proto.getCodeResources(); c.hasNext(); ) {
+                final Resource code = (Resource) c.next();
+                tasks.add(new Callable() {
+                    public Object call() {
+                        return core.contextFactory.call(new ContextAction() {
+                            public Object run(Context cx) {
+                                precompile(cx, code, encoding);
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+        }
+        if (tasks.size() < 2) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long compiledBefore = getCompiled();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            List futures = pool.invokeAll(tasks);
+            for (Iterator i = futures.iterator(); i.hasNext(); ) {
+                try {
+                    ((Future) i.next()).get();
+                } catch (ExecutionException x) {
+                    // errors are reported when the script is evaluated
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+        app.logEvent("Compiled " + tasks.size() + " scripts of " + protos.size() +
+                " prototypes in " + (System.currentTimeMillis() - start) + " millis (" +
+                (getCompiled() - compiledBefore) + " not cached)");
+    }
+
+    /**
+     * Forget class files that have been compiled in advance but not used.
+     */
+    void clear() {
+        precompiled.clear();
+    }
+
+    /**
+     * Delete all files from the cache directory that don't belong to the
+     * current scripts of the given prototypes. This only does something the
+     * first time it is called.
+     *
+     * @param protos all prototypes of the application
+     */
+    void prune(Collection protos) {
+        synchronized (this) {
+            if (pruned || dir == null || !isCompiling(null)) {
+                return;
+            }
+            pruned = true;
+        }
+
+        final String encoding = app.getProperty("sourceCharset");
+        final Set current = new HashSet();
+        for (Iterator i = protos.iterator(); i.hasNext(); ) {
+            Prototype proto = (Prototype) i.next();
+            proto.checkForUpdates();
+            for (Iterator c = proto.getCodeResources(); c.hasNext(); ) {
+                final Resource code = (Resource) c.next();
+                core.contextFactory.call(new ContextAction() {
+                    public Object run(Context cx) {
+                        try {
+                            String[] sources = getSources(code, encoding);
+                            int lineno = getLineNumber(code);
+                            for (int i = 0; i < sources.length; i++) {
+                                current.add(getKey(cx, sources[i], code.getName(), lineno)
+                                        + ".classes");
+                            }
+                        } catch (IOException x) {
+                            // can't be compiled either
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        File[] files = dir.listFiles();
+        int deleted = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            // also remove temporary files left over from interrupted writes
+            boolean stale = name.endsWith(".classes") ?
+                    !current.contains(name) :
+                    name.startsWith("script") && name.endsWith(".tmp");
+            if (stale && files[i].delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            app.logEvent("Removed " + deleted + " stale files from script cache " + dir);
+        }
+    }
+
+    /**
+     * Remember the key used for a source and delete the class file of the
+     * key it replaces, unless another source still uses it.
+     */
+    private void replaced(String source, String key) {
+        String stale;
+        synchronized (keys) {
+            stale = (String) keys.put(source, key);
+            if (stale == null || stale.equals(key) || keys.containsValue(stale)) {
+                return;
+            }
+        }
+        if (dir != null) {
+            new File(dir, stale + ".classes").delete();
+        }
+    }
+
+    private void precompile(Context cx, Resource code, String encoding) {
+        try {
+            String[] sources = getSources(code, encoding);
+            int lineno = getLineNumber(code);
+            for (int i = 0; i < sources.length; i++) {
+                String key = getKey(cx, sources[i], code.getName(), lineno);
+                Object[] classFiles = getClassFiles(cx, key, sources[i], code.getName(), lineno);
+                if (classFiles != null) {
+                    precompiled.put(key, classFiles);
+                }
+            }
+        } catch (Exception x) {
+            // syntax errors are reported when the script is evaluated
+        }
+    }
+
+    /**
+     * Tell whether scripts are compiled to classes that can be cached.
+     */
+    private boolean isCompiling(Context cx) {
+        if (cx != null && (cx.getOptimizationLevel() < 0 || cx.isGeneratingDebug())) {
+            return false;
+        }
+        return core.optLevel >= 0;
+    }
+
+    /**
+     * Get the class files for a script from the cache directory, or compile
+     * and store them.
+     *
+     * @return the class names and class file contents, or null if the script
+     *         can't be compiled to a class
+     */
+    private Object[] getClassFiles(Context cx, String key, String source,
+                                   String sourceName, int lineno) {
+        File file = dir == null ? null : new File(dir, key + ".classes");
+        if (file != null && file.exists()) {
+            try {
+                return read(file);
+            } catch (IOException x) {
+                app.logError("Error reading cached script " + file, x);
+            }
+        }
+
+        Object[] classFiles;
+        try {
+            CompilerEnvirons env = new CompilerEnvirons();
+            env.initFromContext(cx);
+            ClassCompiler compiler = new ClassCompiler(env);
+            classFiles = compiler.compileToClassFiles(source, sourceName, lineno,
+                                                      CLASS_PREFIX + key);
+        } catch (ClassFileWriter.ClassFileFormatException x) {
+            return null;
+        }
+        synchronized (this) {
+            compiled++;
+        }
+
+        if (file != null) {
+            try {
+                write(file, classFiles);
+            } catch (IOException x) {
+                app.logError("Error writing cached script " + file, x);
+            }
+        }
+        return classFiles;
+    }
+
+    private synchronized long getCompiled() {
+        return compiled;
+    }
+
+    private static Object[] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            Object[] classFiles = new Object[count * 2];
+            for (int i = 0; i < classFiles.length; i += 2) {
+                classFiles[i] = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classFiles[i + 1] = bytes;
+            }
+            return classFiles;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, Object[] classFiles) throws IOException {
+        // write to a temporary file first so readers never see partial files
+        File tmp = File.createTempFile("script", ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(classFiles.length / 2);
+            for (int i = 0; i < classFiles.length; i += 2) {
+                byte[] bytes = (byte[]) classFiles[i + 1];
+                out.writeUTF((String) classFiles[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private static String getKey(Context cx, String source, String sourceName, int lineno) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            String header = cx.getImplementationVersion() + "\n" +
+                    cx.getOptimizationLevel() + "\n" + cx.getLanguageVersion() + "\n" +
+                    sourceName + "\n" + lineno + "\n";
+            digest.update(header.getBytes("UTF-8"));
+            digest.update(source.getBytes("UTF-8"));
+            byte[] hash = digest.digest();
+            StringBuffer buffer = new StringBuffer(hash.length * 2);
+            for (int i = 0; i < hash.length; i++) {
+                int b = hash[i] & 0xff;
+                if (b < 16) {
+                    buffer.append('0');
+                }
+                buffer.append(Integer.toHexString(b));
+            }
+            return buffer.toString();
+        } catch (NoSuchAlgorithmException x) {
+            throw new RuntimeException(x.toString());
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x.toString());
+        }
+    }
+}
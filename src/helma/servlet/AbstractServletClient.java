@@ -251,6 +251,17 @@ public abstract class AbstractServletClient extends HttpServlet {
                 }
             }
 
+            // let streaming responses write headers and cookies before the body
+            final HttpServletRequest servletRequest = request;
+            final HttpServletResponse servletResponse = response;
+            final String streamCookieDomain = resCookieDomain;
+            reqtrans.setResponseCommitter(new ResponseCommitter() {
+                public void commit(ResponseTrans res) throws IOException {
+                    addCookies(servletResponse, res, streamCookieDomain);
+                    writeHeaders(servletRequest, servletResponse, res);
+                }
+            });
+
             ResponseTrans restrans = getApplication().execute(reqtrans);
 
             // delete uploads if any
@@ -261,24 +272,13 @@ public abstract class AbstractServletClient extends HttpServlet {
             }
 
             // if the response was already written and committed by the application
-            // we can skip this part and return
-            if (response.isCommitted()) {
+            // or streamed while rendering we can skip this part and return
+            if (response.isCommitted() || restrans.isStreamed()) {
                 return;
             }
 
             // set cookies
-            if (restrans.countCookies() > 0) {
-                CookieTrans[] resCookies = restrans.getCookies();
-
-                for (int i = 0; i < resCookies.length; i++)
-                    try {
-                        Cookie c = resCookies[i].getCookie("/", resCookieDomain);
-
-                        response.addCookie(c);
-                    } catch (Exception x) {
-                        getApplication().logEvent("Error adding cookie: " + x);
-                    }
-            }
+            addCookies(response, restrans, resCookieDomain);
 
             // write response
             writeResponse(request, response, reqtrans, restrans);
@@ -307,44 +307,19 @@ public abstract class AbstractServletClient extends HttpServlet {
             return;
         }
 
-        if (hopres.getETag() != null) {
-            res.setHeader("ETag", hopres.getETag());
-        }
-
         if (hopres.getRedirect() != null) {
+            if (hopres.getETag() != null) {
+                res.setHeader("ETag", hopres.getETag());
+            }
             sendRedirect(req, res, hopres.getRedirect(), hopres.getStatus());
         } else if (hopres.getNotModified()) {
+            if (hopres.getETag() != null) {
+                res.setHeader("ETag", hopres.getETag());
+            }
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         } else {
-            if (!hopres.isCacheable() || !caching) {
-                // Disable caching of response.
-                if (isOneDotOne(req.getProtocol())) {
-                    // for HTTP 1.1
-                    res.setHeader("Cache-Control",
-                                  "no-cache, no-store, must-revalidate, max-age=0");
-                } else {
-                    // for HTTP 1.0
-                    res.setDateHeader("Expires", System.currentTimeMillis() - 10000);
-                    res.setHeader("Pragma", "no-cache");
-                }
-            }
-
-            if (hopres.getRealm() != null) {
-                res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\"");
-            }
-
-            if (hopres.getStatus() > 0) {
-                res.setStatus(hopres.getStatus());
-            }
-
-            // set last-modified header to now
-            long modified = hopres.getLastModified();
-            if (modified > -1) {
-                res.setDateHeader("Last-Modified", modified);
-            }
-
+            writeHeaders(req, res, hopres);
             res.setContentLength(hopres.getContentLength());
-            res.setContentType(hopres.getContentType());
 
             if (!"HEAD".equalsIgnoreCase(req.getMethod())) {
                 byte[] content = hopres.getContent();
@@ -361,6 +336,64 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
     }
 
+    /**
+     * Write the status and headers of a response, excluding the content length.
+     */
+    protected void writeHeaders(HttpServletRequest req, HttpServletResponse res,
+                                ResponseTrans hopres) {
+        if (hopres.getETag() != null) {
+            res.setHeader("ETag", hopres.getETag());
+        }
+
+        if (!hopres.isCacheable() || !caching) {
+            // Disable caching of response.
+            if (isOneDotOne(req.getProtocol())) {
+                // for HTTP 1.1
+                res.setHeader("Cache-Control",
+                              "no-cache, no-store, must-revalidate, max-age=0");
+            } else {
+                // for HTTP 1.0
+                res.setDateHeader("Expires", System.currentTimeMillis() - 10000);
+                res.setHeader("Pragma", "no-cache");
+            }
+        }
+
+        if (hopres.getRealm() != null) {
+            res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\"");
+        }
+
+        if (hopres.getStatus() > 0) {
+            res.setStatus(hopres.getStatus());
+        }
+
+        // set last-modified header to now
+        long modified = hopres.getLastModified();
+        if (modified > -1) {
+            res.setDateHeader("Last-Modified", modified);
+        }
+
+        res.setContentType(hopres.getContentType());
+    }
+
+    /**
+     * Add the cookies set in a response to the servlet response.
+     */
+    void addCookies(HttpServletResponse response, ResponseTrans restrans,
+                    String resCookieDomain) {
+        if (restrans.countCookies() > 0) {
+            CookieTrans[] resCookies = restrans.getCookies();
+
+            for (int i = 0; i < resCookies.length; i++)
+                try {
+                    Cookie c = resCookies[i].getCookie("/", resCookieDomain);
+
+                    response.addCookie(c);
+                } catch (Exception x) {
+                    getApplication().logEvent("Error adding cookie: " + x);
+                }
+        }
+    }
+
     void sendError(HttpServletResponse response, int code, String message)
             throws IOException {
         if (response.isCommitted()) {
@@ -0,0 +1,340 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ObjectCache;
+
+/**
+ * An ObjectCache implementation with the same two-generation LRU semantics
+ * as {@link CacheMap}, but backed by ConcurrentHashMaps so that lookups
+ * don't serialize on a single monitor. Only table rotation is synchronized.
+ *
+ * To use this cache, set <code>cacheimpl = helma.util.ConcurrentCacheMap</code>
+ * in the application's app.properties file.
+ */
+public class ConcurrentCacheMap implements ObjectCache {
+
+    // Load factor.
+    private float loadFactor;
+
+    // When count exceeds this threshold, expires the old table.
+    private volatile int threshold;
+
+    // Capacity of each table.
+    private volatile int eachCapacity;
+
+    // The current pair of tables. Replaced as a whole on rotation so
+    // readers always see a consistent new/old combination.
+    private volatile Generation gen;
+
+    // number of table rotations since startup
+    private volatile int rotations = 0;
+
+    // the application to output messages to
+    private Application app = null;
+
+    /**
+     * Zero argument constructor. Creates a ConcurrentCacheMap with capacity
+     * of 1000 and load factor 0.75
+     */
+    public ConcurrentCacheMap() {
+        this(1000, 0.75f);
+    }
+
+    /**
+     * Constructs a new, empty cache with the specified initial
+     * capacity and the specified load factor.
+     * @param initialCapacity the overall number of cached objects
+     * @param loadFactor a number between 0.0 and 1.0, it defines
+     *        the threshold for expiring old entries
+     */
+    public ConcurrentCacheMap(int initialCapacity, float loadFactor) {
+        if (initialCapacity <= 0 || loadFactor <= 0.0)
+            throw new IllegalArgumentException();
+        this.loadFactor = loadFactor;
+        // table rotation threshold: we allow each table to gain
+        // initialCapacity/2 entries.
+        threshold = initialCapacity / 2;
+        eachCapacity = (int) (threshold / loadFactor) + 2;
+        // we'll never insert into the initial old table, it's a dummy
+        // that will be lost on the first cache rotation.
+        gen = new Generation(createTable(eachCapacity, loadFactor),
+                             new ConcurrentHashMap());
+    }
+
+    /**
+     * Constructs a new, empty cache with the specified initial capacity.
+     * @param initialCapacity the overall number of cached objects
+     */
+    public ConcurrentCacheMap(int initialCapacity) {
+        this(initialCapacity, 0.75F);
+    }
+
+    /**
+     * Returns the number of elements contained in the cache.
+     */
+    public int size() {
+        Generation g = gen;
+        return g.newTable.size() + g.oldTable.size();
+    }
+
+    /**
+     * Returns true if the cache contains no elements.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Set the capacity of the cache.
+     */
+    public void setCapacity(int capacity) {
+        // table rotation threshold: we allow each table to gain
+        // initialCapacity/2 entries.
+        int newThreshold = capacity / 2;
+        if (newThreshold != threshold) {
+            if (app != null)
+                app.logEvent("Setting cache capacity to " + capacity);
+            updateThreshold(newThreshold);
+        }
+    }
+
+    private synchronized void updateThreshold(int newThreshold) {
+        threshold = newThreshold;
+        eachCapacity = (int) (threshold / loadFactor) + 2;
+        // if newtable is larger than threshold, rotate.
+        if (gen.newTable.size() > threshold) {
+            rotate(gen);
+        }
+    }
+
+    /**
+     * Returns true if the collection contains an element for the key.
+     * @param key the key that we are looking for
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the number of keys in object array <code>keys</code> that
+     * were not found in the Map.
+     * Those keys that are contained in the Map are nulled out in the array.
+     * @param keys an array of key objects we are looking for
+     */
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (get(keys[i]) != null)
+                keys[i] = null;
+            else
+                notfound++;
+        }
+        return notfound;
+    }
+
+    /**
+     * Gets the object associated with the specified key in the cache.
+     * Objects found in the old table are moved to the new table.
+     * @param key the specified key
+     * @return the element for the key or null if the key
+     *         is not defined in the cache.
+     */
+    public Object get(Object key) {
+        Generation g = gen;
+        Object value = g.newTable.get(key);
+        if (value != null)
+            return value;
+        value = g.oldTable.get(key);
+        if (value != null) {
+            // Move object from old table to new table. If another thread
+            // has put a different value in the meantime, that one wins.
+            Object current = g.newTable.putIfAbsent(key, value);
+            if (current != null) {
+                g.oldTable.remove(key, value);
+                return current;
+            }
+            if (!g.oldTable.remove(key, value)) {
+                // the object was removed or replaced while we moved it,
+                // so don't bring it back to life
+                g.newTable.remove(key, value);
+                return null;
+            }
+            checkThreshold(g);
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Puts the specified element into the cache, using the specified key.
+     * The key and the element cannot be null.
+     * @param key the specified key in the cache
+     * @param value the specified element
+     * @return the old value of the key, or null if it did not have one.
+     */
+    public Object put(Object key, Object value) {
+        Generation g = gen;
+        Object oldValue = g.newTable.put(key, value);
+        if (oldValue != null)
+            return oldValue;
+        oldValue = g.oldTable.remove(key);
+        // we put a key into newtable that wasn't there before. check if it
+        // grew beyond the threshold
+        checkThreshold(g);
+        return oldValue;
+    }
+
+    /**
+     * Removes the element corresponding to the key. Does nothing if the
+     * key is not present.
+     * @param key the key that needs to be removed
+     * @return the value of key, or null if the key was not found.
+     */
+    public Object remove(Object key) {
+        Generation g = gen;
+        // remove from the old table first, so that get() notices when it
+        // is moving the object to the new table concurrently
+        Object oldValue2 = g.oldTable.remove(key);
+        Object oldValue = g.newTable.remove(key);
+        return oldValue == null ? oldValue2 : oldValue;
+    }
+
+    /**
+     * Clears the cache so that it has no more elements in it.
+     */
+    public synchronized boolean clear() {
+        gen = new Generation(createTable(eachCapacity, loadFactor),
+                             new ConcurrentHashMap());
+        return true;
+    }
+
+    /**
+     * Called when the application using this cache is stopped. We
+     * simply clear out our cache contents.
+     */
+    public void shutdown() {
+        clear();
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            updateProperties(app.getProperties());
+        }
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        try {
+            int cacheSize = Integer.parseInt(props.getProperty("cachesize", "1000"));
+            setCapacity(cacheSize);
+        } catch (Exception x) {
+            String message = "Invalid cachesize setting: " + props.getProperty("cachesize");
+            if (app != null) {
+                app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+    }
+
+    public Object[] getCachedObjects() {
+        Generation g = gen;
+        Object[] k1 = g.newTable.keySet().toArray();
+        Object[] k2 = g.oldTable.keySet().toArray();
+        Object[] k = new Object[k1.length + k2.length];
+        System.arraycopy(k1, 0, k, 0, k1.length);
+        System.arraycopy(k2, 0, k, k1.length, k2.length);
+        return k;
+    }
+
+    public String toString() {
+        Generation g = gen;
+        return g.newTable.toString() + g.oldTable.toString() + hashCode();
+    }
+
+    /**
+     * Override this method to use custom ConcurrentMap implementations. The
+     * default implementation returns a java.util.concurrent.ConcurrentHashMap
+     * instance.
+     *
+     * @param capacity the initial capacity
+     * @param loadFactor the load factor
+     * @return a new Map used for internal caching
+     */
+    protected ConcurrentMap createTable(int capacity, float loadFactor) {
+        return new ConcurrentHashMap(capacity, loadFactor);
+    }
+
+    public Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("size", size());
+        stats.put("threshold", threshold);
+        stats.put("rotations", rotations);
+        return stats;
+    }
+
+    /**
+     * Rotate the tables if the new table of generation g has reached the
+     * threshold. Only the thread that wins the lock rotates, others return
+     * immediately if the generation has already been replaced.
+     */
+    private void checkThreshold(Generation g) {
+        if (g.newTable.size() >= threshold) {
+            synchronized (this) {
+                if (g == gen && g.newTable.size() >= threshold) {
+                    rotate(g);
+                }
+            }
+        }
+    }
+
+    // must be called while holding the lock on this
+    private void rotate(Generation g) {
+        if (app != null)
+            app.logEvent("Rotating Cache tables at " + g.newTable.size() +
+                    "/" + g.oldTable.size() + " (new/old)");
+        gen = new Generation(createTable(eachCapacity, loadFactor), g.newTable);
+        rotations++;
+    }
+
+    /**
+     * Holder for the new and old tables.
+     */
+    static final class Generation {
+        final ConcurrentMap newTable;
+        final ConcurrentMap oldTable;
+
+        Generation(ConcurrentMap newTable, ConcurrentMap oldTable) {
+            this.newTable = newTable;
+            this.oldTable = oldTable;
+        }
+    }
+}